@@ -0,0 +1,119 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+import hudson.util.ArgumentListBuilder;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the ObjectStudio 7 and 8 command lines. The builders do not ask
+ * the global configuration for the installation path, so no Jenkins
+ * instance is needed.
+ *
+ * @author Patrick Lauper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommandLineBenchmark {
+
+	private static final String EXE = "C:\\Program Files (x86)\\Cincom\\ObjectStudio8.6\\";
+
+	private final ObjectStudio objectStudio7 = new ObjectStudio7();
+	private final ObjectStudio objectStudio8 = new ObjectStudio8();
+	private ObjectStudioBuilder builder7;
+	private ObjectStudio8Builder builder8;
+	private ObjectStudioRunner runner;
+
+	/**
+	 * Configure the builders and a prepared runner.
+	 */
+	@Setup
+	public void configure() {
+		builder7 = new ObjectStudioBuilder("build", "preload.txt", "load.txt", "postload.txt",
+				"ostudio.ini", "ostudio.log", "-E50 -x2 -cSRV:DB:TEST", "ostudio.img") {
+			@Override
+			public String getObjectStudioExe() {
+				return EXE + "ostudio.exe";
+			}
+		};
+		builder8 = new ObjectStudio8Builder("build", "preload.txt", "load.txt", "postload.txt",
+				"ostudio.ini", "ostudio.log", "-E50 -x2 -cSRV:DB:TEST", "ostudio.img", "-m2 -h 200000", true) {
+			@Override
+			public String getObjectStudioExe() {
+				return EXE + "ObjectStudio.exe";
+			}
+		};
+		runner = new ObjectStudioRunner(objectStudio7, new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM), 1);
+		runner.image = new FilePath(new File("C:\\Jenkins\\workspace\\job\\TEMP\\1ostudio.img"));
+		runner.preloadScript = new FilePath(new File("C:\\Jenkins\\workspace\\job\\TEMP\\1preload.txt"));
+	}
+
+	/**
+	 * Build the ObjectStudio 7 command line.
+	 * @return command line
+	 */
+	@Benchmark
+	public ArgumentListBuilder objectStudio7() {
+		return objectStudio7.getCommandline(null, builder7, runner);
+	}
+
+	/**
+	 * Build the ObjectStudio 8 command line.
+	 * @return command line
+	 */
+	@Benchmark
+	public ArgumentListBuilder objectStudio8() {
+		return objectStudio8.getCommandline(null, builder8, runner);
+	}
+
+	/**
+	 * Build the ObjectStudio 8 command line and turn it into the arguments
+	 * passed to the launcher.
+	 * @return arguments
+	 */
+	@Benchmark
+	public String[] objectStudio8CommandArray() {
+		return objectStudio8.getCommandline(null, builder8, runner).toCommandArray();
+	}
+}
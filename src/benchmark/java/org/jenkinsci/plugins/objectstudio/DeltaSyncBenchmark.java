@@ -0,0 +1,167 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bringing the copy of an image on a node up to date with {@link DeltaSync}
+ * after a few blocks of the image changed, without the remote channel: the
+ * signature of the old copy, the delta and rebuilding the copy.
+ *
+ * @author Patrick Lauper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaSyncBenchmark {
+
+	/**
+	 * Size of the image in megabytes.
+	 */
+	@Param({"64", "512" })
+	public int sizeMb;
+
+	/**
+	 * Number of places in the image changed since the old copy.
+	 */
+	@Param({"10", "100" })
+	public int changes;
+
+	private File dir;
+	private File image;
+	private File copy;
+	private File old;
+	private File delta;
+	private DeltaSync.Signature signature;
+
+	/**
+	 * Write the old copy and the changed image.
+	 * @throws IOException on write errors
+	 */
+	@Setup
+	public void createImages() throws IOException {
+		dir = SyntheticFiles.directory("delta");
+		old = new File(dir, "old.img");
+		SyntheticFiles.image(old, sizeMb * SyntheticFiles.MB);
+		image = new File(dir, "ostudio.img");
+		Files.copy(old.toPath(), image.toPath());
+		RandomAccessFile raf = new RandomAccessFile(image, "rw");
+		try {
+			long step = raf.length() / changes;
+			for (int i = 0; i < changes; i++) {
+				raf.seek(i * step + i);
+				raf.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8 });
+			}
+		} finally {
+			raf.close();
+		}
+		copy = new File(dir, "copy.img");
+		delta = new File(dir, "copy.delta");
+		signature = DeltaSync.signature(old, DeltaSync.BLOCK_SIZE);
+	}
+
+	/**
+	 * Every run starts from the old copy.
+	 * @throws IOException on copy errors
+	 */
+	@Setup(Level.Invocation)
+	public void resetCopy() throws IOException {
+		Files.copy(old.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Remove all files.
+	 * @throws IOException on delete errors
+	 */
+	@TearDown
+	public void delete() throws IOException {
+		SyntheticFiles.delete(dir);
+	}
+
+	/**
+	 * Checksums of the old copy, computed on the node.
+	 * @return number of blocks
+	 * @throws IOException on read errors
+	 */
+	@Benchmark
+	public int signature() throws IOException {
+		return DeltaSync.signature(copy, DeltaSync.BLOCK_SIZE).getBlockCount();
+	}
+
+	/**
+	 * Scan the image and write the delta, done on the controller.
+	 * @return bytes of the delta
+	 * @throws IOException on read or write errors
+	 */
+	@Benchmark
+	public long encode() throws IOException {
+		OutputStream out = new FileOutputStream(delta);
+		try {
+			return DeltaSync.encode(image, 0, image.length(), signature, out)[0];
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the delta and rebuild the copy from it.
+	 * @return size of the rebuilt copy
+	 * @throws IOException on read or write errors
+	 * @throws InterruptedException if interrupted
+	 */
+	@Benchmark
+	public long encodeAndApply() throws IOException, InterruptedException {
+		encode();
+		new DeltaSync.Apply(Collections.singletonList(delta.getPath()), Arrays.asList(0L, image.length()),
+				image.length(), image.lastModified(), DeltaSync.BLOCK_SIZE).invoke(copy, null);
+		return copy.length();
+	}
+}
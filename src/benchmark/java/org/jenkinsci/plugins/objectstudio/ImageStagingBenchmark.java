@@ -0,0 +1,149 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Providing the private image of a build: a plain copy as without the
+ * {@link ImageCache}, a cache miss, and cache hits in every cache mode.
+ * The results depend on the file system of java.io.tmpdir, clones fall back
+ * to copies where reflinks are not supported.
+ *
+ * @author Patrick Lauper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageStagingBenchmark {
+
+	/**
+	 * Size of the image in megabytes.
+	 */
+	@Param({"64", "512" })
+	public int sizeMb;
+
+	private File dir;
+	private File image;
+	private File target;
+	private File cache;
+	private long budget;
+
+	/**
+	 * Write the image and fill the cache.
+	 * @throws IOException on write errors
+	 */
+	@Setup
+	public void createImage() throws IOException {
+		dir = SyntheticFiles.directory("staging");
+		image = new File(dir, "ostudio.img");
+		SyntheticFiles.image(image, sizeMb * SyntheticFiles.MB);
+		target = new File(dir, "1ostudio.img");
+		cache = new File(dir, ImageCache.DIRECTORY);
+		budget = 4 * sizeMb * SyntheticFiles.MB;
+		new ImageCache(cache, ImageCache.COPY, budget).stage(image, target);
+	}
+
+	/**
+	 * Every run writes a new private image.
+	 */
+	@Setup(Level.Invocation)
+	public void deleteTarget() {
+		target.delete();
+	}
+
+	/**
+	 * Remove all files.
+	 * @throws IOException on delete errors
+	 */
+	@TearDown
+	public void delete() throws IOException {
+		SyntheticFiles.delete(dir);
+	}
+
+	/**
+	 * Copy the image without cache.
+	 * @return bytes copied
+	 * @throws IOException on copy errors
+	 */
+	@Benchmark
+	public long copy() throws IOException {
+		Files.copy(image.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return target.length();
+	}
+
+	/**
+	 * Add the image to an empty cache and copy it from there.
+	 * @return bytes copied
+	 * @throws IOException on copy errors
+	 */
+	@Benchmark
+	public long cacheMiss() throws IOException {
+		File empty = new File(dir, "empty-cache");
+		FileUtils.deleteDirectory(empty);
+		return new ImageCache(empty, ImageCache.COPY, budget).stage(image, target).getBytesCopied();
+	}
+
+	/**
+	 * Copy the cached image.
+	 * @return bytes copied
+	 * @throws IOException on copy errors
+	 */
+	@Benchmark
+	public long cacheHitCopy() throws IOException {
+		return new ImageCache(cache, ImageCache.COPY, budget).stage(image, target).getBytesCopied();
+	}
+
+	/**
+	 * Clone the cached image.
+	 * @return bytes copied
+	 * @throws IOException on copy errors
+	 */
+	@Benchmark
+	public long cacheHitClone() throws IOException {
+		return new ImageCache(cache, ImageCache.CLONE, budget).stage(image, target).getBytesCopied();
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Following a Transcript log while it is written. A shell process stands in
+ * for ObjectStudio and appends to the log in bursts with a pause in between,
+ * the log is followed the way {@link ObjectStudioRunner} does it. The
+ * process alone takes about bursts times 10 ms, anything above that is the
+ * time needed to notice and copy the last lines.
+ *
+ * @author Patrick Lauper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LogFollowerBenchmark {
+
+	/**
+	 * Bytes appended per burst, in kilobytes.
+	 */
+	@Param({"4", "1024" })
+	public int burstKb;
+
+	/**
+	 * Number of bursts written by the stand-in process.
+	 */
+	@Param({"100" })
+	public int bursts;
+
+	private File dir;
+	private File source;
+	private File log;
+
+	/**
+	 * Write the content appended by the stand-in process.
+	 * @throws IOException on write errors
+	 */
+	@Setup
+	public void createSource() throws IOException {
+		dir = SyntheticFiles.directory("follower");
+		source = new File(dir, "source.log");
+		SyntheticFiles.log(source, burstKb * 1024L, 80);
+		log = new File(dir, "ostudio.log");
+	}
+
+	/**
+	 * Start every run without a log, like a fresh build.
+	 */
+	@Setup(Level.Invocation)
+	public void deleteLog() {
+		log.delete();
+	}
+
+	/**
+	 * Remove the files.
+	 * @throws IOException on delete errors
+	 */
+	@TearDown
+	public void delete() throws IOException {
+		SyntheticFiles.delete(dir);
+	}
+
+	/**
+	 * Run the stand-in process and follow its log until it has finished.
+	 * @return bytes copied
+	 * @throws IOException on read errors
+	 * @throws InterruptedException if interrupted
+	 */
+	@Benchmark
+	public long follow() throws IOException, InterruptedException {
+		Process process = new ProcessBuilder("sh", "-c",
+				"i=0; while [ $i -lt " + bursts + " ]; do cat \"$0\" >> \"$1\"; sleep 0.01; i=$((i+1)); done",
+				source.getPath(), log.getPath()).start();
+		LogFollower follower = new LogFollower(new FilePath(log));
+		long bytes = 0;
+		long wait = ObjectStudioRunner.MIN_LOG_WAIT;
+		while (isAlive(process)) {
+			long copied = follower.follow(NullOutputStream.NULL_OUTPUT_STREAM, wait);
+			wait = copied > 0 ? ObjectStudioRunner.MIN_LOG_WAIT : Math.min(wait * 2, ObjectStudioRunner.MAX_LOG_WAIT);
+			bytes += copied;
+		}
+		return bytes + follower.finish(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+
+	/**
+	 * Process.isAlive() needs Java 8.
+	 */
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a complete Transcript log of a finished build, directly with
+ * {@link LogTailer} and through {@link LogFollower} in chunks as the runner
+ * does. The follower runs on a local {@link FilePath}, so the remote call is
+ * executed in process and only the chunking is measured, not the channel.
+ *
+ * @author Patrick Lauper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogTailerBenchmark {
+
+	/**
+	 * Size of the log in megabytes.
+	 */
+	@Param({"10", "1024" })
+	public int sizeMb;
+
+	/**
+	 * Length of a log line including the newline.
+	 */
+	@Param({"80", "4096", "100000" })
+	public int lineLength;
+
+	private File dir;
+	private File log;
+
+	/**
+	 * Write the log.
+	 * @throws IOException on write errors
+	 */
+	@Setup
+	public void createLog() throws IOException {
+		dir = SyntheticFiles.directory("tailer");
+		log = new File(dir, "ostudio.log");
+		SyntheticFiles.log(log, sizeMb * SyntheticFiles.MB, lineLength);
+	}
+
+	/**
+	 * Remove the log.
+	 * @throws IOException on delete errors
+	 */
+	@TearDown
+	public void deleteLog() throws IOException {
+		SyntheticFiles.delete(dir);
+	}
+
+	/**
+	 * Read the whole log in one poll.
+	 * @return bytes read
+	 * @throws IOException on read errors
+	 */
+	@Benchmark
+	public long tail() throws IOException {
+		LogTailer tailer = new LogTailer();
+		return tailer.poll(log, NullOutputStream.NULL_OUTPUT_STREAM)
+				+ tailer.flush(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+
+	/**
+	 * Read the whole log in chunks like the runner at the end of a build.
+	 * @return bytes read
+	 * @throws IOException on read errors
+	 * @throws InterruptedException never
+	 */
+	@Benchmark
+	public long follow() throws IOException, InterruptedException {
+		return new LogFollower(new FilePath(log)).finish(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+}
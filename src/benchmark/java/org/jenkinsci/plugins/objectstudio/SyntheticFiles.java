@@ -0,0 +1,137 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Fake Transcript logs and images for the benchmarks.
+ *
+ * @author Patrick Lauper
+ */
+final class SyntheticFiles {
+
+	/**
+	 * One megabyte.
+	 */
+	static final long MB = 1024L * 1024L;
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private SyntheticFiles() {
+	}
+
+	/**
+	 * Create a scratch directory for one benchmark.
+	 * @param name prefix of the directory name
+	 * @return new empty directory
+	 * @throws IOException if it can not be created
+	 */
+	static File directory(String name) throws IOException {
+		File dir = File.createTempFile(name, "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Can not create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Delete a scratch directory.
+	 * @param dir directory created by {@link #directory(String)}
+	 * @throws IOException if it can not be deleted
+	 */
+	static void delete(File dir) throws IOException {
+		if (dir != null) {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	/**
+	 * Write a log of equally long lines.
+	 * @param file log file
+	 * @param size size in bytes
+	 * @param lineLength length of a line including the newline
+	 * @throws IOException on write errors
+	 */
+	static void log(File file, long size, int lineLength) throws IOException {
+		byte[] line = line(lineLength);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+		try {
+			long written = 0;
+			while (written < size) {
+				int length = (int) Math.min(line.length, size - written);
+				out.write(line, 0, length);
+				written += length;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A Transcript like line.
+	 * @param lineLength length including the newline
+	 * @return line ending with a newline
+	 */
+	static byte[] line(int lineLength) {
+		byte[] line = new byte[lineLength];
+		byte[] text = "Transcript show: 'SUnit test passed'; cr. ".getBytes();
+		for (int i = 0; i < lineLength - 1; i++) {
+			line[i] = text[i % text.length];
+		}
+		line[lineLength - 1] = '\n';
+		return line;
+	}
+
+	/**
+	 * Write an image of random content, so it can not be deduplicated or
+	 * compressed by the file system.
+	 * @param file image file
+	 * @param size size in bytes
+	 * @throws IOException on write errors
+	 */
+	static void image(File file, long size) throws IOException {
+		Random random = new Random(size);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			long written = 0;
+			while (written < size) {
+				random.nextBytes(buffer);
+				int length = (int) Math.min(buffer.length, size - written);
+				out.write(buffer, 0, length);
+				written += length;
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,424 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * Command line of ObjectStudio parsed from the configuration of a builder.
+ *
+ * <p>
+ * {@link ObjectStudio#compile(ObjectStudioBuilder)} builds the template once
+ * per configuration, the builder keeps it until the configuration changes.
+ * Everything given by the configuration is fixed in the template: the
+ * wrapper, the flags and the parameters, split into arguments by
+ * {@link #tokenize(String, String)}. Only the values that differ from build
+ * to build are left as slots: the executable, whose directory is a global
+ * setting, and the image, scripts and log prepared for the run. A
+ * parameter that can not be parsed fails when the configuration is saved,
+ * not after the image has been staged.
+ *
+ * @author Patrick Lauper
+ */
+public final class CommandTemplate {
+
+	/**
+	 * Slot of the ObjectStudio executable.
+	 */
+	static final int EXE = 0;
+
+	/**
+	 * Slot of the image.
+	 */
+	static final int IMAGE = 1;
+
+	/**
+	 * Slot of the preload script.
+	 */
+	static final int PRELOAD = 2;
+
+	/**
+	 * Slot of the load script.
+	 */
+	static final int LOAD = 3;
+
+	/**
+	 * Slot of the log.
+	 */
+	static final int LOG = 4;
+
+	private static final int SLOTS = 5;
+
+	/**
+	 * Characters CMD.EXE interprets in a batch file, escaped with a caret.
+	 */
+	private static final String BATCH_SPECIAL = "^&|<>()\"!";
+
+	private final List<Argument> arguments = new ArrayList<Argument>();
+
+	/**
+	 * Create an empty template, filled by {@link ObjectStudio#compile(ObjectStudioBuilder)}.
+	 */
+	CommandTemplate() {
+	}
+
+	/**
+	 * Split parameters into arguments. Arguments are separated by white
+	 * space, double quotes group white space into an argument and are
+	 * removed. Backslashes have no special meaning, so Windows paths can be
+	 * given as they are.
+	 * @param parameters parameters as configured, may be null
+	 * @param name name of the parameters for the error message
+	 * @return arguments in their order
+	 * @throws IllegalArgumentException if a quote is not closed
+	 */
+	public static List<String> tokenize(String parameters, String name) {
+		if (parameters == null) {
+			return Collections.emptyList();
+		}
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		boolean inToken = false;
+		boolean quoted = false;
+		for (int i = 0; i < parameters.length(); i++) {
+			char c = parameters.charAt(i);
+			if (c == '"') {
+				// An empty pair of quotes is an empty argument
+				quoted = !quoted;
+				inToken = true;
+			} else if (!quoted && Character.isWhitespace(c)) {
+				if (inToken) {
+					tokens.add(token.toString());
+					token.setLength(0);
+					inToken = false;
+				}
+			} else {
+				token.append(c);
+				inToken = true;
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Quote not closed in " + name + ": " + parameters);
+		}
+		if (inToken) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	/**
+	 * Check parameters entered in the configuration.
+	 * @param parameters parameters as configured
+	 * @return error message or null if the parameters can be used
+	 */
+	public static String checkParameters(String parameters) {
+		try {
+			tokenize(parameters, "the parameters");
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * Write a command line as a line of a Bourne shell script. Every
+	 * argument is put in single quotes, so nothing in it is interpreted by
+	 * the shell.
+	 * @param arguments command line
+	 * @return script line
+	 */
+	public static String toBourneShell(List<String> arguments) {
+		StringBuilder line = new StringBuilder();
+		for (String argument : arguments) {
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			line.append('\'').append(argument.replace("'", "'\\''")).append('\'');
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Write a command line as a line of a Windows batch file. Arguments are
+	 * quoted for the program as far as needed, then every character CMD.EXE
+	 * would interpret, quotes included, is escaped with a caret and percent
+	 * signs are doubled. Arguments already in quotes, like the title of
+	 * start, keep their quotes.
+	 * @param arguments command line
+	 * @return batch line
+	 */
+	public static String toBatch(List<String> arguments) {
+		StringBuilder line = new StringBuilder();
+		for (String argument : arguments) {
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			String quoted = isQuoted(argument) ? argument : quoteForProgram(argument);
+			for (int i = 0; i < quoted.length(); i++) {
+				char c = quoted.charAt(i);
+				if (c == '%') {
+					line.append("%%");
+				} else {
+					if (BATCH_SPECIAL.indexOf(c) >= 0) {
+						line.append('^');
+					}
+					line.append(c);
+				}
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Add a fixed argument.
+	 * @param argument argument as it is
+	 * @return this template
+	 */
+	CommandTemplate add(String argument) {
+		return add(false, false, new Part(argument, -1, "", false));
+	}
+
+	/**
+	 * Add a fixed argument in double quotes.
+	 * @param argument argument without quotes
+	 * @return this template
+	 */
+	CommandTemplate addQuoted(String argument) {
+		return add(true, false, new Part(argument, -1, "", false));
+	}
+
+	/**
+	 * Add an argument with the value of a slot.
+	 * @param prefix fixed text in front of the value
+	 * @param slot one of the slots
+	 * @return this template
+	 */
+	CommandTemplate addSlot(String prefix, int slot) {
+		return add(false, false, new Part(prefix, slot, "", false));
+	}
+
+	/**
+	 * Add an argument with the value of a slot, left out if the value is
+	 * blank.
+	 * @param prefix fixed text in front of the value
+	 * @param slot one of the slots
+	 * @return this template
+	 */
+	CommandTemplate addOptionalSlot(String prefix, int slot) {
+		return add(false, true, new Part(prefix, slot, "", true));
+	}
+
+	/**
+	 * Add parameters split by {@link #tokenize(String, String)}, one
+	 * argument each.
+	 * @param parameters parameters as configured, may be null
+	 * @param name name of the parameters for the error message
+	 * @return this template
+	 * @throws IllegalArgumentException if the parameters can not be parsed
+	 */
+	CommandTemplate addTokenized(String parameters, String name) {
+		for (String token : tokenize(parameters, name)) {
+			add(token);
+		}
+		return this;
+	}
+
+	/**
+	 * Add one argument made of several parts.
+	 * @param parts fixed text and slots, see {@link #text(String)} and
+	 *            {@link #optional(String, int, String)}
+	 * @return this template
+	 */
+	CommandTemplate add(Part... parts) {
+		return add(false, false, parts);
+	}
+
+	/**
+	 * Fixed text in an argument made of parts.
+	 * @param text text as it is
+	 * @return part
+	 */
+	static Part text(String text) {
+		return new Part(text, -1, "", false);
+	}
+
+	/**
+	 * Value of a slot in an argument made of parts, left out with prefix and
+	 * suffix if the value is blank.
+	 * @param prefix fixed text in front of the value
+	 * @param slot one of the slots
+	 * @param suffix fixed text after the value
+	 * @return part
+	 */
+	static Part optional(String prefix, int slot, String suffix) {
+		return new Part(prefix, slot, suffix, true);
+	}
+
+	/**
+	 * Fill the slots with the values of a run.
+	 * @param exe absolute path of the executable
+	 * @param runner runner with the prepared image, scripts and log
+	 * @return command line
+	 */
+	public ArgumentListBuilder expand(String exe, ObjectStudioRunner runner) {
+		String[] values = new String[SLOTS];
+		values[EXE] = exe;
+		values[IMAGE] = runner.getObjectStudioImageName() == null ? null : runner.getObjectStudioImageName().toString();
+		values[PRELOAD] = runner.getPreloadScriptName();
+		values[LOAD] = runner.getLoadScriptName();
+		values[LOG] = runner.getLogName();
+		ArgumentListBuilder argList = new ArgumentListBuilder();
+		for (Argument argument : arguments) {
+			argument.addTo(argList, values);
+		}
+		return argList;
+	}
+
+	private static boolean isQuoted(String argument) {
+		return argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")
+				&& argument.indexOf('"', 1) == argument.length() - 1;
+	}
+
+	/**
+	 * Quote an argument the way Windows programs split their command line:
+	 * backslashes are only special in front of a quote.
+	 */
+	private static String quoteForProgram(String argument) {
+		if (!argument.isEmpty() && argument.indexOf(' ') < 0 && argument.indexOf('\t') < 0 && argument.indexOf('"') < 0) {
+			return argument;
+		}
+		StringBuilder quoted = new StringBuilder("\"");
+		int backslashes = 0;
+		for (int i = 0; i < argument.length(); i++) {
+			char c = argument.charAt(i);
+			if (c == '\\') {
+				backslashes++;
+			} else if (c == '"') {
+				appendBackslashes(quoted, backslashes * 2 + 1);
+				backslashes = 0;
+			} else {
+				appendBackslashes(quoted, backslashes);
+				backslashes = 0;
+			}
+			if (c != '\\') {
+				quoted.append(c);
+			}
+		}
+		// Backslashes in front of the closing quote are doubled
+		appendBackslashes(quoted, backslashes * 2);
+		return quoted.append('"').toString();
+	}
+
+	private static void appendBackslashes(StringBuilder quoted, int count) {
+		for (int i = 0; i < count; i++) {
+			quoted.append('\\');
+		}
+	}
+
+	private CommandTemplate add(boolean quoted, boolean optional, Part... parts) {
+		arguments.add(new Argument(parts, quoted, optional));
+		return this;
+	}
+
+	/**
+	 * Fixed text or the value of a slot with fixed text around it.
+	 */
+	static final class Part {
+		private final String prefix;
+		private final int slot;
+		private final String suffix;
+		private final boolean optional;
+
+		Part(String prefix, int slot, String suffix, boolean optional) {
+			this.prefix = prefix;
+			this.slot = slot;
+			this.suffix = suffix;
+			this.optional = optional;
+		}
+
+		void appendTo(StringBuilder argument, String[] values) {
+			if (slot < 0) {
+				argument.append(prefix);
+				return;
+			}
+			String value = values[slot];
+			boolean blank = value == null || value.trim().isEmpty();
+			if (optional && blank) {
+				return;
+			}
+			argument.append(prefix).append(value == null ? "" : value).append(suffix);
+		}
+	}
+
+	/**
+	 * One argument of the command line.
+	 */
+	private static final class Argument {
+		private final Part[] parts;
+		private final boolean quoted;
+		private final boolean optional;
+		private final String text;
+
+		Argument(Part[] parts, boolean quoted, boolean optional) {
+			this.parts = parts;
+			this.quoted = quoted;
+			this.optional = optional;
+			// Arguments without slots are joined once
+			this.text = hasSlot(parts) ? null : join(parts, null);
+		}
+
+		void addTo(ArgumentListBuilder argList, String[] values) {
+			String argument = text == null ? join(parts, values) : text;
+			if (optional && argument.isEmpty()) {
+				return;
+			}
+			if (quoted) {
+				argList.addQuoted(argument);
+			} else {
+				argList.add(argument);
+			}
+		}
+
+		private static boolean hasSlot(Part[] parts) {
+			for (Part part : parts) {
+				if (part.slot >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static String join(Part[] parts, String[] values) {
+			StringBuilder argument = new StringBuilder();
+			for (Part part : parts) {
+				part.appendTo(argument, values);
+			}
+			return argument.toString();
+		}
+	}
+}
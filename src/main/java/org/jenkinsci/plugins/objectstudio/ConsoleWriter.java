@@ -0,0 +1,122 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Batches writes to the build log.
+ *
+ * <p>
+ * Small writes, like single lines, are collected in a buffer of
+ * {@link #BUFFER_SIZE} bytes and passed on in one write when it is full,
+ * when {@link #flushIfDue()} finds the oldest byte older than
+ * {@link #MAX_DELAY} milliseconds or on {@link #flush()}. Writes larger
+ * than the buffer are passed on directly after the buffered bytes.
+ *
+ * @author Patrick Lauper
+ */
+public class ConsoleWriter extends OutputStream {
+
+	/**
+	 * Number of bytes collected before they are written.
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Longest time in milliseconds bytes are kept back.
+	 */
+	static final long MAX_DELAY = 1000;
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int length;
+	private long since;
+
+	/**
+	 * Create a writer.
+	 * @param out build log
+	 */
+	public ConsoleWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if (length == BUFFER_SIZE) {
+			writeBuffer();
+		}
+		start();
+		buffer[length++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (len > BUFFER_SIZE - length) {
+			writeBuffer();
+		}
+		if (len >= BUFFER_SIZE) {
+			out.write(b, off, len);
+			return;
+		}
+		start();
+		System.arraycopy(b, off, buffer, length, len);
+		length += len;
+	}
+
+	/**
+	 * Write the buffered bytes if the oldest one waited long enough.
+	 * @throws IOException on write errors
+	 */
+	public synchronized void flushIfDue() throws IOException {
+		if (length > 0 && System.currentTimeMillis() - since >= MAX_DELAY) {
+			flush();
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void start() {
+		if (length == 0) {
+			since = System.currentTimeMillis();
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (length > 0) {
+			out.write(buffer, 0, length);
+			length = 0;
+		}
+	}
+}
@@ -0,0 +1,705 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Keeps a copy of a file on the controller up to date on a node by sending
+ * only the blocks that changed, like rsync.
+ *
+ * <p>
+ * The node sends a weak rolling checksum and an MD5 for each block of its
+ * copy. The controller scans its file with the rolling checksum and writes a
+ * delta of block references and literal bytes to the node. The file is cut
+ * into ranges that are scanned and sent in parallel streams, which keeps a
+ * link with a high bandwidth-delay product busy. The node rebuilds the file
+ * from its old copy and the deltas, checks the MD5 of every range and
+ * replaces the copy. The copy gets the modification time of the source, so
+ * an unchanged file is not scanned at all.
+ *
+ * @author Patrick Lauper
+ */
+public class DeltaSync {
+
+	/**
+	 * Name of the directory in the root directory of a node holding the
+	 * copies.
+	 */
+	public static final String DIRECTORY = "objectstudio-sync";
+
+	/**
+	 * Default number of parallel streams.
+	 */
+	public static final int DEFAULT_STREAMS = 4;
+
+	/**
+	 * Size of the compared blocks.
+	 */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Literal bytes are sent in pieces of at most this size.
+	 */
+	static final int MAX_LITERAL = 256 * 1024;
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte LITERAL = 2;
+
+	private final File source;
+	private final FilePath target;
+	private final int streams;
+
+	/**
+	 * Create the synchronization of a file.
+	 * @param source file on the controller
+	 * @param target copy on the node, need not exist
+	 * @param streams number of parallel streams
+	 */
+	public DeltaSync(File source, FilePath target, int streams) {
+		this.source = source;
+		this.target = target;
+		this.streams = Math.max(1, streams);
+	}
+
+	/**
+	 * Get the copy of a file of the controller in the root directory of a
+	 * node.
+	 * @param root root directory of the node
+	 * @param source file on the controller
+	 * @return copy on the node, keeping the name of the file
+	 */
+	public static FilePath getTarget(FilePath root, File source) {
+		return root.child(DIRECTORY).child(Util.getDigestOf(source.getAbsolutePath())).child(source.getName());
+	}
+
+	/**
+	 * Bring the copy on the node up to date.
+	 * @return what was sent
+	 * @throws IOException if the source can not be read or the copy not be
+	 *             written
+	 * @throws InterruptedException if interrupted
+	 */
+	public Synced sync() throws IOException, InterruptedException {
+		if (!source.isFile()) {
+			throw new IOException("Image not found on the controller: " + source);
+		}
+		final long length = source.length();
+		long modified = source.lastModified();
+		final Signature basis = target.act(new ReadSignature(length, modified));
+		Synced synced = new Synced(length);
+		if (basis == null) {
+			return synced;
+		}
+
+		// Ranges start at block boundaries, a delta never crosses them
+		long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int count = (int) Math.max(1, Math.min(streams, blocks));
+		final List<Long> starts = new ArrayList<Long>();
+		for (int i = 0; i <= count; i++) {
+			starts.add(Math.min(length, blocks * i / count * BLOCK_SIZE));
+		}
+		String prefix = target.getName() + "." + UUID.randomUUID() + ".delta";
+		final List<FilePath> deltas = new ArrayList<FilePath>();
+		List<Callable<long[]>> sends = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < count; i++) {
+			final FilePath delta = target.getParent().child(prefix + i);
+			final int range = i;
+			deltas.add(delta);
+			sends.add(new Callable<long[]>() {
+				@Override
+				public long[] call() throws IOException, InterruptedException {
+					OutputStream out = delta.write();
+					try {
+						return encode(source, starts.get(range), starts.get(range + 1), basis, out);
+					} finally {
+						out.close();
+					}
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			for (Future<long[]> future : executor.invokeAll(sends)) {
+				long[] sent = get(future);
+				synced.bytesSent += sent[0];
+				synced.blocksReused += sent[1];
+			}
+			List<String> paths = new ArrayList<String>();
+			for (FilePath delta : deltas) {
+				paths.add(delta.getRemote());
+			}
+			target.act(new Apply(paths, starts, length, modified, basis.getBlockSize()));
+		} finally {
+			executor.shutdownNow();
+			for (FilePath delta : deltas) {
+				delta.delete();
+			}
+		}
+		synced.streams = count;
+		return synced;
+	}
+
+	private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Compute the signature of a file.
+	 * @param file old copy
+	 * @param blockSize size of the blocks
+	 * @return checksums of all complete blocks
+	 * @throws IOException if the file can not be read
+	 */
+	static Signature signature(File file, int blockSize) throws IOException {
+		long blocks = file.length() / blockSize;
+		Signature signature = new Signature(blockSize, (int) blocks);
+		MessageDigest md5 = newDigest();
+		byte[] block = new byte[blockSize];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try {
+			for (int i = 0; i < blocks; i++) {
+				in.readFully(block);
+				signature.weak[i] = weak(block, 0, blockSize);
+				signature.strong[i] = md5.digest(block);
+			}
+		} finally {
+			in.close();
+		}
+		return signature;
+	}
+
+	/**
+	 * Write the delta turning the old copy into a range of the source.
+	 * @param source file to be sent
+	 * @param start first byte of the range
+	 * @param end end of the range, exclusive
+	 * @param basis signature of the old copy
+	 * @param output receives the delta
+	 * @return bytes written and number of blocks reused
+	 * @throws IOException if the source can not be read or the delta not be
+	 *             written
+	 */
+	static long[] encode(File source, long start, long end, Signature basis, OutputStream output) throws IOException {
+		int size = basis.getBlockSize();
+		RandomAccessFile raf = new RandomAccessFile(source, "r");
+		try {
+			raf.seek(start);
+			Input in = new Input(Channels.newInputStream(raf.getChannel()));
+			Encoder encoder = new Encoder(new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE)));
+			// Circular window over the bytes not yet sent
+			byte[] window = new byte[size];
+			long remaining = end - start;
+			int head = 0;
+			int length = fill(in, window, remaining);
+			remaining -= length;
+			int a = 0;
+			int b = 0;
+			if (length == size) {
+				int weak = weak(window, 0, size);
+				a = weak & 0xffff;
+				b = weak >>> 16;
+			}
+			while (length > 0) {
+				int index = length == size ? basis.find(a | b << 16, window, head, encoder.md5) : -1;
+				if (index >= 0) {
+					encoder.copy(index, window, head);
+					head = 0;
+					length = fill(in, window, remaining);
+					remaining -= length;
+					if (length == size) {
+						int weak = weak(window, 0, size);
+						a = weak & 0xffff;
+						b = weak >>> 16;
+					}
+				} else if (remaining > 0) {
+					// Slide the window by one byte
+					int out = window[head] & 0xff;
+					int next = in.read();
+					if (next < 0) {
+						throw new IOException("Source changed while sending: " + source);
+					}
+					remaining--;
+					encoder.literal(window[head]);
+					window[head] = (byte) next;
+					head = head + 1 == size ? 0 : head + 1;
+					a = (a - out + next) & 0xffff;
+					b = (b - size * out + a) & 0xffff;
+				} else {
+					// End of the range, the rest can not match a block
+					for (int i = 0; i < length; i++) {
+						encoder.literal(window[(head + i) % size]);
+					}
+					length = 0;
+				}
+			}
+			return encoder.finish();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int fill(Input in, byte[] window, long remaining) throws IOException {
+		int length = (int) Math.min(window.length, remaining);
+		for (int i = 0; i < length; i++) {
+			int next = in.read();
+			if (next < 0) {
+				throw new IOException("Source changed while sending");
+			}
+			window[i] = (byte) next;
+		}
+		return length;
+	}
+
+	/**
+	 * Rolling checksum of rsync, the sum of the bytes in the low and the
+	 * weighted sum in the high 16 bits.
+	 */
+	static int weak(byte[] block, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = block[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		return (a & 0xffff) | (b & 0xffff) << 16;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Unsynchronized buffer for reading the source byte by byte.
+	 */
+	private static final class Input {
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+
+		Input(InputStream in) {
+			this.in = in;
+		}
+
+		int read() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position++] & 0xff;
+		}
+	}
+
+	/**
+	 * Writes the records of a delta and the MD5 of the range.
+	 */
+	private static final class Encoder {
+		private final DataOutputStream out;
+		private final MessageDigest md5;
+		private final MessageDigest range;
+		private final byte[] literal = new byte[MAX_LITERAL];
+		private int literalLength;
+		private long written;
+		private long reused;
+
+		Encoder(DataOutputStream out) throws IOException {
+			this.out = out;
+			this.md5 = newDigest();
+			this.range = newDigest();
+		}
+
+		void literal(byte b) throws IOException {
+			literal[literalLength++] = b;
+			if (literalLength == literal.length) {
+				flushLiteral();
+			}
+		}
+
+		void copy(int index, byte[] window, int head) throws IOException {
+			flushLiteral();
+			range.update(window, head, window.length - head);
+			range.update(window, 0, head);
+			out.writeByte(COPY);
+			out.writeInt(index);
+			written += 5;
+			reused++;
+		}
+
+		long[] finish() throws IOException {
+			flushLiteral();
+			out.writeByte(END);
+			byte[] digest = range.digest();
+			out.write(digest);
+			out.flush();
+			written += 1 + digest.length;
+			return new long[] {written, reused};
+		}
+
+		private void flushLiteral() throws IOException {
+			if (literalLength == 0) {
+				return;
+			}
+			range.update(literal, 0, literalLength);
+			out.writeByte(LITERAL);
+			out.writeInt(literalLength);
+			out.write(literal, 0, literalLength);
+			written += 5 + literalLength;
+			literalLength = 0;
+		}
+	}
+
+	/**
+	 * Checksums of the blocks of the old copy.
+	 */
+	public static final class Signature implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private static final int FILTER_BITS = 20;
+
+		private final int blockSize;
+		private final int[] weak;
+		private final byte[][] strong;
+		private transient BitSet filter;
+		private transient Map<Integer, List<Integer>> blocks;
+
+		Signature(int blockSize, int count) {
+			this.blockSize = blockSize;
+			this.weak = new int[count];
+			this.strong = new byte[count][];
+		}
+
+		/**
+		 * Get the size of the blocks.
+		 * @return size in bytes
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * Get the number of complete blocks.
+		 * @return number of blocks
+		 */
+		public int getBlockCount() {
+			return weak.length;
+		}
+
+		/**
+		 * Find a block with the content of the window.
+		 * @return index of the block or -1
+		 */
+		int find(int checksum, byte[] window, int head, MessageDigest md5) {
+			index();
+			if (!filter.get(slot(checksum))) {
+				return -1;
+			}
+			List<Integer> candidates = blocks.get(checksum);
+			if (candidates == null) {
+				return -1;
+			}
+			md5.update(window, head, window.length - head);
+			md5.update(window, 0, head);
+			byte[] digest = md5.digest();
+			for (Integer candidate : candidates) {
+				if (Arrays.equals(digest, strong[candidate])) {
+					return candidate;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Index the blocks by weak checksum. A bit set in front of the map
+		 * keeps most windows from being boxed and looked up.
+		 */
+		private synchronized void index() {
+			if (blocks != null) {
+				return;
+			}
+			BitSet bits = new BitSet(1 << FILTER_BITS);
+			Map<Integer, List<Integer>> map = new HashMap<Integer, List<Integer>>();
+			for (int i = 0; i < weak.length; i++) {
+				bits.set(slot(weak[i]));
+				List<Integer> list = map.get(weak[i]);
+				if (list == null) {
+					list = new ArrayList<Integer>(1);
+					map.put(weak[i], list);
+				}
+				list.add(i);
+			}
+			filter = bits;
+			blocks = map;
+		}
+
+		private static int slot(int checksum) {
+			return (checksum * 0x9E3779B1) >>> (32 - FILTER_BITS);
+		}
+	}
+
+	/**
+	 * What a synchronization sent.
+	 */
+	public static final class Synced implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long length;
+		private long bytesSent;
+		private long blocksReused;
+		private int streams;
+
+		Synced(long length) {
+			this.length = length;
+		}
+
+		/**
+		 * Was the copy already up to date.
+		 * @return true if nothing was sent
+		 */
+		public boolean isUpToDate() {
+			return streams == 0;
+		}
+
+		/**
+		 * Get the size of the file.
+		 * @return size in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Get the size of the deltas sent.
+		 * @return bytes sent
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * Get the number of blocks taken from the old copy.
+		 * @return number of blocks
+		 */
+		public long getBlocksReused() {
+			return blocksReused;
+		}
+
+		/**
+		 * Get the number of parallel streams used.
+		 * @return number of streams, 0 if the copy was up to date
+		 */
+		public int getStreams() {
+			return streams;
+		}
+	}
+
+	/**
+	 * Reads the signature of the copy on the node, or nothing if it has the
+	 * size and modification time of the source.
+	 */
+	public static final class ReadSignature extends MasterToSlaveFileCallable<Signature> {
+		private static final long serialVersionUID = 1L;
+
+		private final long length;
+		private final long modified;
+
+		ReadSignature(long length, long modified) {
+			this.length = length;
+			this.modified = modified;
+		}
+
+		@Override
+		public Signature invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			if (f.isFile() && f.length() == length && f.lastModified() == modified) {
+				return null;
+			}
+			if (!f.isFile()) {
+				return new Signature(BLOCK_SIZE, 0);
+			}
+			return signature(f, BLOCK_SIZE);
+		}
+	}
+
+	/**
+	 * Rebuilds the file on the node from its old copy and the deltas.
+	 */
+	public static final class Apply extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> deltas;
+		private final List<Long> starts;
+		private final long length;
+		private final long modified;
+		private final int blockSize;
+
+		Apply(List<String> deltas, List<Long> starts, long length, long modified, int blockSize) {
+			this.deltas = new ArrayList<String>(deltas);
+			this.starts = new ArrayList<Long>(starts);
+			this.length = length;
+			this.modified = modified;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		public Void invoke(final File f, VirtualChannel channel) throws IOException, InterruptedException {
+			final File temp = new File(f.getParentFile(), f.getName() + "." + UUID.randomUUID() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+			try {
+				List<Callable<Void>> ranges = new ArrayList<Callable<Void>>();
+				for (int i = 0; i < deltas.size(); i++) {
+					final int range = i;
+					ranges.add(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							apply(new File(deltas.get(range)), f, temp, starts.get(range), starts.get(range + 1));
+							return null;
+						}
+					});
+				}
+				ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+				try {
+					for (Future<Void> future : executor.invokeAll(ranges)) {
+						get(future);
+					}
+				} finally {
+					executor.shutdownNow();
+				}
+				if (!temp.setLastModified(modified)) {
+					throw new IOException("Can not set modification time of " + temp);
+				}
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				temp.delete();
+			}
+			return null;
+		}
+
+		private void apply(File delta, File basis, File temp, long start, long end) throws IOException {
+			MessageDigest md5 = newDigest();
+			byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta), BUFFER_SIZE));
+			RandomAccessFile old = basis.isFile() ? new RandomAccessFile(basis, "r") : null;
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				out.seek(start);
+				long position = start;
+				byte op = in.readByte();
+				while (op != END) {
+					int length;
+					if (op == COPY) {
+						if (old == null) {
+							throw new IOException("Delta refers to a missing copy: " + delta);
+						}
+						length = blockSize;
+						old.seek((long) in.readInt() * blockSize);
+						old.readFully(buffer, 0, length);
+					} else if (op == LITERAL) {
+						length = in.readInt();
+						in.readFully(buffer, 0, length);
+					} else {
+						throw new IOException("Invalid delta: " + delta);
+					}
+					md5.update(buffer, 0, length);
+					out.write(buffer, 0, length);
+					position += length;
+					op = in.readByte();
+				}
+				byte[] expected = new byte[md5.getDigestLength()];
+				in.readFully(expected);
+				if (position != end || !Arrays.equals(expected, md5.digest())) {
+					throw new IOException("Delta does not rebuild the source: " + delta);
+				}
+			} finally {
+				out.close();
+				if (old != null) {
+					old.close();
+				}
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+/**
+ * Captures and summarizes the environment ObjectStudio is started with.
+ *
+ * <p>
+ * The full build environment asks the node for its environment and runs
+ * every environment contributor. With the minimal environment only the
+ * variables describing the build are resolved on the controller: the build
+ * parameters, <code>BUILD_NUMBER</code>, <code>JOB_NAME</code> and the like,
+ * <code>WORKSPACE</code> and <code>NODE_NAME</code>. ObjectStudio still
+ * inherits the environment of the agent process.
+ *
+ * <p>
+ * Instead of every variable the build log shows by default their number
+ * and a hash, which is compared with the previous build. Variables that
+ * change with every build, like <code>BUILD_NUMBER</code>, are left out of
+ * the hash.
+ *
+ * @author Patrick Lauper
+ */
+public final class EnvironmentCapture {
+
+	/**
+	 * Log the number of variables and their hash.
+	 */
+	public static final String SUMMARY = "summary";
+
+	/**
+	 * Log every variable and the summary.
+	 */
+	public static final String FULL = "full";
+
+	/**
+	 * Log nothing and do not compute the hash.
+	 */
+	public static final String NONE = "none";
+
+	private static final Set<String> PER_BUILD = new HashSet<String>(Arrays.asList("BUILD_NUMBER", "BUILD_ID",
+			"BUILD_DISPLAY_NAME", "BUILD_TAG", "BUILD_URL", "BUILD_TIMESTAMP", "EXECUTOR_NUMBER"));
+
+	private EnvironmentCapture() {
+	}
+
+	/**
+	 * Get the environment of a build.
+	 * @param build Jenkins build
+	 * @param listener Jenkins listener
+	 * @param minimal true for the variables describing the build only
+	 * @return environment to start ObjectStudio with
+	 * @throws IOException if the environment can not be computed
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	public static EnvVars capture(AbstractBuild<?, ?> build, TaskListener listener, boolean minimal)
+			throws IOException, InterruptedException {
+		if (!minimal) {
+			return build.getEnvironment(listener);
+		}
+		EnvVars env = build.getCharacteristicEnvVars();
+		env.putAll(build.getBuildVariables());
+		FilePath workspace = build.getWorkspace();
+		if (workspace != null) {
+			env.put("WORKSPACE", workspace.getRemote());
+		}
+		Node node = build.getBuiltOn();
+		if (node != null) {
+			env.put("NODE_NAME", node.getNodeName().isEmpty() ? "master" : node.getNodeName());
+		}
+		return env;
+	}
+
+	/**
+	 * Hash names and values of an environment, independent of their order
+	 * and without the variables changing with every build.
+	 * @param env environment variables
+	 * @return hex encoded MD5
+	 */
+	public static String hash(Map<String, String> env) {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, String> e : new TreeMap<String, String>(env).entrySet()) {
+			if (PER_BUILD.contains(e.getKey())) {
+				continue;
+			}
+			text.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		}
+		return Util.getDigestOf(text.toString());
+	}
+}
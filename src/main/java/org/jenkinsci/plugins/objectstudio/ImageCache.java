@@ -0,0 +1,691 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Per node cache of ObjectStudio images.
+ *
+ * <p>
+ * Images are stored once per content (MD5) in the cache directory of the
+ * node. An index maps the path, size and modification time of a source image
+ * to its content, so an unchanged image is only hashed and copied the first
+ * time it is used. Each build then gets its private image from the cached
+ * master by one of the following modes:
+ * <ul>
+ * <li>{@link #COPY}: plain copy of the cached master</li>
+ * <li>{@link #CLONE}: copy-on-write clone (reflink) where the file system
+ * supports it, otherwise a copy</li>
+ * <li>{@link #SHARED}: no private image, the build runs the cached master
+ * itself</li>
+ * </ul>
+ * Masters are read-only, the private image is made writable. The former
+ * {@link #LINK} mode is treated as {@link #CLONE}: a hard link would share
+ * the master with a build that writes to its image.
+ *
+ * <p>
+ * Copying and cloning save the transfer of the image to the node, not the
+ * copy: reflinks are only made on Linux file systems like btrfs and XFS, on
+ * other file systems and on Windows every hit copies the master, and a miss
+ * costs the hashing copy into the cache on top of it. Only {@link #SHARED}
+ * avoids the copy, for builds that never write to their image.
+ *
+ * <p>
+ * The least recently used images are removed when the cache grows beyond
+ * its size budget.
+ *
+ * <p>
+ * Builds running at the same time on a node stage their images without a
+ * lock. While a build provides its image from a cached master, or runs a
+ * shared master, it is counted as a user of that master; eviction only
+ * removes a master after switching its count from zero to "removing", so a
+ * master is never deleted while it is copied or run. A build needing a
+ * master being removed waits on the monitor of its count. Index and info
+ * files are written to a temporary file and moved into place, so they are
+ * never read half written. Two builds adding the same image both copy it,
+ * and the second move keeps an equal file.
+ *
+ * @author Patrick Lauper
+ */
+public class ImageCache {
+
+	/**
+	 * Do not use the cache, copy the image directly.
+	 */
+	public static final String NONE = "none";
+
+	/**
+	 * Copy the cached image.
+	 */
+	public static final String COPY = "copy";
+
+	/**
+	 * Clone the cached image, copy if cloning is not supported.
+	 */
+	public static final String CLONE = "clone";
+
+	/**
+	 * Former mode hard linking the cached image, kept for saved
+	 * configurations. Clones like {@link #CLONE}.
+	 */
+	public static final String LINK = "link";
+
+	/**
+	 * Run the cached image itself, read-only. The build keeps it in use
+	 * until it is given back with {@link Release}.
+	 */
+	public static final String SHARED = "shared";
+
+	/**
+	 * Name of the cache directory in the root directory of a node.
+	 */
+	public static final String DIRECTORY = "objectstudio-cache";
+
+	private static final String IMAGE = ".img";
+	private static final String USED = ".used";
+	private static final String INFO = ".properties";
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Builds using a cached master on this node, by hash.
+	 */
+	private static final ConcurrentMap<String, Users> USERS = new ConcurrentHashMap<String, Users>();
+
+	private final File images;
+	private final File index;
+	private final String mode;
+	private final long budget;
+
+	/**
+	 * Create a cache in a local directory.
+	 * @param root cache directory
+	 * @param mode {@link #COPY}, {@link #CLONE} or {@link #SHARED}
+	 * @param budget maximum size of all cached images in bytes
+	 */
+	public ImageCache(File root, String mode, long budget) {
+		this.images = new File(root, "images");
+		this.index = new File(root, "index");
+		this.mode = mode;
+		this.budget = budget;
+	}
+
+	/**
+	 * Provide a private copy of an image, or the shared master in
+	 * {@link #SHARED} mode.
+	 * @param source image to be used by the build
+	 * @param target private image file of the build, not created for a
+	 *            shared master
+	 * @return what was done
+	 * @throws IOException if the image can not be cached or provided
+	 */
+	public Staged stage(File source, File target) throws IOException {
+		images.mkdirs();
+		index.mkdirs();
+		if (!images.isDirectory() || !index.isDirectory()) {
+			throw new IOException("Can not create image cache in " + images.getParent());
+		}
+		Staged staged = new Staged();
+		String hash = lookup(source);
+		if (hash != null) {
+			acquire(hash);
+			if (isValid(hash)) {
+				staged.hit = true;
+			} else {
+				// Removed since the lookup
+				release(hash);
+				hash = null;
+			}
+		}
+		if (hash == null) {
+			hash = add(source);
+			staged.bytesCopied += source.length();
+		}
+		try {
+			File master = getImage(hash);
+			if (master.canWrite()) {
+				// Cached by an earlier version
+				master.setReadOnly();
+			}
+			touch(hash);
+			if (SHARED.equals(mode)) {
+				staged.method = SHARED;
+				staged.image = master.getPath();
+			} else {
+				if (target.exists() && !target.delete()) {
+					throw new IOException("Can not delete " + target);
+				}
+				staged.method = provide(master, target);
+				if (!CLONE.equals(staged.method)) {
+					staged.bytesCopied += master.length();
+				}
+			}
+		} finally {
+			// A clone or copy does not need the master any more, a shared one is released after the build
+			if (staged.image == null) {
+				release(hash);
+			}
+		}
+		staged.hash = hash;
+		staged.evicted = evict(hash);
+		return staged;
+	}
+
+	/**
+	 * Find the cached content of a source image.
+	 * @return hash of the content or null if not cached or outdated
+	 */
+	private String lookup(File source) throws IOException {
+		Properties entry = load(getIndexEntry(source));
+		if (entry == null
+				|| !Long.toString(source.length()).equals(entry.getProperty("length"))
+				|| !Long.toString(source.lastModified()).equals(entry.getProperty("modified"))) {
+			return null;
+		}
+		String hash = entry.getProperty("hash");
+		return isValid(hash) ? hash : null;
+	}
+
+	/**
+	 * Check that a cached image still exists and was not changed, e.g.
+	 * through a hard link made by an earlier version.
+	 */
+	private boolean isValid(String hash) throws IOException {
+		File master = getImage(hash);
+		Properties info = load(new File(images, hash + INFO));
+		return info != null
+				&& master.isFile()
+				&& Long.toString(master.length()).equals(info.getProperty("length"))
+				&& Long.toString(master.lastModified()).equals(info.getProperty("modified"));
+	}
+
+	/**
+	 * Copy a source image into the cache, hashing it while copying.
+	 * @return hash of the content, acquired by the caller
+	 */
+	private String add(File source) throws IOException {
+		File tmp = File.createTempFile("add", ".tmp", images);
+		try {
+			String hash = copyAndHash(source, tmp);
+			acquire(hash);
+			boolean added = false;
+			try {
+				install(hash, tmp);
+				Properties entry = new Properties();
+				entry.setProperty("path", source.getAbsolutePath());
+				entry.setProperty("length", Long.toString(source.length()));
+				entry.setProperty("modified", Long.toString(source.lastModified()));
+				entry.setProperty("hash", hash);
+				store(entry, getIndexEntry(source));
+				added = true;
+			} finally {
+				if (!added) {
+					// Otherwise the master could never be evicted
+					release(hash);
+				}
+			}
+			return hash;
+		} finally {
+			if (tmp.exists() && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Move a new copy into place as the master of a hash, unless another
+	 * build did so first.
+	 */
+	private void install(String hash, File tmp) throws IOException {
+		if (isValid(hash)) {
+			return;
+		}
+		File master = getImage(hash);
+		// Windows does not replace a read-only file
+		master.setWritable(true);
+		try {
+			// Atomic, a plain replace deletes the master a build may be opening
+			Files.move(tmp.toPath(), master.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// On Windows a master being copied can not be replaced
+			if (isValid(hash)) {
+				return;
+			}
+			throw e;
+		}
+		master.setReadOnly();
+		Properties info = new Properties();
+		info.setProperty("length", Long.toString(master.length()));
+		info.setProperty("modified", Long.toString(master.lastModified()));
+		store(info, new File(images, hash + INFO));
+	}
+
+	/**
+	 * Count a build as user of a master, waiting while it is removed.
+	 * @throws InterruptedIOException if the build was aborted while waiting
+	 */
+	private static void acquire(String hash) throws InterruptedIOException {
+		Users users = getUsers(hash);
+		synchronized (users) {
+			while (users.count < 0) {
+				try {
+					// Deleting the master takes a moment, then it is added again
+					users.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for cached image " + hash);
+				}
+			}
+			users.count++;
+		}
+	}
+
+	/**
+	 * Stop counting a build as user of a master. A shared master released
+	 * after the node was restarted is not counted any more.
+	 */
+	private static void release(String hash) {
+		Users users = getUsers(hash);
+		synchronized (users) {
+			if (users.count > 0) {
+				users.count--;
+			}
+		}
+	}
+
+	private static Users getUsers(String hash) {
+		Users users = USERS.get(hash);
+		if (users == null) {
+			Users created = new Users();
+			users = USERS.putIfAbsent(hash, created);
+			if (users == null) {
+				users = created;
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * Provide the target from the cached master, writable like the image
+	 * the build would have copied itself.
+	 * @return the mode actually used
+	 */
+	private String provide(File master, File target) throws IOException {
+		String method = COPY;
+		if ((CLONE.equals(mode) || LINK.equals(mode)) && reflink(master, target)) {
+			method = CLONE;
+		} else {
+			Files.copy(master.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		// The copy took over the read-only flag of the master
+		if (!target.setWritable(true)) {
+			throw new IOException("Can not make " + target + " writable");
+		}
+		return method;
+	}
+
+	/**
+	 * Create a copy-on-write clone. Only available through cp on Linux file
+	 * systems like btrfs and XFS.
+	 */
+	private static boolean reflink(File master, File target) {
+		if (File.separatorChar != '/') {
+			return false;
+		}
+		ProcessBuilder pb = new ProcessBuilder("cp", "--reflink=always", master.getAbsolutePath(), target.getAbsolutePath());
+		pb.redirectErrorStream(true);
+		try {
+			Process p = pb.start();
+			p.getInputStream().close();
+			if (p.waitFor() == 0) {
+				return true;
+			}
+		} catch (IOException e) {
+			// No cp available, copy instead
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		target.delete();
+		return false;
+	}
+
+	/**
+	 * Remove least recently used images until the cache fits its budget.
+	 * @param keep image which must not be removed
+	 * @return number of removed images
+	 */
+	private int evict(String keep) {
+		File[] files = images.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		List<File> cached = new ArrayList<File>();
+		long size = 0;
+		for (File f : files) {
+			if (f.getName().endsWith(IMAGE)) {
+				cached.add(f);
+				size += f.length();
+			}
+		}
+		Collections.sort(cached, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = lastUsed(a) - lastUsed(b);
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		int evicted = 0;
+		for (File f : cached) {
+			if (size <= budget) {
+				break;
+			}
+			String hash = f.getName().substring(0, f.getName().length() - IMAGE.length());
+			long length = f.length();
+			if (!hash.equals(keep) && remove(hash)) {
+				size -= length;
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	private long lastUsed(File image) {
+		String name = image.getName();
+		File used = new File(images, name.substring(0, name.length() - IMAGE.length()) + USED);
+		return used.exists() ? used.lastModified() : image.lastModified();
+	}
+
+	/**
+	 * Remove a master unless a build is using it.
+	 */
+	private boolean remove(String hash) {
+		Users users = getUsers(hash);
+		synchronized (users) {
+			if (users.count != 0) {
+				return false;
+			}
+			users.count = -1;
+		}
+		try {
+			File master = getImage(hash);
+			// Windows does not delete a read-only file
+			master.setWritable(true);
+			if (!master.delete()) {
+				master.setReadOnly();
+				return false;
+			}
+			new File(images, hash + INFO).delete();
+			new File(images, hash + USED).delete();
+			return true;
+		} finally {
+			synchronized (users) {
+				users.count = 0;
+				users.notifyAll();
+			}
+		}
+	}
+
+	private void touch(String hash) throws IOException {
+		File used = new File(images, hash + USED);
+		if (!used.exists()) {
+			used.createNewFile();
+		}
+		used.setLastModified(System.currentTimeMillis());
+	}
+
+	private File getImage(String hash) {
+		return new File(images, hash + IMAGE);
+	}
+
+	private File getIndexEntry(File source) {
+		return new File(index, Util.getDigestOf(source.getAbsolutePath()) + INFO);
+	}
+
+	private static String copyAndHash(File source, File target) throws IOException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new DigestInputStream(new FileInputStream(source), md5);
+		try {
+			OutputStream out = new FileOutputStream(target);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read = in.read(buffer);
+				while (read >= 0) {
+					out.write(buffer, 0, read);
+					read = in.read(buffer);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return Util.toHexString(md5.digest());
+	}
+
+	private static Properties load(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties p = new Properties();
+		InputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			// Removed by another build since the check
+			return null;
+		}
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+
+	/**
+	 * Write properties next to the file and move them into place.
+	 */
+	private static void store(Properties p, File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				p.store(out, null);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				// Being read on Windows, the other writer stored the same
+				if (!file.isFile()) {
+					throw e;
+				}
+			}
+		} finally {
+			if (tmp.exists() && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Outcome of staging an image.
+	 */
+	public static final class Staged implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String hash;
+		private String method;
+		private String image;
+		private boolean hit;
+		private long bytesCopied;
+		private int evicted;
+
+		/**
+		 * Get content hash of the image.
+		 * @return MD5 of the image
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Get how the private image was created.
+		 * @return {@link #COPY}, {@link #CLONE} or {@link #SHARED}
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * Get the cached master run by the build, to be given back with
+		 * {@link Release} after the build.
+		 * @return absolute path or null if the build got a private image
+		 */
+		public String getImage() {
+			return image;
+		}
+
+		/**
+		 * Was the image already in the cache.
+		 * @return true on a cache hit
+		 */
+		public boolean isHit() {
+			return hit;
+		}
+
+		/**
+		 * Get number of bytes copied for staging.
+		 * @return bytes copied
+		 */
+		public long getBytesCopied() {
+			return bytesCopied;
+		}
+
+		/**
+		 * Get number of images removed to stay within the budget.
+		 * @return number of removed images
+		 */
+		public int getEvicted() {
+			return evicted;
+		}
+	}
+
+	/**
+	 * Stages the image on the node holding the source image.
+	 */
+	public static final class Stage extends MasterToSlaveFileCallable<Staged> {
+		private static final long serialVersionUID = 1L;
+
+		private final String root;
+		private final String target;
+		private final String mode;
+		private final long budget;
+
+		/**
+		 * Create the callable.
+		 * @param root cache directory on the node
+		 * @param target private image file of the build
+		 * @param mode {@link #COPY}, {@link #CLONE} or {@link #SHARED}
+		 * @param budget maximum size of all cached images in bytes
+		 */
+		public Stage(FilePath root, FilePath target, String mode, long budget) {
+			this.root = root.getRemote();
+			this.target = target.getRemote();
+			this.mode = mode;
+			this.budget = budget;
+		}
+
+		@Override
+		public Staged invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			return new ImageCache(new File(root), mode, budget).stage(f, new File(target));
+		}
+	}
+
+	/**
+	 * Gives back the shared masters of a build, so they can be evicted.
+	 * Invoke it on the cache directory.
+	 */
+	public static final class Release extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> hashes;
+
+		/**
+		 * Create the callable.
+		 * @param hashes hashes of the shared masters, once per use
+		 */
+		public Release(List<String> hashes) {
+			this.hashes = new ArrayList<String>(hashes);
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) {
+			for (String hash : hashes) {
+				release(hash);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Number of builds using a master, -1 while it is removed. Waiting
+	 * builds are notified on its monitor.
+	 */
+	private static final class Users {
+		private int count;
+	}
+}
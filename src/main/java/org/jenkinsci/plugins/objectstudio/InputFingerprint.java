@@ -0,0 +1,203 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Computes a fingerprint over the inputs of an ObjectStudio build in one
+ * call on the node. Invoke it on the workspace root.
+ *
+ * <p>
+ * The fingerprint covers the content of ostudio.ini, the preload, load and
+ * postload scripts and the files matching the source globs, the parameters
+ * of the builder and the build variables. Like in the {@link ImageCache} the
+ * image is identified by its path, size and modification time, hashing
+ * gigabytes for every build would cost more than it saves. A missing file
+ * is part of the fingerprint as well.
+ *
+ * @author Patrick Lauper
+ */
+public class InputFingerprint extends MasterToSlaveFileCallable<InputFingerprint.Result> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String buildPath;
+	private final String image;
+	private final List<String> scripts = new ArrayList<String>();
+	private final List<String> parameters;
+	private final Map<String, String> variables;
+	private final String sourceGlobs;
+
+	/**
+	 * Create the fingerprint computation for a build.
+	 * @param builder build configuration
+	 * @param image image on the node
+	 * @param variables build variables, like the parameters of the build
+	 */
+	public InputFingerprint(ObjectStudioBuilder builder, String image, Map<String, String> variables) {
+		this.buildPath = builder.getBuildPath();
+		this.image = image;
+		this.scripts.add(builder.getOstudioIni());
+		this.scripts.add(builder.getPreloadScript());
+		this.scripts.add(builder.getLoadScript());
+		this.scripts.add(builder.getPostloadScript());
+		this.parameters = builder.getFingerprintParameters();
+		this.variables = new TreeMap<String, String>(variables);
+		this.sourceGlobs = builder.getSourceGlobs();
+	}
+
+	@Override
+	public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+		File workdir = isBlank(buildPath) ? workspace.getAbsoluteFile() : WorkspacePreparation.resolve(workspace, buildPath);
+		MessageDigest md5 = newDigest();
+		for (String parameter : parameters) {
+			update(md5, "parameter", parameter);
+		}
+		for (Map.Entry<String, String> variable : variables.entrySet()) {
+			update(md5, "variable", variable.getKey() + "=" + variable.getValue());
+		}
+		File imageFile = WorkspacePreparation.resolve(workdir, image);
+		update(md5, "image", imageFile.getPath() + " " + imageFile.length() + " " + imageFile.lastModified());
+		for (String script : scripts) {
+			if (!isBlank(script)) {
+				update(md5, "script", script + " " + hash(WorkspacePreparation.resolve(workdir, script)));
+			}
+		}
+		int sources = 0;
+		if (!isBlank(sourceGlobs)) {
+			List<String> names = new ArrayList<String>();
+			for (FilePath source : new FilePath(workdir).list(sourceGlobs)) {
+				names.add(source.getRemote());
+			}
+			// The order of the directory listing is not defined
+			Collections.sort(names);
+			for (String name : names) {
+				update(md5, "source", name.substring(workdir.getPath().length()) + " " + hash(new File(name)));
+			}
+			sources = names.size();
+		}
+		return new Result(Util.toHexString(md5.digest()), workdir.getPath(), sources);
+	}
+
+	private static void update(MessageDigest md5, String kind, String value) {
+		md5.update((kind + " " + value + "\n").getBytes(UTF8));
+	}
+
+	/**
+	 * Hash of the content of a file.
+	 */
+	private static String hash(File file) throws IOException {
+		if (!file.isFile()) {
+			return "missing";
+		}
+		MessageDigest md5 = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = in.read(buffer);
+			while (read >= 0) {
+				md5.update(buffer, 0, read);
+				read = in.read(buffer);
+			}
+		} finally {
+			in.close();
+		}
+		return Util.toHexString(md5.digest());
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static boolean isBlank(String s) {
+		return s == null || s.trim().isEmpty();
+	}
+
+	/**
+	 * Fingerprint of the inputs and where they were found.
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String fingerprint;
+		private final String workdir;
+		private final int sources;
+
+		Result(String fingerprint, String workdir, int sources) {
+			this.fingerprint = fingerprint;
+			this.workdir = workdir;
+			this.sources = sources;
+		}
+
+		/**
+		 * Get the fingerprint of the inputs.
+		 * @return hex encoded hash
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Get the build directory the inputs were read from.
+		 * @return absolute path on the node
+		 */
+		public String getWorkdir() {
+			return workdir;
+		}
+
+		/**
+		 * Get the number of files matching the source globs.
+		 * @return number of source files
+		 */
+		public int getSources() {
+			return sources;
+		}
+	}
+}
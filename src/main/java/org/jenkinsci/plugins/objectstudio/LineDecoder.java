@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes lines for pattern matching without a String per line.
+ *
+ * <p>
+ * The characters are decoded with the given charset into a buffer that is
+ * reused for the next line, so the returned sequence is only valid until
+ * the next call. A trailing carriage return is dropped.
+ *
+ * @author Patrick Lauper
+ */
+final class LineDecoder {
+
+	private final CharsetDecoder decoder;
+	private CharBuffer chars = CharBuffer.allocate(256);
+	private byte[] wrapped;
+	private ByteBuffer bytes;
+
+	/**
+	 * Create a decoder replacing invalid input.
+	 * @param charset encoding of the lines
+	 */
+	LineDecoder(Charset charset) {
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Decode the first bytes of a buffer.
+	 * @param line bytes of the line, usually the same buffer every call
+	 * @param length number of bytes in the line
+	 * @return characters, valid until the next call
+	 */
+	CharSequence decode(byte[] line, int length) {
+		int end = length;
+		if (end > 0 && line[end - 1] == '\r') {
+			end--;
+		}
+		if (line != wrapped) {
+			wrapped = line;
+			bytes = ByteBuffer.wrap(line);
+		}
+		int needed = (int) Math.ceil(end * (double) decoder.maxCharsPerByte()) + 1;
+		if (chars.capacity() < needed) {
+			chars = CharBuffer.allocate(Math.max(needed, chars.capacity() * 2));
+		}
+		bytes.limit(end).position(0);
+		chars.clear();
+		decoder.reset();
+		decoder.decode(bytes, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		return chars;
+	}
+}
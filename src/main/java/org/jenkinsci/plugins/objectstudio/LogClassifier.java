@@ -0,0 +1,264 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Counts errors, warnings and walkbacks in the Transcript while it is
+ * copied to the build log.
+ *
+ * <p>
+ * The follower writes every chunk of the log to this stream as well. Each
+ * line is matched against the fatal, error and warning patterns, the first
+ * one that matches decides the severity. A fatal line also counts as an
+ * error. {@link #check()} is asked after every poll, so a build that is
+ * already lost can be stopped long before ObjectStudio exits: after a
+ * number of errors, or on the first walkback.
+ *
+ * <p>
+ * The classifier is serializable with the counts collected so far, the
+ * matchers are compiled again after deserialization.
+ *
+ * @author Patrick Lauper
+ */
+public class LogClassifier extends OutputStream implements Serializable {
+
+	/**
+	 * Default pattern of an error line. SUnit results like
+	 * <code>Error: Class&gt;&gt;test</code> are left to the test report.
+	 */
+	public static final String DEFAULT_ERROR = "^\\s*(?:Error|ERROR)\\b(?!:? \\S+>>)";
+
+	/**
+	 * Default pattern of a warning line.
+	 */
+	public static final String DEFAULT_WARNING = "^\\s*(?:Warning|WARNING)\\b";
+
+	/**
+	 * Default pattern of a line only written by an unhandled exception.
+	 */
+	public static final String DEFAULT_FATAL = "(?i)\\bwalkback\\b|^Unhandled exception";
+
+	/**
+	 * Lines are cut after this many bytes before matching.
+	 */
+	static final int MAX_LINE = 8 * 1024;
+
+	/**
+	 * Characters of a matching line kept for the failure message.
+	 */
+	static final int MAX_MESSAGE = 200;
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[] patterns;
+	private final String charset;
+	private final int maxErrors;
+	private final boolean abortOnFatal;
+	private byte[] line = new byte[256];
+	private int length;
+	private long errors;
+	private long warnings;
+	private long fatals;
+	private String lastError;
+	private String firstFatal;
+	private transient Matcher error;
+	private transient Matcher warning;
+	private transient Matcher fatal;
+	private transient LineDecoder decoder;
+
+	/**
+	 * Create a classifier. A blank pattern disables its severity.
+	 * @param error pattern of an error line
+	 * @param warning pattern of a warning line
+	 * @param fatal pattern of a walkback line
+	 * @param maxErrors errors after which the build is stopped, 0 for no limit
+	 * @param abortOnFatal stop the build on the first walkback
+	 * @param charset encoding of the Transcript
+	 * @throws PatternSyntaxException if a pattern is invalid
+	 */
+	public LogClassifier(String error, String warning, String fatal, int maxErrors, boolean abortOnFatal, Charset charset) {
+		this.patterns = new String[] {error, warning, fatal};
+		this.charset = charset.name();
+		this.maxErrors = maxErrors;
+		this.abortOnFatal = abortOnFatal;
+		init();
+	}
+
+	/**
+	 * Check a pattern entered in the configuration.
+	 * @param pattern regular expression
+	 * @return error message or null if the pattern can be used
+	 */
+	public static String checkPattern(String pattern) {
+		if (pattern == null || pattern.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			Pattern.compile(pattern);
+		} catch (PatternSyntaxException e) {
+			return e.getDescription();
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of error lines so far, walkbacks included.
+	 * @return errors
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Get the number of warning lines so far.
+	 * @return warnings
+	 */
+	public long getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * Get the number of walkback lines so far.
+	 * @return walkbacks
+	 */
+	public long getFatals() {
+		return fatals;
+	}
+
+	/**
+	 * Check the abort policy against the lines seen so far.
+	 * @return reason to stop the build, or null
+	 */
+	public String check() {
+		if (abortOnFatal && firstFatal != null) {
+			return "Walkback in the log: " + firstFatal;
+		}
+		if (maxErrors > 0 && errors >= maxErrors) {
+			return errors + " errors in the log, the limit is " + maxErrors + ". Last error: " + lastError;
+		}
+		return null;
+	}
+
+	@Override
+	public void write(int b) {
+		if (b == '\n') {
+			endLine();
+		} else if (length < MAX_LINE) {
+			if (length == line.length) {
+				line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+			}
+			line[length++] = (byte) b;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		int end = off + len;
+		int lineStart = off;
+		for (int i = off; i < end; i++) {
+			if (b[i] == '\n') {
+				append(b, lineStart, i - lineStart);
+				endLine();
+				lineStart = i + 1;
+			}
+		}
+		append(b, lineStart, end - lineStart);
+	}
+
+	/**
+	 * Match an unterminated last line. Call this once the log is complete.
+	 */
+	@Override
+	public void close() {
+		if (length > 0) {
+			endLine();
+		}
+	}
+
+	private void init() {
+		error = compile(patterns[0]);
+		warning = compile(patterns[1]);
+		fatal = compile(patterns[2]);
+		decoder = new LineDecoder(Charset.forName(charset));
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	private void append(byte[] b, int off, int len) {
+		int copy = Math.min(len, MAX_LINE - length);
+		if (copy <= 0) {
+			return;
+		}
+		if (length + copy > line.length) {
+			line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + copy), MAX_LINE));
+		}
+		System.arraycopy(b, off, line, length, copy);
+		length += copy;
+	}
+
+	private void endLine() {
+		// Most lines match no pattern, they are decoded into a reused buffer
+		CharSequence text = decoder.decode(line, length);
+		length = 0;
+		if (matches(fatal, text)) {
+			fatals++;
+			errors++;
+			lastError = message(text);
+			if (firstFatal == null) {
+				firstFatal = lastError;
+			}
+		} else if (matches(error, text)) {
+			errors++;
+			lastError = message(text);
+		} else if (matches(warning, text)) {
+			warnings++;
+		}
+	}
+
+	private static boolean matches(Matcher matcher, CharSequence text) {
+		return matcher != null && matcher.reset(text).find();
+	}
+
+	private static String message(CharSequence text) {
+		String message = text.toString().trim();
+		return message.length() > MAX_MESSAGE ? message.substring(0, MAX_MESSAGE) + "..." : message;
+	}
+
+	private static Matcher compile(String pattern) {
+		return pattern == null || pattern.trim().isEmpty() ? null : Pattern.compile(pattern).matcher("");
+	}
+}
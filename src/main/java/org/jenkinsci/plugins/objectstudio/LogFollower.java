@@ -0,0 +1,243 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.UUID;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Follows the ObjectStudio log on the node the log file lives on.
+ *
+ * <p>
+ * Every poll runs a {@link LogTailer} next to the file through
+ * {@link FilePath#act(hudson.FilePath.FileCallable)}, so only the lines
+ * written since the last poll travel over the remoting channel, batched into
+ * chunks of at most {@link #CHUNK_SIZE} bytes. The tailer state travels with
+ * each call, only the watch service of the log directory is kept on the node
+ * until {@link #finish(OutputStream)}.
+ *
+ * <p>
+ * If nothing new has been written, the call waits on the node for the log to
+ * change (see {@link LogWatcher}) and returns as soon as it does, so new
+ * lines show up without a fixed polling delay.
+ *
+ * <p>
+ * The follower is serializable, so the Pipeline step can keep its position
+ * in the log across a restart of Jenkins. The log file itself is bound to a
+ * channel and is not serialized, see {@link #LogFollower(FilePath, LogFollower)}.
+ *
+ * @author Patrick Lauper
+ */
+public class LogFollower implements Serializable {
+
+	/**
+	 * Maximum number of log bytes read by one remote call.
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Maximum number of chunks copied by one call of
+	 * {@link #follow(OutputStream, long)}. While the log grows faster than it
+	 * is read, the caller still gets to check on the process in between.
+	 */
+	static final int MAX_CHUNKS = 8;
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient FilePath log;
+	private final String id;
+	private LogTailer tailer = new LogTailer();
+	private boolean created;
+	private long lines;
+
+	/**
+	 * Create a follower for a log file.
+	 * @param log ObjectStudio log file
+	 */
+	public LogFollower(FilePath log) {
+		this.log = log;
+		this.id = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Create a follower continuing at the position of another one, e.g. one
+	 * that was deserialized or whose channel to the node was closed.
+	 * @param log ObjectStudio log file
+	 * @param previous follower of the same file
+	 */
+	public LogFollower(FilePath log, LogFollower previous) {
+		this.log = log;
+		this.id = previous.id;
+		this.tailer = previous.tailer;
+		this.created = previous.created;
+		this.lines = previous.lines;
+	}
+
+	/**
+	 * Copy the lines written since the last call, at most
+	 * {@link #MAX_CHUNKS} chunks. If there are none, wait up to maxWait
+	 * milliseconds for new lines.
+	 * @param out receives the new lines
+	 * @param maxWait maximum time to wait for new lines in milliseconds
+	 * @return number of bytes copied
+	 * @throws IOException on read or write errors
+	 * @throws InterruptedException if the remote call was interrupted
+	 */
+	public long follow(OutputStream out, long maxWait) throws IOException, InterruptedException {
+		return poll(out, maxWait, false);
+	}
+
+	/**
+	 * Copy the remaining lines including an unterminated last line and close
+	 * the watch service on the node. Call this once ObjectStudio has
+	 * finished, the log does not grow anymore.
+	 * @param out receives the remaining lines
+	 * @return number of bytes copied
+	 * @throws IOException on read or write errors
+	 * @throws InterruptedException if the remote call was interrupted
+	 */
+	public long finish(OutputStream out) throws IOException, InterruptedException {
+		return poll(out, 0, true);
+	}
+
+	/**
+	 * How often the log was truncated or recreated while following it.
+	 * @return number of restarts
+	 */
+	public int getRestarts() {
+		return tailer.getRestarts();
+	}
+
+	/**
+	 * Whether ObjectStudio has created the log file yet, as seen by the last
+	 * poll.
+	 * @return true if the log file exists
+	 */
+	public boolean isCreated() {
+		return created;
+	}
+
+	/**
+	 * Number of complete lines copied so far.
+	 * @return number of lines
+	 */
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * Get the followed log file.
+	 * @return log file
+	 */
+	public FilePath getLog() {
+		return log;
+	}
+
+	private long poll(OutputStream out, long maxWait, boolean last) throws IOException, InterruptedException {
+		long bytes = 0;
+		int chunks = 0;
+		Chunk chunk;
+		do {
+			chunk = log.act(new ReadChunk(id, tailer, maxWait, last));
+			tailer = chunk.tailer;
+			created = chunk.created;
+			out.write(chunk.data);
+			countLines(chunk.data);
+			bytes += chunk.data.length;
+			chunks++;
+		} while (chunk.more && (last || chunks < MAX_CHUNKS));
+		return bytes;
+	}
+
+	private void countLines(byte[] data) {
+		for (byte b : data) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+	}
+
+	/**
+	 * New lines of the log and the tailer state after reading them.
+	 */
+	private static final class Chunk implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] data;
+		private final LogTailer tailer;
+		private final boolean more;
+		private final boolean created;
+
+		Chunk(byte[] data, LogTailer tailer, boolean more, boolean created) {
+			this.data = data;
+			this.tailer = tailer;
+			this.more = more;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Reads the next chunk of the log on the node.
+	 */
+	private static final class ReadChunk extends MasterToSlaveFileCallable<Chunk> {
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+		private final LogTailer tailer;
+		private final long maxWait;
+		private final boolean last;
+
+		ReadChunk(String id, LogTailer tailer, long maxWait, boolean last) {
+			this.id = id;
+			this.tailer = tailer;
+			this.maxWait = maxWait;
+			this.last = last;
+		}
+
+		@Override
+		public Chunk invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			LogWatcher watcher = new LogWatcher(f, id);
+			tailer.poll(f, out, CHUNK_SIZE);
+			if (out.size() == 0 && maxWait > 0 && watcher.await(maxWait)) {
+				tailer.poll(f, out, CHUNK_SIZE);
+			}
+			boolean more = f.length() > tailer.getOffset();
+			if (last && !more) {
+				tailer.flush(out);
+				LogWatcher.release(id);
+			}
+			return new Chunk(out.toByteArray(), tailer, more, f.exists());
+		}
+	}
+}
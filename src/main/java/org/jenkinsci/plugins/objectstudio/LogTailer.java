@@ -0,0 +1,240 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+/**
+ * Follows a growing Transcript log by byte offset.
+ *
+ * <p>
+ * Each poll seeks to the remembered offset and copies only the bytes written
+ * since the last poll. Only complete lines are passed on, an unterminated
+ * trailing line is kept until its newline arrives. Memory use is bounded by
+ * the read buffer and {@link #MAX_LINE}, independent of the log size.
+ *
+ * <p>
+ * If the log gets shorter than the offset, or its first bytes change, the
+ * file was truncated or recreated and tailing restarts at the beginning.
+ *
+ * @author Patrick Lauper
+ */
+public class LogTailer implements Serializable {
+
+	/**
+	 * Size of the read buffer.
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Longest line kept back while waiting for its newline. Longer lines are
+	 * passed on in pieces.
+	 */
+	static final int MAX_LINE = 64 * 1024;
+
+	/**
+	 * Number of leading bytes remembered to detect a recreated file.
+	 */
+	static final int HEAD_SIZE = 256;
+
+	private static final long serialVersionUID = 1L;
+
+	private long offset;
+	private byte[] head = new byte[0];
+	private byte[] partial = new byte[0];
+	private int partialLength;
+	private int restarts;
+
+	/**
+	 * Copy all complete lines written to the file since the last poll.
+	 *
+	 * @param file
+	 *            log file, may not exist yet
+	 * @param out
+	 *            receives the new lines
+	 * @return number of bytes written to out
+	 * @throws IOException
+	 *             on read or write errors
+	 */
+	public long poll(File file, OutputStream out) throws IOException {
+		return poll(file, out, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Copy complete lines written to the file since the last poll, but read
+	 * at most about limit bytes. The rest is left for the next poll.
+	 *
+	 * @param file
+	 *            log file, may not exist yet
+	 * @param out
+	 *            receives the new lines
+	 * @param limit
+	 *            number of bytes to read, rounded up to the read buffer
+	 * @return number of bytes written to out
+	 * @throws IOException
+	 *             on read or write errors
+	 */
+	public long poll(File file, OutputStream out, long limit) throws IOException {
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			// Not yet created by ObjectStudio
+			return 0;
+		}
+		try {
+			if (raf.length() < offset || !sameHead(raf)) {
+				restart();
+			}
+			if (raf.length() == offset) {
+				return 0;
+			}
+			raf.seek(offset);
+			return copyLines(Channels.newInputStream(raf.getChannel()), out, limit);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Pass on an unterminated trailing line. Call this once the process
+	 * writing the log has finished.
+	 *
+	 * @param out
+	 *            receives the remaining bytes
+	 * @return number of bytes written to out
+	 * @throws IOException
+	 *             on write errors
+	 */
+	public long flush(OutputStream out) throws IOException {
+		int length = partialLength;
+		if (length > 0) {
+			out.write(partial, 0, length);
+			partialLength = 0;
+		}
+		return length;
+	}
+
+	/**
+	 * Byte offset of the next poll.
+	 *
+	 * @return offset in the log file
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * How often tailing restarted because the log was truncated or recreated.
+	 *
+	 * @return number of restarts
+	 */
+	public int getRestarts() {
+		return restarts;
+	}
+
+	private void restart() {
+		offset = 0;
+		head = new byte[0];
+		partialLength = 0;
+		restarts++;
+	}
+
+	/**
+	 * Check whether the file still starts with the bytes seen before.
+	 */
+	private boolean sameHead(RandomAccessFile raf) throws IOException {
+		if (head.length == 0) {
+			return true;
+		}
+		byte[] current = new byte[head.length];
+		raf.seek(0);
+		raf.readFully(current);
+		return Arrays.equals(head, current);
+	}
+
+	private long copyLines(InputStream in, OutputStream out, long limit) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long written = 0;
+		long remaining = limit;
+		int read = in.read(buffer);
+		while (read > 0) {
+			rememberHead(buffer, read);
+			offset += read;
+			remaining -= read;
+			written += writeLines(buffer, read, out);
+			read = remaining > 0 ? in.read(buffer) : -1;
+		}
+		return written;
+	}
+
+	private void rememberHead(byte[] buffer, int read) {
+		if (head.length < HEAD_SIZE && offset == head.length) {
+			int length = Math.min(HEAD_SIZE, head.length + read);
+			byte[] extended = Arrays.copyOf(head, length);
+			System.arraycopy(buffer, 0, extended, head.length, length - head.length);
+			head = extended;
+		}
+	}
+
+	/**
+	 * Write everything up to the last newline in buffer, keep the rest.
+	 */
+	private long writeLines(byte[] buffer, int length, OutputStream out) throws IOException {
+		int end = length;
+		while (end > 0 && buffer[end - 1] != '\n') {
+			end--;
+		}
+		long written = 0;
+		if (end > 0) {
+			written += flush(out);
+			out.write(buffer, 0, end);
+			written += end;
+		}
+		if (partialLength + length - end > MAX_LINE) {
+			written += flush(out);
+		}
+		keep(buffer, end, length - end);
+		return written;
+	}
+
+	private void keep(byte[] buffer, int start, int length) {
+		if (length == 0) {
+			return;
+		}
+		if (partial.length < partialLength + length) {
+			partial = Arrays.copyOf(partial, Math.max(partialLength + length, partial.length * 2));
+		}
+		System.arraycopy(buffer, start, partial, partialLength, length);
+		partialLength += length;
+	}
+}
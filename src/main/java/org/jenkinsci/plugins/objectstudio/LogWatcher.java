@@ -0,0 +1,273 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a log file to change.
+ *
+ * <p>
+ * Registers the directory of the file with a {@link WatchService} so a
+ * write wakes the waiting thread within milliseconds. Some file systems,
+ * network shares in particular, do not deliver events or deliver them late,
+ * so the file size and modification time are also checked with a polling
+ * interval that backs off while nothing happens.
+ *
+ * <p>
+ * A watcher created with an id shares one {@link WatchService} with the
+ * earlier watchers of that id, so a follower polling every few seconds does
+ * not register its directory again for every poll. The service is closed by
+ * {@link #release(String)} once the log is finished, or after
+ * {@link #IDLE_TIMEOUT} without use if its follower went away.
+ *
+ * @author Patrick Lauper
+ */
+public class LogWatcher {
+
+	/**
+	 * First polling interval without change notifications.
+	 */
+	static final long MIN_INTERVAL = 25;
+
+	/**
+	 * Longest polling interval without change notifications.
+	 */
+	static final long MAX_INTERVAL = 1000;
+
+	/**
+	 * First polling interval while change notifications are delivered.
+	 */
+	static final long MIN_WATCHED_INTERVAL = 250;
+
+	/**
+	 * Longest polling interval while change notifications are delivered.
+	 */
+	static final long MAX_WATCHED_INTERVAL = 5000;
+
+	/**
+	 * Milliseconds after which a shared watch service no longer used is
+	 * closed.
+	 */
+	static final long IDLE_TIMEOUT = 60 * 60 * 1000;
+
+	/**
+	 * Watch services shared by the watchers of one follower, by id.
+	 */
+	private static final ConcurrentMap<String, Watch> WATCHES = new ConcurrentHashMap<String, Watch>();
+
+	private final File file;
+	private final String id;
+	private final long length;
+	private final long modified;
+
+	/**
+	 * Create a watcher, remembering the current state of the file.
+	 * @param file log file, may not exist yet
+	 */
+	public LogWatcher(File file) {
+		this(file, null);
+	}
+
+	/**
+	 * Create a watcher sharing its watch service with the earlier watchers
+	 * of the same id, remembering the current state of the file.
+	 * @param file log file, may not exist yet
+	 * @param id identifies the follower, null for a service of its own
+	 */
+	public LogWatcher(File file, String id) {
+		this.file = file;
+		this.id = id;
+		this.length = file.length();
+		this.modified = file.lastModified();
+	}
+
+	/**
+	 * Close the watch service shared by the watchers of an id.
+	 * @param id identifies the follower, null if it has no shared service
+	 */
+	public static void release(String id) {
+		if (id == null) {
+			return;
+		}
+		Watch watch = WATCHES.remove(id);
+		if (watch != null) {
+			close(watch.service);
+		}
+	}
+
+	/**
+	 * Wait until the file changes or the timeout expires.
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return true if the file changed
+	 * @throws InterruptedException if the waiting thread was interrupted
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		WatchService watcher = id == null ? openWatcher() : sharedWatcher();
+		try {
+			long interval = watcher == null ? MIN_INTERVAL : MIN_WATCHED_INTERVAL;
+			long maxInterval = watcher == null ? MAX_INTERVAL : MAX_WATCHED_INTERVAL;
+			// Also catches changes between reading the file and registering
+			while (!changed()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				long wait = Math.min(interval, remaining);
+				if (watcher == null) {
+					Thread.sleep(wait);
+				} else {
+					drain(watcher.poll(wait, TimeUnit.MILLISECONDS));
+				}
+				interval = Math.min(interval * 2, maxInterval);
+			}
+			return true;
+		} finally {
+			if (id == null) {
+				close(watcher);
+			}
+		}
+	}
+
+	/**
+	 * Check whether the file has changed since the watcher was created.
+	 * @return true if length or modification time differ
+	 */
+	public boolean changed() {
+		return file.length() != length || file.lastModified() != modified;
+	}
+
+	/**
+	 * Get the watch service of the id, registering the directory on first
+	 * use. Events left from earlier calls are dropped.
+	 */
+	private WatchService sharedWatcher() {
+		File dir = file.getAbsoluteFile().getParentFile();
+		long now = System.currentTimeMillis();
+		expire(now);
+		Watch watch = WATCHES.get(id);
+		if (watch != null && !watch.dir.equals(dir)) {
+			release(id);
+			watch = null;
+		}
+		if (watch == null) {
+			WatchService service = openWatcher();
+			if (service == null) {
+				return null;
+			}
+			watch = new Watch(dir, service);
+			Watch existing = WATCHES.putIfAbsent(id, watch);
+			if (existing != null) {
+				close(service);
+				watch = existing;
+			}
+		}
+		watch.used = now;
+		for (WatchKey key = watch.service.poll(); key != null; key = watch.service.poll()) {
+			drain(key);
+		}
+		return watch.service;
+	}
+
+	/**
+	 * Close the shared watch services of followers that went away without
+	 * finishing.
+	 */
+	private static void expire(long now) {
+		for (Iterator<Map.Entry<String, Watch>> it = WATCHES.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Watch> entry = it.next();
+			if (now - entry.getValue().used > IDLE_TIMEOUT && WATCHES.remove(entry.getKey(), entry.getValue())) {
+				close(entry.getValue().service);
+			}
+		}
+	}
+
+	private WatchService openWatcher() {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir == null || !dir.isDirectory()) {
+			return null;
+		}
+		WatchService watcher = null;
+		try {
+			Path path = dir.toPath();
+			watcher = FileSystems.getDefault().newWatchService();
+			path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			return watcher;
+		} catch (IOException e) {
+			close(watcher);
+			return null;
+		} catch (UnsupportedOperationException e) {
+			close(watcher);
+			return null;
+		}
+	}
+
+	/**
+	 * Consume the events of a key so it can signal again. Which file
+	 * changed does not matter, {@link #changed()} decides.
+	 */
+	private static void drain(WatchKey key) {
+		if (key != null) {
+			key.pollEvents();
+			key.reset();
+		}
+	}
+
+	private static void close(WatchService watcher) {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Watch service registered for the directory of a followed log.
+	 */
+	private static final class Watch {
+		private final File dir;
+		private final WatchService service;
+		private volatile long used = System.currentTimeMillis();
+
+		Watch(File dir, WatchService service) {
+			this.dir = dir;
+			this.service = service;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Memory usage reported by VisualWorks when started with -xq.
+ *
+ * <p>
+ * The engine writes the report to its console output when it exits. The
+ * standard and error output of the process are written to streams from
+ * {@link #newStream(Charset)} and every line is matched against the
+ * patterns of the values below. The report is plain text for people, so the
+ * patterns are lenient: a label, an optional ':' or '=' and a number with an
+ * optional unit. Sizes are kept in bytes, times in milliseconds. If a value
+ * shows up more than once the largest one is kept.
+ *
+ * @author Patrick Lauper
+ */
+public class MemoryReport {
+
+	/**
+	 * Largest size of the object memory in bytes.
+	 */
+	public static final String PEAK_HEAP = "Peak heap";
+
+	/**
+	 * Size of old space in bytes.
+	 */
+	public static final String OLD_SPACE = "Old space";
+
+	/**
+	 * Size of new space in bytes.
+	 */
+	public static final String NEW_SPACE = "New space";
+
+	/**
+	 * Number of scavenges of new space.
+	 */
+	public static final String SCAVENGES = "Scavenges";
+
+	/**
+	 * Number of global garbage collections.
+	 */
+	public static final String GLOBAL_GCS = "Global GCs";
+
+	/**
+	 * Time spent in garbage collection in milliseconds.
+	 */
+	public static final String GC_TIME = "GC time (ms)";
+
+	/**
+	 * Lines are cut after this many bytes before matching, report lines are
+	 * short.
+	 */
+	static final int MAX_LINE = 1024;
+
+	private static final String SIZE = "\\s*[:=]?\\s*(?<value>\\d[\\d,]*(?:\\.\\d+)?)\\s*(?<unit>[kmg]?b(?:ytes)?|[kmg])?\\b";
+	private static final String COUNT = "\\s*[:=]?\\s*(?<value>\\d[\\d,]*)";
+	private static final String TIME = "\\s*[:=]?\\s*(?<value>\\d[\\d,]*(?:\\.\\d+)?)\\s*(?<unit>ms|msec|s|sec|seconds)?\\b";
+
+	private static final Map<String, Pattern> PATTERNS = new LinkedHashMap<String, Pattern>();
+
+	static {
+		PATTERNS.put(PEAK_HEAP, compile("(?:peak|max(?:imum)?|high[- ]?water(?:\\s*mark)?)\\s*(?:heap|memory|object\\s*memory)(?:\\s*(?:size|usage|used))?" + SIZE));
+		PATTERNS.put(OLD_SPACE, compile("old\\s*space(?:\\s*(?:size|used))?" + SIZE));
+		PATTERNS.put(NEW_SPACE, compile("(?:new\\s*space|eden)(?:\\s*(?:size|used))?" + SIZE));
+		PATTERNS.put(SCAVENGES, compile("(?:number\\s*of\\s*)?scavenges?(?:\\s*count)?" + COUNT));
+		PATTERNS.put(GLOBAL_GCS, compile("(?:number\\s*of\\s*)?(?:global\\s*(?:gcs?|garbage\\s*collections?)|compacting\\s*gcs?|compactions)(?:\\s*count)?" + COUNT));
+		PATTERNS.put(GC_TIME, compile("(?:gc|garbage\\s*collection|scavenge)\\s*time" + TIME));
+	}
+
+	private final Map<String, Long> values = new LinkedHashMap<String, Long>();
+	private final List<Lines> streams = new ArrayList<Lines>();
+
+	/**
+	 * Get a stream recognizing report lines. Use one stream per output of the
+	 * process, so their lines do not get mixed.
+	 * @param charset encoding of the output
+	 * @return stream to write the output to
+	 */
+	public synchronized OutputStream newStream(Charset charset) {
+		Lines stream = new Lines(charset);
+		streams.add(stream);
+		return stream;
+	}
+
+	/**
+	 * Match the unterminated last lines of all streams. Call this once the
+	 * process has ended.
+	 */
+	public void finish() {
+		List<Lines> all;
+		synchronized (this) {
+			all = new ArrayList<Lines>(streams);
+		}
+		for (Lines stream : all) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Match one line of output.
+	 * @param line text without line end
+	 */
+	public void parse(CharSequence line) {
+		for (Map.Entry<String, Pattern> pattern : PATTERNS.entrySet()) {
+			Matcher matcher = pattern.getValue().matcher(line);
+			if (matcher.find()) {
+				put(pattern.getKey(), toLong(pattern.getKey(), matcher));
+			}
+		}
+	}
+
+	/**
+	 * Get the values found so far.
+	 * @return values by name, in the order of the constants
+	 */
+	public synchronized Map<String, Long> getValues() {
+		Map<String, Long> ordered = new LinkedHashMap<String, Long>();
+		for (String name : PATTERNS.keySet()) {
+			if (values.containsKey(name)) {
+				ordered.put(name, values.get(name));
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Get a value.
+	 * @param name one of the constants
+	 * @return value or null if it was not reported
+	 */
+	public synchronized Long getValue(String name) {
+		return values.get(name);
+	}
+
+	private synchronized void put(String name, long value) {
+		Long old = values.get(name);
+		if (old == null || old < value) {
+			values.put(name, value);
+		}
+	}
+
+	private static long toLong(String name, Matcher matcher) {
+		double value = Double.parseDouble(matcher.group("value").replace(",", ""));
+		String unit = group(matcher, "unit");
+		if (GC_TIME.equals(name)) {
+			return (long) (unit.startsWith("s") ? value * 1000 : value);
+		}
+		if (unit.startsWith("k")) {
+			value *= 1024;
+		} else if (unit.startsWith("m")) {
+			value *= 1024 * 1024;
+		} else if (unit.startsWith("g")) {
+			value *= 1024 * 1024 * 1024;
+		}
+		return (long) value;
+	}
+
+	private static String group(Matcher matcher, String group) {
+		try {
+			String value = matcher.group(group);
+			return value == null ? "" : value.toLowerCase();
+		} catch (IllegalArgumentException e) {
+			// Pattern without this group
+			return "";
+		}
+	}
+
+	private static Pattern compile(String pattern) {
+		return Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * Splits one output of the process into lines.
+	 */
+	private final class Lines extends OutputStream {
+		private final LineDecoder decoder;
+		private final byte[] line = new byte[MAX_LINE];
+		private int length;
+
+		Lines(Charset charset) {
+			this.decoder = new LineDecoder(charset);
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			if (b == '\n') {
+				endLine();
+			} else if (length < MAX_LINE) {
+				line[length++] = (byte) b;
+			}
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			int end = off + len;
+			int lineStart = off;
+			for (int i = off; i < end; i++) {
+				if (b[i] == '\n') {
+					append(b, lineStart, i - lineStart);
+					endLine();
+					lineStart = i + 1;
+				}
+			}
+			append(b, lineStart, end - lineStart);
+		}
+
+		@Override
+		public synchronized void close() {
+			if (length > 0) {
+				endLine();
+			}
+		}
+
+		private void append(byte[] b, int off, int len) {
+			int copy = Math.min(len, MAX_LINE - length);
+			if (copy > 0) {
+				System.arraycopy(b, off, line, length, copy);
+				length += copy;
+			}
+		}
+
+		private void endLine() {
+			CharSequence text = decoder.decode(line, length);
+			length = 0;
+			parse(text);
+		}
+	}
+}
@@ -23,7 +23,7 @@
 
 package org.jenkinsci.plugins.objectstudio;
 
-import hudson.model.AbstractBuild;
+import hudson.model.Run;
 import hudson.tasks.Builder;
 import hudson.util.ArgumentListBuilder;
 
@@ -35,5 +35,14 @@ import hudson.util.ArgumentListBuilder;
  */
 public interface ObjectStudio {
 	ArgumentListBuilder getCommandline(
-			AbstractBuild<?, ?> build, Builder builder, ObjectStudioRunner objectStudioRunner);
+			Run<?, ?> build, Builder builder, ObjectStudioRunner objectStudioRunner);
+
+	/**
+	 * Parse the configuration into the command line template, see
+	 * {@link ObjectStudioBuilder#getCommandTemplate()}.
+	 * @param builder ObjectStudio Builder
+	 * @return template with slots for the values of a run
+	 * @throws IllegalArgumentException if a parameter can not be parsed
+	 */
+	CommandTemplate compile(ObjectStudioBuilder builder);
 }
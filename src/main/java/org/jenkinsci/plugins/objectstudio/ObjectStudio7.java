@@ -23,7 +23,7 @@
 
 package org.jenkinsci.plugins.objectstudio;
 
-import hudson.model.AbstractBuild;
+import hudson.model.Run;
 import hudson.tasks.Builder;
 import hudson.util.ArgumentListBuilder;
 
@@ -38,44 +38,50 @@ public class ObjectStudio7 implements ObjectStudio {
 	/**
 	 * Create ObjectStudio 7 Commandline.
 	 * 
-	 * @param build Jenkins build instance
+	 * @param build Jenkins build or Pipeline run
 	 * @param builder ObjectStudio Builder
 	 * @param runner ObjectStudio Runner
 	 * @return ArgumentListBuilder
 	 */
 	@Override
 	public ArgumentListBuilder getCommandline(
-			AbstractBuild<?, ?> build, Builder builder, ObjectStudioRunner runner) {
+			Run<?, ?> build, Builder builder, ObjectStudioRunner runner) {
 		
 		ObjectStudioBuilder config = (ObjectStudioBuilder) builder;
+		return config.getCommandTemplate().expand(config.getObjectStudioExe(), runner);
+	}
+
+	/**
+	 * Parse the ObjectStudio 7 Commandline.
+	 * 
+	 * @param config ObjectStudio Builder
+	 * @return CommandTemplate
+	 */
+	@Override
+	public CommandTemplate compile(ObjectStudioBuilder config) {
 		
-		ArgumentListBuilder argList = new ArgumentListBuilder();
+		CommandTemplate template = new CommandTemplate();
 	
-		argList.addQuoted("C:\\Windows\\System32\\CMD.EXE");
-		argList.add("/Q");
-		argList.add("/C");
-	
-		argList.add("start");
-		argList.addQuoted("ObjectStudio");
-		argList.add("/WAIT");
-		argList.add(config.getObjectStudioExe());
-		argList.add("-i"
-				+ runner.getObjectStudioImageName()
-				+ "");
+		// The wrapper hides the exit code and a kill only reaches CMD.EXE
+		if (!config.getDirectLaunch()) {
+			template.addQuoted("C:\\Windows\\System32\\CMD.EXE");
+			template.add("/Q");
+			template.add("/C");
 
-		if (runner.getPreloadScriptName() != null) {
-			argList.add("-l"
-					+ runner.getPreloadScriptName());
-		}
-		argList.add("-A" + config.getLoadScript());
-		argList.add("-o" + config.getOstudioLog());
-		for (String param : config.getOstudioParameter().split(" ")) {
-			argList.add(param);
+			template.add("start");
+			template.addQuoted("ObjectStudio");
+			template.add("/WAIT");
 		}
+		template.addSlot("", CommandTemplate.EXE);
+		template.addSlot("-i", CommandTemplate.IMAGE);
+		template.addOptionalSlot("-l", CommandTemplate.PRELOAD);
+		template.addSlot("-A", CommandTemplate.LOAD);
+		template.addSlot("-o", CommandTemplate.LOG);
+		template.addTokenized(config.getOstudioParameter(), "OStudio Parameter");
 	
 		// -i"%OBJECTSTUDIO7%ostudio.img" -l%_PRELOAD% -A%_AUTOLOAD% -oOS7.log
 		// -E50 -x2 -cSRV:DB:%VE2000_DB_TEST%
-		return argList;
+		return template;
 	}
 	
 }
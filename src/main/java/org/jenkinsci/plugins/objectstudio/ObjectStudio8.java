@@ -23,7 +23,7 @@
 
 package org.jenkinsci.plugins.objectstudio;
 
-import hudson.model.AbstractBuild;
+import hudson.model.Run;
 import hudson.tasks.Builder;
 import hudson.util.ArgumentListBuilder;
 
@@ -37,52 +37,58 @@ public class ObjectStudio8 implements ObjectStudio {
 	
 	/**
      * Build the ObjectStudio8 commandline.
-	 * @param build Jenkins build instance
+	 * @param build Jenkins build or Pipeline run
 	 * @param builder ObjectStudio Builder
 	 * @param runner ObjectStudio Runner
      * @return Instance of ArgumentListBuilder
      */
     @Override
-	public ArgumentListBuilder getCommandline(AbstractBuild build, Builder builder, ObjectStudioRunner runner) {
+	public ArgumentListBuilder getCommandline(Run<?, ?> build, Builder builder, ObjectStudioRunner runner) {
 		
     	ObjectStudio8Builder config = (ObjectStudio8Builder) builder;
-    	
-    	ArgumentListBuilder argList = new ArgumentListBuilder();
+    	return config.getCommandTemplate().expand(config.getObjectStudioExe(), runner);
+    }
+
+	/**
+     * Parse the ObjectStudio8 commandline.
+	 * @param builder ObjectStudio Builder
+     * @return Instance of CommandTemplate
+     */
+    @Override
+	public CommandTemplate compile(ObjectStudioBuilder builder) {
 		
-		argList.addQuoted("C:\\Windows\\System32\\CMD.EXE");
-		argList.add("/Q");
-		argList.add("/C");
+    	ObjectStudio8Builder config = (ObjectStudio8Builder) builder;
+    	
+    	CommandTemplate template = new CommandTemplate();
 		
-		argList.add("start");
-		argList.addQuoted("ObjectStudio8");
-		argList.add("/WAIT");
-		argList.add(config.getObjectStudioExe());
+		// The wrapper hides the exit code and a kill only reaches CMD.EXE
+		if (!config.getDirectLaunch()) {
+			template.addQuoted("C:\\Windows\\System32\\CMD.EXE");
+			template.add("/Q");
+			template.add("/C");
+
+			template.add("start");
+			template.addQuoted("ObjectStudio8");
+			template.add("/WAIT");
+		}
+		template.addSlot("", CommandTemplate.EXE);
 		
 		if (config.getReportMemoryUsage()) {
-			argList.add("-xq");
-		}
-		for (String param : config.getVisualWorksParameter().split(" ")) {
-			argList.add(param);
+			template.add("-xq");
 		}
+		template.addTokenized(config.getVisualWorksParameter(), "VisualWorks Parameter");
 		
-		argList.add(runner.getObjectStudioImageName());
+		template.addSlot("", CommandTemplate.IMAGE);
 		
-		StringBuilder osCmdline = new StringBuilder();
-		if (runner.getPreloadScriptName() != null) {
-			osCmdline.append(" -l" + runner.getPreloadScriptName());
-		}
-		if (config.getLoadScript() != null && !config.getLoadScript().trim().isEmpty()) {
-			osCmdline.append(" -A" + config.getLoadScript());
-		}
-		if (config.getOstudioLog() != null && !config.getOstudioLog().trim().isEmpty()) {
-			osCmdline.append(" -o'" + config.getOstudioLog() + "'");
-		}
-		if (config.getOstudioParameter() != null && !config.getOstudioParameter().trim().isEmpty()) {
-			osCmdline.append(" " + config.getOstudioParameter());
-		}
-		argList.add("-ostudio");
-		argList.add(osCmdline.toString());
+		// ObjectStudio parses its part itself, it is only checked for quotes
+		String ostudioParameter = config.getOstudioParameter();
+		CommandTemplate.tokenize(ostudioParameter, "OStudio Parameter");
+		template.add("-ostudio");
+		template.add(CommandTemplate.optional(" -l", CommandTemplate.PRELOAD, ""),
+				CommandTemplate.optional(" -A", CommandTemplate.LOAD, ""),
+				CommandTemplate.optional(" -o'", CommandTemplate.LOG, "'"),
+				CommandTemplate.text(ostudioParameter != null && !ostudioParameter.trim().isEmpty() ? " " + ostudioParameter : ""));
 		
-		return argList;
+		return template;
 	}
 }
@@ -23,9 +23,14 @@
 
 package org.jenkinsci.plugins.objectstudio;
 
+import java.util.List;
+
 import hudson.Extension;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
@@ -52,6 +57,12 @@ public class ObjectStudio8Builder extends ObjectStudioBuilder {
 	 */
 	Boolean reportMemoryUsage = true;
 	
+	/**
+	 * Fail the build if the memory usage report shows a larger peak heap, in
+	 * MB.
+	 */
+	Integer maxHeapSize;
+	
 	
 	/**
 	 * Fields in config.jelly must match the parameter names in the "DataBoundConstructor".
@@ -90,6 +101,24 @@ public class ObjectStudio8Builder extends ObjectStudioBuilder {
 	 */
 	public void setReportMemoryUsage(Boolean reportMemoryUsage) {
 		this.reportMemoryUsage = reportMemoryUsage;
+		resetCommandTemplate();
+	}
+
+	/**
+	 * Get the largest peak heap allowed by the memory usage report.
+	 * @return size in MB, 0 if not limited
+	 */
+	public int getMaxHeapSize() {
+		return maxHeapSize == null || maxHeapSize < 0 ? 0 : maxHeapSize;
+	}
+
+	/**
+	 * Fail the build if the memory usage report shows a larger peak heap.
+	 * @param maxHeapSize size in MB, 0 for no limit
+	 */
+	@DataBoundSetter
+	public void setMaxHeapSize(Integer maxHeapSize) {
+		this.maxHeapSize = maxHeapSize;
 	}
 
 	/**
@@ -106,6 +135,7 @@ public class ObjectStudio8Builder extends ObjectStudioBuilder {
 	 */
 	public void setVisualWorksParameter(String visualWorksParameter) {
 		this.visualWorksParameter = visualWorksParameter;
+		resetCommandTemplate();
 	}
 
 	/**
@@ -122,6 +152,14 @@ public class ObjectStudio8Builder extends ObjectStudioBuilder {
 	protected ObjectStudio getObjectStudio() {
 		return new ObjectStudio8();
 	}
+
+	@Override
+	protected List<String> getFingerprintParameters() {
+		List<String> parameters = super.getFingerprintParameters();
+		parameters.add(getVisualWorksParameter());
+		parameters.add(Boolean.toString(getReportMemoryUsage()));
+		return parameters;
+	}
     
     /**
      * Return plugin descriptor for Jenkins.
@@ -161,6 +199,24 @@ public class ObjectStudio8Builder extends ObjectStudioBuilder {
             return super.configure(req, formData);
         }
         
+        /**
+         * Check the largest peak heap.
+         * @param value size in MB
+         * @return error if it is negative
+         */
+        public FormValidation doCheckMaxHeapSize(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        /**
+         * Check the VisualWorks parameters.
+         * @param value parameters
+         * @return error if a quote is not closed
+         */
+        public FormValidation doCheckVisualWorksParameter(@QueryParameter String value) {
+            return checkParameters(value);
+        }
+
         /**
          * Default Path for ObjectStudio 8. Should be taken from Windows Registry.
          * @return absolute path to ObjectStudio8 installation directory
@@ -0,0 +1,307 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.model.Run;
+
+import jenkins.model.RunAction2;
+
+/**
+ * Timings and volumes of an ObjectStudio build.
+ *
+ * <p>
+ * Recorded by {@link ObjectStudioRunner} and attached to the build, where
+ * it is persisted with the build record. The phases overlap: {@link #RUN}
+ * covers the whole process lifetime, {@link #WAIT_FOR_LOG} and
+ * {@link #JOIN} are parts of it. The steps of the
+ * {@link WorkspacePreparation} are recorded under their own names.
+ * {@link ObjectStudioProjectAction} draws the trend across builds.
+ *
+ * @author Patrick Lauper
+ */
+public class ObjectStudioBuildAction implements RunAction2 {
+
+	/**
+	 * From the start of the build step until ObjectStudio is launched.
+	 */
+	public static final String SETUP = "Setup";
+
+	/**
+	 * The remote call preparing the workspace, part of {@link #SETUP}.
+	 */
+	public static final String PREPARE = "Prepare workspace";
+
+	/**
+	 * Sending the image from the controller to the node, part of
+	 * {@link #SETUP}.
+	 */
+	public static final String SYNC_IMAGE = "Sync image";
+
+	/**
+	 * From the launch until ObjectStudio has created its log.
+	 */
+	public static final String WAIT_FOR_LOG = "Wait for log";
+
+	/**
+	 * From the launch until the exit code is known.
+	 */
+	public static final String RUN = "Run";
+
+	/**
+	 * From the end of the log until the exit code is known.
+	 */
+	public static final String JOIN = "Join";
+
+	/**
+	 * Computing the environment of the build, part of {@link #SETUP}.
+	 */
+	public static final String ENVIRONMENT = "Capture environment";
+
+	/**
+	 * Computing the fingerprint of the inputs, part of {@link #SETUP}.
+	 */
+	public static final String FINGERPRINT = "Fingerprint inputs";
+
+	/**
+	 * Capturing the image saved by the run.
+	 */
+	public static final String CAPTURE_IMAGE = "Capture image";
+
+	/**
+	 * Bytes copied while preparing the workspace.
+	 */
+	public static final String BYTES_COPIED = "Bytes copied";
+
+	/**
+	 * Bytes sent to the node to bring its copy of the image up to date.
+	 */
+	public static final String BYTES_SENT = "Bytes sent";
+
+	/**
+	 * Size of the source image.
+	 */
+	public static final String IMAGE_SIZE = "Image size";
+
+	/**
+	 * Size of the image saved by the run.
+	 */
+	public static final String OUTPUT_IMAGE_SIZE = "Output image size";
+
+	/**
+	 * Size of the artifact of the saved image, compressed or not.
+	 */
+	public static final String OUTPUT_IMAGE_BYTES = "Output image bytes";
+
+	/**
+	 * Bytes of the log copied to the build log.
+	 */
+	public static final String LOG_BYTES = "Log bytes";
+
+	/**
+	 * Lines of the log copied to the build log.
+	 */
+	public static final String LOG_LINES = "Log lines";
+
+	/**
+	 * Lines of the log classified as errors by the {@link LogClassifier}.
+	 */
+	public static final String LOG_ERRORS = "Log errors";
+
+	/**
+	 * Lines of the log classified as warnings by the {@link LogClassifier}.
+	 */
+	public static final String LOG_WARNINGS = "Log warnings";
+
+	private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private String fingerprint;
+	private int upToDateWith;
+	private String environmentHash;
+	private transient Run<?, ?> run;
+
+	/**
+	 * Record the duration of a phase.
+	 * @param phase name of the phase
+	 * @param millis duration in milliseconds
+	 */
+	public synchronized void timing(String phase, long millis) {
+		timings.put(phase, millis);
+	}
+
+	/**
+	 * Record a volume.
+	 * @param name name of the counter
+	 * @param value count
+	 */
+	public synchronized void counter(String name, long value) {
+		counters.put(name, value);
+	}
+
+	/**
+	 * Add the metrics of a shard. Shards run at the same time, so the
+	 * longest duration of a phase is kept while volumes are added up.
+	 * @param shard metrics of one shard
+	 */
+	public void merge(ObjectStudioBuildAction shard) {
+		Map<String, Long> shardTimings = shard.getTimings();
+		Map<String, Long> shardCounters = shard.getCounters();
+		synchronized (this) {
+			for (Map.Entry<String, Long> timing : shardTimings.entrySet()) {
+				Long previous = timings.get(timing.getKey());
+				timings.put(timing.getKey(), previous == null ? timing.getValue() : Math.max(previous, timing.getValue()));
+			}
+			for (Map.Entry<String, Long> counter : shardCounters.entrySet()) {
+				Long previous = counters.get(counter.getKey());
+				counters.put(counter.getKey(), previous == null ? counter.getValue() : previous + counter.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get the duration of each phase in the order they were recorded.
+	 * @return phase name to milliseconds
+	 */
+	public synchronized Map<String, Long> getTimings() {
+		return new LinkedHashMap<String, Long>(timings);
+	}
+
+	/**
+	 * Get the volumes in the order they were recorded.
+	 * @return counter name to count
+	 */
+	public synchronized Map<String, Long> getCounters() {
+		return new LinkedHashMap<String, Long>(counters);
+	}
+
+	/**
+	 * Get the duration of a phase.
+	 * @param phase name of the phase
+	 * @return milliseconds or null if not recorded
+	 */
+	public synchronized Long getTiming(String phase) {
+		return timings.get(phase);
+	}
+
+	/**
+	 * Get a volume.
+	 * @param name name of the counter
+	 * @return count or null if not recorded
+	 */
+	public synchronized Long getCounter(String name) {
+		return counters.get(name);
+	}
+
+	/**
+	 * Record the fingerprint of the inputs, see {@link InputFingerprint}.
+	 * @param fingerprint hex encoded hash
+	 */
+	public synchronized void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Get the fingerprint of the inputs.
+	 * @return hex encoded hash or null if not computed
+	 */
+	public synchronized String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Record that ObjectStudio was skipped because the inputs did not
+	 * change since a successful build.
+	 * @param buildNr number of the build with the same inputs
+	 */
+	public synchronized void setUpToDateWith(int buildNr) {
+		this.upToDateWith = buildNr;
+	}
+
+	/**
+	 * Get the build whose output was reused.
+	 * @return build number or 0 if ObjectStudio was run
+	 */
+	public synchronized int getUpToDateWith() {
+		return upToDateWith;
+	}
+
+	/**
+	 * Record the hash of the environment ObjectStudio was started with.
+	 * @param environmentHash hex encoded hash
+	 */
+	public synchronized void setEnvironmentHash(String environmentHash) {
+		this.environmentHash = environmentHash;
+	}
+
+	/**
+	 * Get the hash of the environment, see {@link EnvironmentCapture}.
+	 * @return hex encoded hash or null if not computed
+	 */
+	public synchronized String getEnvironmentHash() {
+		return environmentHash;
+	}
+
+	/**
+	 * Whether anything was recorded.
+	 * @return true if there are no timings, no counters and no fingerprint
+	 */
+	public synchronized boolean isEmpty() {
+		return timings.isEmpty() && counters.isEmpty() && fingerprint == null;
+	}
+
+	/**
+	 * Get the build this action is attached to.
+	 * @return build or null before it is attached
+	 */
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	@Override
+	public String getIconFileName() {
+		return "graph.gif";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "ObjectStudio Metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "objectstudio";
+	}
+
+	@Override
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	@Override
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+}
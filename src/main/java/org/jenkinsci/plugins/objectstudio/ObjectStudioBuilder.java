@@ -25,6 +25,10 @@ package org.jenkinsci.plugins.objectstudio;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.ServletException;
 
@@ -33,16 +37,19 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import net.sf.json.JSONObject;
 
 import org.apache.commons.io.FilenameUtils;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -74,6 +81,33 @@ public class ObjectStudioBuilder extends Builder {
 	String postloadScript = "postload.txt";
 	String preloadScript = "preload.txt";
 	Boolean imageCopy = true;
+	Boolean controllerImage;
+	Boolean cleanupTemp;
+	Boolean isolateExecution;
+	Boolean minimalEnvironment;
+	String environmentLog;
+	Boolean directLaunch;
+	Boolean archiveTranscript;
+	String testReport;
+	String testStartPattern;
+	String testPassPattern;
+	String testFailPattern;
+	String testErrorPattern;
+	Integer shards;
+	Integer warmPool;
+	Integer idleTimeout;
+	Integer cpuTimeout;
+	Integer maxRunTime;
+	Integer maxLogErrors;
+	Boolean abortOnWalkback;
+	String logErrorPattern;
+	String logWarningPattern;
+	String logFatalPattern;
+	Boolean skipUnchanged;
+	String outputImage;
+	Boolean compressOutputImage;
+	String sourceGlobs;
+	private transient volatile CommandTemplate commandTemplate;
 
 	/**
 	 * Fields in config.jelly must match the parameter names in the
@@ -206,6 +240,7 @@ public class ObjectStudioBuilder extends Builder {
 	 */
 	public void setOstudioParameter(String ostudioParameter) {
 		this.ostudioParameter = ostudioParameter;
+		resetCommandTemplate();
 	}
 
 	/**
@@ -315,14 +350,71 @@ public class ObjectStudioBuilder extends Builder {
 			runner.run(build, launcher, listener, this);
 		} finally {
 			runner.cleanup(build, launcher, listener, this);
+			if (!runner.getMetrics().isEmpty()) {
+				build.addAction(runner.getMetrics());
+			}
+			if (!runner.getTranscripts().isEmpty()) {
+				build.addAction(new TranscriptAction(runner.getTranscripts(), runner.getCharset()));
+			}
 		}
 		return true;
 	}
+
+	/**
+	 * Show the trend of the build metrics on the project page.
+	 * @param project Jenkins project
+	 * @return project actions
+	 */
+	@Override
+	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+		return Collections.singletonList(new ObjectStudioProjectAction(project));
+	}
 	
 	protected ObjectStudio getObjectStudio() {
 		return new ObjectStudio7();
 	}
 
+	/**
+	 * Get the command line parsed from this configuration. It is parsed on
+	 * first use and kept until a setter changes a part of it, builds only
+	 * fill in the executable, image, scripts and log.
+	 * 
+	 * @return command line template
+	 * @throws IllegalArgumentException
+	 *             if a parameter can not be parsed
+	 */
+	public CommandTemplate getCommandTemplate() {
+		CommandTemplate template = commandTemplate;
+		if (template == null) {
+			// Parsing twice at the same time does no harm
+			template = getObjectStudio().compile(this);
+			commandTemplate = template;
+		}
+		return template;
+	}
+
+	/**
+	 * Forget the parsed command line after a change of the configuration.
+	 */
+	protected void resetCommandTemplate() {
+		commandTemplate = null;
+	}
+
+	/**
+	 * Get the parameters changing the outcome of a build with the same
+	 * files, see {@link InputFingerprint}.
+	 * 
+	 * @return parameters in a fixed order
+	 */
+	protected List<String> getFingerprintParameters() {
+		List<String> parameters = new ArrayList<String>();
+		parameters.add(getObjectStudioExe());
+		parameters.add(getOstudioParameter());
+		parameters.add(getOstudioLog());
+		parameters.add(Integer.toString(getShards()));
+		return parameters;
+	}
+
 	public Boolean getOstudioImageCopy() {
 		return imageCopy;
 	}
@@ -331,6 +423,555 @@ public class ObjectStudioBuilder extends Builder {
 		this.imageCopy = ostudioImageCopy;
 	}
 
+	/**
+	 * Is the TEMP directory removed after the build.
+	 * 
+	 * @return true if TEMP is removed after the build
+	 */
+	public Boolean getCleanupTemp() {
+		return cleanupTemp == null ? false : cleanupTemp;
+	}
+
+	/**
+	 * Remove the TEMP directory in the background after the build instead of
+	 * keeping it until the next build.
+	 * 
+	 * @param cleanupTemp
+	 *            true to remove TEMP after the build
+	 */
+	@DataBoundSetter
+	public void setCleanupTemp(Boolean cleanupTemp) {
+		this.cleanupTemp = cleanupTemp;
+	}
+
+	/**
+	 * Does every execution run in a directory of its own.
+	 * 
+	 * @return true if ObjectStudio runs in TEMP/run-ID
+	 */
+	public Boolean getIsolateExecution() {
+		return isolateExecution == null ? false : isolateExecution;
+	}
+
+	/**
+	 * Run ObjectStudio in a directory of its own below TEMP, holding its
+	 * ostudio.ini, image and log, so builds sharing a build path can run at
+	 * the same time on a node.
+	 * 
+	 * @param isolateExecution
+	 *            true to isolate each execution
+	 */
+	@DataBoundSetter
+	public void setIsolateExecution(Boolean isolateExecution) {
+		this.isolateExecution = isolateExecution;
+	}
+
+	/**
+	 * Is ObjectStudio started without the CMD.EXE start /WAIT wrapper.
+	 * 
+	 * @return true if the executable is started directly
+	 */
+	public Boolean getDirectLaunch() {
+		return directLaunch == null ? false : directLaunch;
+	}
+
+	/**
+	 * Start the executable itself instead of CMD.EXE start /WAIT, so the
+	 * build gets its exit code and killing the build kills ObjectStudio.
+	 * 
+	 * @param directLaunch
+	 *            true to start the executable directly
+	 */
+	@DataBoundSetter
+	public void setDirectLaunch(Boolean directLaunch) {
+		this.directLaunch = directLaunch;
+		resetCommandTemplate();
+	}
+
+	/**
+	 * Is the Transcript archived instead of copied to the build log.
+	 * 
+	 * @return true if the Transcript is archived
+	 */
+	public Boolean getArchiveTranscript() {
+		return archiveTranscript == null ? false : archiveTranscript;
+	}
+
+	/**
+	 * Archive the Transcript compressed with the build and show only lines
+	 * looking like errors in the build log.
+	 * 
+	 * @param archiveTranscript
+	 *            true to archive the Transcript
+	 */
+	@DataBoundSetter
+	public void setArchiveTranscript(Boolean archiveTranscript) {
+		this.archiveTranscript = archiveTranscript;
+	}
+
+	/**
+	 * Get the JUnit XML file SUnit results are written to.
+	 * 
+	 * @return file relative to the build directory, blank if SUnit results
+	 *         are not collected
+	 */
+	public String getTestReport() {
+		return testReport == null ? "" : testReport;
+	}
+
+	/**
+	 * Collect SUnit results from the log and write them as JUnit XML.
+	 * 
+	 * @param testReport
+	 *            file relative to the build directory, blank to disable
+	 */
+	@DataBoundSetter
+	public void setTestReport(String testReport) {
+		this.testReport = testReport;
+	}
+
+	/**
+	 * Get the pattern of a log line written when a test starts.
+	 * 
+	 * @return regular expression, blank if starts are not logged
+	 */
+	public String getTestStartPattern() {
+		return testStartPattern == null ? SUnitParser.DEFAULT_START : testStartPattern;
+	}
+
+	/**
+	 * Set the pattern of a log line written when a test starts.
+	 * 
+	 * @param testStartPattern
+	 *            regular expression with the groups class and test
+	 */
+	@DataBoundSetter
+	public void setTestStartPattern(String testStartPattern) {
+		this.testStartPattern = testStartPattern;
+	}
+
+	/**
+	 * Get the pattern of a log line written when a test passed.
+	 * 
+	 * @return regular expression
+	 */
+	public String getTestPassPattern() {
+		return testPassPattern == null ? SUnitParser.DEFAULT_PASS : testPassPattern;
+	}
+
+	/**
+	 * Set the pattern of a log line written when a test passed.
+	 * 
+	 * @param testPassPattern
+	 *            regular expression with the groups class and test
+	 */
+	@DataBoundSetter
+	public void setTestPassPattern(String testPassPattern) {
+		this.testPassPattern = testPassPattern;
+	}
+
+	/**
+	 * Get the pattern of a log line written when a test failed.
+	 * 
+	 * @return regular expression
+	 */
+	public String getTestFailPattern() {
+		return testFailPattern == null ? SUnitParser.DEFAULT_FAIL : testFailPattern;
+	}
+
+	/**
+	 * Set the pattern of a log line written when a test failed.
+	 * 
+	 * @param testFailPattern
+	 *            regular expression with the groups class, test and
+	 *            optionally message
+	 */
+	@DataBoundSetter
+	public void setTestFailPattern(String testFailPattern) {
+		this.testFailPattern = testFailPattern;
+	}
+
+	/**
+	 * Get the pattern of a log line written when a test raised an error.
+	 * 
+	 * @return regular expression
+	 */
+	public String getTestErrorPattern() {
+		return testErrorPattern == null ? SUnitParser.DEFAULT_ERROR : testErrorPattern;
+	}
+
+	/**
+	 * Set the pattern of a log line written when a test raised an error.
+	 * 
+	 * @param testErrorPattern
+	 *            regular expression with the groups class, test and
+	 *            optionally message
+	 */
+	@DataBoundSetter
+	public void setTestErrorPattern(String testErrorPattern) {
+		this.testErrorPattern = testErrorPattern;
+	}
+
+	/**
+	 * Is ObjectStudio started with the variables describing the build only.
+	 * 
+	 * @return true for the minimal environment
+	 */
+	public Boolean getMinimalEnvironment() {
+		return minimalEnvironment == null ? false : minimalEnvironment;
+	}
+
+	/**
+	 * Start ObjectStudio with the build parameters and the variables
+	 * describing the build instead of the full build environment, see
+	 * {@link EnvironmentCapture}.
+	 * 
+	 * @param minimalEnvironment
+	 *            true for the minimal environment
+	 */
+	@DataBoundSetter
+	public void setMinimalEnvironment(Boolean minimalEnvironment) {
+		this.minimalEnvironment = minimalEnvironment;
+	}
+
+	/**
+	 * Get how the environment is written to the build log.
+	 * 
+	 * @return one of the modes of {@link EnvironmentCapture}
+	 */
+	public String getEnvironmentLog() {
+		return environmentLog == null || environmentLog.trim().isEmpty() ? EnvironmentCapture.SUMMARY : environmentLog;
+	}
+
+	/**
+	 * Write every environment variable to the build log, only their number
+	 * and hash, or nothing.
+	 * 
+	 * @param environmentLog
+	 *            {@link EnvironmentCapture#FULL},
+	 *            {@link EnvironmentCapture#SUMMARY} or
+	 *            {@link EnvironmentCapture#NONE}
+	 */
+	@DataBoundSetter
+	public void setEnvironmentLog(String environmentLog) {
+		this.environmentLog = environmentLog;
+	}
+
+	/**
+	 * Get the number of ObjectStudio processes run in parallel.
+	 * 
+	 * @return number of shards, at least 1
+	 */
+	public int getShards() {
+		return shards == null || shards < 1 ? 1 : shards;
+	}
+
+	/**
+	 * Run the build in several ObjectStudio processes at the same time. Each
+	 * one gets its own directory and the environment variables
+	 * OSTUDIO_SHARD_INDEX and OSTUDIO_SHARD_COUNT to pick its part of the
+	 * work.
+	 * 
+	 * @param shards
+	 *            number of processes
+	 */
+	@DataBoundSetter
+	public void setShards(Integer shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * Get the number of ObjectStudio processes kept started on the node.
+	 * 
+	 * @return size of the warm pool, 0 if not used
+	 */
+	public int getWarmPool() {
+		return warmPool == null || warmPool < 0 ? 0 : warmPool;
+	}
+
+	/**
+	 * Keep ObjectStudio processes started ahead of the next builds on the
+	 * node. The image has to wait for the build, see {@link WarmPool}. Not
+	 * used with more than one shard.
+	 * 
+	 * @param warmPool
+	 *            number of processes, 0 to start ObjectStudio with the build
+	 */
+	@DataBoundSetter
+	public void setWarmPool(Integer warmPool) {
+		this.warmPool = warmPool;
+	}
+
+	/**
+	 * Get the minutes ObjectStudio may run without writing output.
+	 * 
+	 * @return minutes, 0 if not limited
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout == null || idleTimeout < 0 ? 0 : idleTimeout;
+	}
+
+	/**
+	 * Kill ObjectStudio and fail the build if neither the log nor the process
+	 * output got a line for this long.
+	 * 
+	 * @param idleTimeout
+	 *            minutes, 0 for no limit
+	 */
+	@DataBoundSetter
+	public void setIdleTimeout(Integer idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Get the minutes ObjectStudio may run without using CPU.
+	 * 
+	 * @return minutes, 0 if not limited
+	 */
+	public int getCpuTimeout() {
+		return cpuTimeout == null || cpuTimeout < 0 ? 0 : cpuTimeout;
+	}
+
+	/**
+	 * Kill ObjectStudio and fail the build if its processes used no CPU for
+	 * this long, like an image waiting on a lock or a dialog.
+	 * 
+	 * @param cpuTimeout
+	 *            minutes, 0 for no limit
+	 */
+	@DataBoundSetter
+	public void setCpuTimeout(Integer cpuTimeout) {
+		this.cpuTimeout = cpuTimeout;
+	}
+
+	/**
+	 * Get the minutes ObjectStudio may run at all.
+	 * 
+	 * @return minutes, 0 if not limited
+	 */
+	public int getMaxRunTime() {
+		return maxRunTime == null || maxRunTime < 0 ? 0 : maxRunTime;
+	}
+
+	/**
+	 * Kill ObjectStudio and fail the build if it runs longer than this.
+	 * 
+	 * @param maxRunTime
+	 *            minutes, 0 for no limit
+	 */
+	@DataBoundSetter
+	public void setMaxRunTime(Integer maxRunTime) {
+		this.maxRunTime = maxRunTime;
+	}
+
+	/**
+	 * Get the number of errors in the log after which ObjectStudio is killed.
+	 * 
+	 * @return errors, 0 if not limited
+	 */
+	public int getMaxLogErrors() {
+		return maxLogErrors == null || maxLogErrors < 0 ? 0 : maxLogErrors;
+	}
+
+	/**
+	 * Kill ObjectStudio and fail the build once the log has this many lines
+	 * matching the error pattern, see {@link LogClassifier}.
+	 * 
+	 * @param maxLogErrors
+	 *            errors, 0 for no limit
+	 */
+	@DataBoundSetter
+	public void setMaxLogErrors(Integer maxLogErrors) {
+		this.maxLogErrors = maxLogErrors;
+	}
+
+	/**
+	 * Is ObjectStudio killed on the first walkback in the log.
+	 * 
+	 * @return true to abort on a walkback
+	 */
+	public Boolean getAbortOnWalkback() {
+		return abortOnWalkback == null ? false : abortOnWalkback;
+	}
+
+	/**
+	 * Kill ObjectStudio and fail the build on the first line matching the
+	 * walkback pattern.
+	 * 
+	 * @param abortOnWalkback
+	 *            true to abort on a walkback
+	 */
+	@DataBoundSetter
+	public void setAbortOnWalkback(Boolean abortOnWalkback) {
+		this.abortOnWalkback = abortOnWalkback;
+	}
+
+	/**
+	 * Get the pattern of an error line in the log.
+	 * 
+	 * @return regular expression, blank if errors are not counted
+	 */
+	public String getLogErrorPattern() {
+		return logErrorPattern == null ? LogClassifier.DEFAULT_ERROR : logErrorPattern;
+	}
+
+	/**
+	 * Set the pattern of an error line in the log.
+	 * 
+	 * @param logErrorPattern
+	 *            regular expression
+	 */
+	@DataBoundSetter
+	public void setLogErrorPattern(String logErrorPattern) {
+		this.logErrorPattern = logErrorPattern;
+	}
+
+	/**
+	 * Get the pattern of a warning line in the log.
+	 * 
+	 * @return regular expression, blank if warnings are not counted
+	 */
+	public String getLogWarningPattern() {
+		return logWarningPattern == null ? LogClassifier.DEFAULT_WARNING : logWarningPattern;
+	}
+
+	/**
+	 * Set the pattern of a warning line in the log.
+	 * 
+	 * @param logWarningPattern
+	 *            regular expression
+	 */
+	@DataBoundSetter
+	public void setLogWarningPattern(String logWarningPattern) {
+		this.logWarningPattern = logWarningPattern;
+	}
+
+	/**
+	 * Get the pattern of a walkback line in the log.
+	 * 
+	 * @return regular expression, blank if walkbacks are not recognized
+	 */
+	public String getLogFatalPattern() {
+		return logFatalPattern == null ? LogClassifier.DEFAULT_FATAL : logFatalPattern;
+	}
+
+	/**
+	 * Set the pattern of a walkback line in the log.
+	 * 
+	 * @param logFatalPattern
+	 *            regular expression
+	 */
+	@DataBoundSetter
+	public void setLogFatalPattern(String logFatalPattern) {
+		this.logFatalPattern = logFatalPattern;
+	}
+
+	/**
+	 * Is the image a file on the controller.
+	 * 
+	 * @return true if the image is sent from the controller
+	 */
+	public Boolean getControllerImage() {
+		return controllerImage == null ? false : controllerImage;
+	}
+
+	/**
+	 * Read the image on the controller and keep a copy on the node up to
+	 * date by sending only the changed blocks, see {@link DeltaSync}.
+	 * 
+	 * @param controllerImage
+	 *            true if the image is a file on the controller
+	 */
+	@DataBoundSetter
+	public void setControllerImage(Boolean controllerImage) {
+		this.controllerImage = controllerImage;
+	}
+
+	/**
+	 * Is ObjectStudio skipped when the inputs did not change.
+	 * 
+	 * @return true if unchanged builds are skipped
+	 */
+	public Boolean getSkipUnchanged() {
+		return skipUnchanged == null ? false : skipUnchanged;
+	}
+
+	/**
+	 * Skip the ObjectStudio run if image, ostudio.ini, scripts, parameters
+	 * and source files are the same as in the last successful build.
+	 * 
+	 * @param skipUnchanged
+	 *            true to skip unchanged builds
+	 */
+	@DataBoundSetter
+	public void setSkipUnchanged(Boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/**
+	 * Get the source files taken into account for skipping unchanged builds.
+	 * 
+	 * @return comma separated Ant patterns relative to the build directory,
+	 *         blank for none
+	 */
+	public String getSourceGlobs() {
+		return sourceGlobs == null ? "" : sourceGlobs;
+	}
+
+	/**
+	 * Set the source files loaded by the scripts, like
+	 * <tt>src/**&#47;*.st, parcels/**</tt>.
+	 * 
+	 * @param sourceGlobs
+	 *            comma separated Ant patterns relative to the build directory
+	 */
+	@DataBoundSetter
+	public void setSourceGlobs(String sourceGlobs) {
+		this.sourceGlobs = sourceGlobs;
+	}
+
+	/**
+	 * Get the image saved by the scripts.
+	 * 
+	 * @return Ant pattern relative to the build directory, blank if the
+	 *         image is not captured
+	 */
+	public String getOutputImage() {
+		return outputImage == null ? "" : outputImage;
+	}
+
+	/**
+	 * Capture the image saved by the scripts as artifact of a successful
+	 * build, see {@link OutputImage}. The newest matching file is used.
+	 * 
+	 * @param outputImage
+	 *            Ant pattern relative to the build directory, blank for none
+	 */
+	@DataBoundSetter
+	public void setOutputImage(String outputImage) {
+		this.outputImage = outputImage;
+	}
+
+	/**
+	 * Is the captured image compressed.
+	 * 
+	 * @return true if the artifact is gzip compressed
+	 */
+	public Boolean getCompressOutputImage() {
+		return compressOutputImage == null ? false : compressOutputImage;
+	}
+
+	/**
+	 * Compress the captured image with gzip on the node.
+	 * 
+	 * @param compressOutputImage
+	 *            true to compress the artifact
+	 */
+	@DataBoundSetter
+	public void setCompressOutputImage(Boolean compressOutputImage) {
+		this.compressOutputImage = compressOutputImage;
+	}
+
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -351,6 +992,12 @@ public class ObjectStudioBuilder extends Builder {
 	@Extension
 	public static class ObjectStudioDescriptor extends
 			BuildStepDescriptor<Builder> {
+
+		/**
+		 * Default size budget of the image cache in MB.
+		 */
+		public static final int DEFAULT_IMAGE_CACHE_SIZE = 4096;
+
 		/**
 		 * To persist global configuration information, simply store it in a
 		 * field and call save().
@@ -360,6 +1007,22 @@ public class ObjectStudioBuilder extends Builder {
 		 */
 		protected String path = getDefaultPath();
 
+		/**
+		 * How images are provided from the per node image cache, see
+		 * {@link ImageCache}.
+		 */
+		protected String imageCacheMode = ImageCache.NONE;
+
+		/**
+		 * Size budget of the per node image cache in MB.
+		 */
+		protected int imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+
+		/**
+		 * Number of parallel streams sending an image from the controller.
+		 */
+		protected int imageSyncStreams = DeltaSync.DEFAULT_STREAMS;
+
 		/**
 		 * In order to load the persisted global configuration, you have to call
 		 * load() in the constructor.
@@ -394,6 +1057,53 @@ public class ObjectStudioBuilder extends Builder {
 			}
 		}
 
+		/**
+		 * Check the additional ObjectStudio parameters.
+		 * 
+		 * @param value
+		 *            parameters
+		 * @return error if a quote is not closed
+		 */
+		public FormValidation doCheckOstudioParameter(@QueryParameter String value) {
+			return checkParameters(value);
+		}
+
+		/**
+		 * Create the builder from the project configuration. The command line
+		 * is parsed right away, so a configuration that can not be started is
+		 * not saved.
+		 * 
+		 * @param req
+		 *            Request
+		 * @param formData
+		 *            JSON object with the configuration of the builder
+		 * @return new builder
+		 * @throws FormException
+		 *             if the command line can not be parsed
+		 */
+		@Override
+		public Builder newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+			Builder builder = super.newInstance(req, formData);
+			try {
+				((ObjectStudioBuilder) builder).getCommandTemplate();
+			} catch (IllegalArgumentException e) {
+				throw new FormException(e.getMessage(), null);
+			}
+			return builder;
+		}
+
+		/**
+		 * Check command line parameters entered in the configuration.
+		 * 
+		 * @param value
+		 *            parameters
+		 * @return error if a quote is not closed
+		 */
+		protected FormValidation checkParameters(String value) {
+			String error = CommandTemplate.checkParameters(value);
+			return error == null ? FormValidation.ok() : FormValidation.error(error);
+		}
+
 		/**
 		 * Indicates that this builder can be used with all kinds of project
 		 * types.
@@ -454,6 +1164,272 @@ public class ObjectStudioBuilder extends Builder {
 			this.path = objectStudioPath;
 		}
 
+		/**
+		 * Get how images are provided from the image cache.
+		 * 
+		 * @return one of the {@link ImageCache} modes
+		 */
+		public String getImageCacheMode() {
+			if (ImageCache.LINK.equals(imageCacheMode)) {
+				// Hard links are no longer offered, they shared the master
+				return ImageCache.CLONE;
+			}
+			return imageCacheMode == null ? ImageCache.NONE : imageCacheMode;
+		}
+
+		/**
+		 * Set how images are provided from the image cache.
+		 * 
+		 * @param imageCacheMode
+		 *            one of the {@link ImageCache} modes
+		 */
+		public void setImageCacheMode(String imageCacheMode) {
+			this.imageCacheMode = imageCacheMode;
+		}
+
+		/**
+		 * Get size budget of the image cache.
+		 * 
+		 * @return size in MB
+		 */
+		public int getImageCacheSize() {
+			return imageCacheSize;
+		}
+
+		/**
+		 * Set size budget of the image cache.
+		 * 
+		 * @param imageCacheSize
+		 *            size in MB
+		 */
+		public void setImageCacheSize(int imageCacheSize) {
+			this.imageCacheSize = imageCacheSize;
+		}
+
+		/**
+		 * Get the number of parallel streams sending an image from the
+		 * controller.
+		 * 
+		 * @return number of streams
+		 */
+		public int getImageSyncStreams() {
+			return imageSyncStreams <= 0 ? DeltaSync.DEFAULT_STREAMS : imageSyncStreams;
+		}
+
+		/**
+		 * Set the number of parallel streams sending an image from the
+		 * controller. More streams help on links with a high bandwidth-delay
+		 * product.
+		 * 
+		 * @param imageSyncStreams
+		 *            number of streams
+		 */
+		public void setImageSyncStreams(int imageSyncStreams) {
+			this.imageSyncStreams = imageSyncStreams;
+		}
+
+		/**
+		 * Fill environment log selection.
+		 * 
+		 * @return available modes
+		 */
+		public ListBoxModel doFillEnvironmentLogItems() {
+			ListBoxModel items = new ListBoxModel();
+			items.add("Number of variables and hash", EnvironmentCapture.SUMMARY);
+			items.add("All variables", EnvironmentCapture.FULL);
+			items.add("Nothing", EnvironmentCapture.NONE);
+			return items;
+		}
+
+		/**
+		 * Fill image cache mode selection.
+		 * 
+		 * @return available modes
+		 */
+		public ListBoxModel doFillImageCacheModeItems() {
+			ListBoxModel items = new ListBoxModel();
+			items.add("No cache, copy image for every build", ImageCache.NONE);
+			items.add("Copy from cache", ImageCache.COPY);
+			items.add("Clone from cache (copy-on-write where supported)", ImageCache.CLONE);
+			items.add("Run cached image, read-only (image is not written)", ImageCache.SHARED);
+			return items;
+		}
+
+		/**
+		 * Performs on-the-fly validation of the image cache size.
+		 * 
+		 * @param value
+		 *            size in MB
+		 * @return validation result
+		 */
+		public FormValidation doCheckImageCacheSize(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the number of streams sending an image.
+		 * 
+		 * @param value
+		 *            number of streams
+		 * @return error if it is not a positive number
+		 */
+		public FormValidation doCheckImageSyncStreams(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Check the number of shards.
+		 * 
+		 * @param value
+		 *            number of shards
+		 * @return error if it is not a positive number
+		 */
+		public FormValidation doCheckShards(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Check the size of the warm pool.
+		 * 
+		 * @param value
+		 *            number of processes
+		 * @return error if it is negative
+		 */
+		public FormValidation doCheckWarmPool(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the minutes without output.
+		 * 
+		 * @param value
+		 *            minutes
+		 * @return error if it is negative
+		 */
+		public FormValidation doCheckIdleTimeout(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the minutes without CPU progress.
+		 * 
+		 * @param value
+		 *            minutes
+		 * @return error if it is negative
+		 */
+		public FormValidation doCheckCpuTimeout(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the maximum run time.
+		 * 
+		 * @param value
+		 *            minutes
+		 * @return error if it is negative
+		 */
+		public FormValidation doCheckMaxRunTime(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the number of errors in the log.
+		 * 
+		 * @param value
+		 *            errors
+		 * @return error if it is negative
+		 */
+		public FormValidation doCheckMaxLogErrors(@QueryParameter String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check the pattern of an error line.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern is invalid
+		 */
+		public FormValidation doCheckLogErrorPattern(@QueryParameter String value) {
+			return checkLogPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a warning line.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern is invalid
+		 */
+		public FormValidation doCheckLogWarningPattern(@QueryParameter String value) {
+			return checkLogPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a walkback line.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern is invalid
+		 */
+		public FormValidation doCheckLogFatalPattern(@QueryParameter String value) {
+			return checkLogPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a test start.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern can not be used
+		 */
+		public FormValidation doCheckTestStartPattern(@QueryParameter String value) {
+			return checkPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a passed test.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern can not be used
+		 */
+		public FormValidation doCheckTestPassPattern(@QueryParameter String value) {
+			return checkPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a failed test.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern can not be used
+		 */
+		public FormValidation doCheckTestFailPattern(@QueryParameter String value) {
+			return checkPattern(value);
+		}
+
+		/**
+		 * Check the pattern of a test error.
+		 * 
+		 * @param value
+		 *            regular expression
+		 * @return error if the pattern can not be used
+		 */
+		public FormValidation doCheckTestErrorPattern(@QueryParameter String value) {
+			return checkPattern(value);
+		}
+
+		private FormValidation checkPattern(String value) {
+			String error = SUnitParser.checkPattern(value);
+			return error == null ? FormValidation.ok() : FormValidation.error(error);
+		}
+
+		private FormValidation checkLogPattern(String value) {
+			String error = LogClassifier.checkPattern(value);
+			return error == null ? FormValidation.ok() : FormValidation.error(error);
+		}
+
 		/**
 		 * Get absolute installation path of ObjectStudio.
 		 * 
@@ -0,0 +1,269 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Calendar;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Trend of the {@link ObjectStudioBuildAction} metrics across the builds of
+ * a project, shown as graphs on the project page.
+ *
+ * @author Patrick Lauper
+ */
+public class ObjectStudioProjectAction implements Action {
+
+	/**
+	 * Number of builds shown in the graphs.
+	 */
+	static final int MAX_BUILDS = 50;
+
+	/**
+	 * Phases shown in the time graph.
+	 */
+	static final String[] TREND_PHASES = {
+		ObjectStudioBuildAction.SETUP,
+		WorkspacePreparation.PROVIDE_IMAGE,
+		ObjectStudioBuildAction.WAIT_FOR_LOG,
+		ObjectStudioBuildAction.RUN,
+		ObjectStudioBuildAction.JOIN,
+	};
+
+	/**
+	 * Volumes shown in the size graph.
+	 */
+	static final String[] TREND_COUNTERS = {
+		ObjectStudioBuildAction.IMAGE_SIZE,
+		ObjectStudioBuildAction.BYTES_COPIED,
+		ObjectStudioBuildAction.LOG_BYTES,
+	};
+
+	/**
+	 * Sizes from the VisualWorks memory usage report shown in the memory
+	 * graph.
+	 */
+	static final String[] TREND_MEMORY = {
+		MemoryReport.PEAK_HEAP,
+		MemoryReport.OLD_SPACE,
+		MemoryReport.NEW_SPACE,
+	};
+
+	private static final int WIDTH = 500;
+	private static final int HEIGHT = 200;
+	private static final double MILLIS_PER_SECOND = 1000.0;
+	private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+	private final AbstractProject<?, ?> project;
+
+	/**
+	 * Create the trend of a project.
+	 * @param project Jenkins project
+	 */
+	public ObjectStudioProjectAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	/**
+	 * Get the project.
+	 * @return Jenkins project
+	 */
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	/**
+	 * Whether there are enough builds with metrics to draw a trend.
+	 * @return true if at least two recent builds have metrics
+	 */
+	public boolean isTrendVisible() {
+		int found = 0;
+		for (AbstractBuild<?, ?> build : project.getBuilds().limit(MAX_BUILDS)) {
+			if (build.getAction(ObjectStudioBuildAction.class) != null) {
+				found++;
+				if (found > 1) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Draw the duration of the phases.
+	 * @param req Stapler request
+	 * @param rsp Stapler response
+	 * @throws IOException on write errors
+	 */
+	public void doTimeTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		DataSetBuilder<String, NumberOnlyBuildLabel> data = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+		for (AbstractBuild<?, ?> build : project.getBuilds().limit(MAX_BUILDS)) {
+			ObjectStudioBuildAction metrics = build.getAction(ObjectStudioBuildAction.class);
+			if (metrics == null) {
+				continue;
+			}
+			NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+			for (String phase : TREND_PHASES) {
+				Long millis = metrics.getTiming(phase);
+				if (millis != null) {
+					data.add(millis / MILLIS_PER_SECOND, phase, label);
+				}
+			}
+		}
+		new TrendGraph(data.build(), "seconds").doPng(req, rsp);
+	}
+
+	/**
+	 * Draw the image size and the bytes copied and logged.
+	 * @param req Stapler request
+	 * @param rsp Stapler response
+	 * @throws IOException on write errors
+	 */
+	public void doSizeTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		new TrendGraph(getMegabytes(TREND_COUNTERS), "MB").doPng(req, rsp);
+	}
+
+	/**
+	 * Whether recent builds have a VisualWorks memory usage report.
+	 * @return true if at least two recent builds report the peak heap
+	 */
+	public boolean isMemoryTrendVisible() {
+		int found = 0;
+		for (AbstractBuild<?, ?> build : project.getBuilds().limit(MAX_BUILDS)) {
+			ObjectStudioBuildAction metrics = build.getAction(ObjectStudioBuildAction.class);
+			if (metrics != null && metrics.getCounter(MemoryReport.PEAK_HEAP) != null) {
+				found++;
+				if (found > 1) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Draw the peak heap, old space and new space.
+	 * @param req Stapler request
+	 * @param rsp Stapler response
+	 * @throws IOException on write errors
+	 */
+	public void doMemoryTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		new TrendGraph(getMegabytes(TREND_MEMORY), "MB").doPng(req, rsp);
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "ObjectStudio Trend";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "objectstudio";
+	}
+
+	/**
+	 * Collect counters in bytes of the recent builds as MB.
+	 */
+	private CategoryDataset getMegabytes(String[] counters) {
+		DataSetBuilder<String, NumberOnlyBuildLabel> data = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+		for (AbstractBuild<?, ?> build : project.getBuilds().limit(MAX_BUILDS)) {
+			ObjectStudioBuildAction metrics = build.getAction(ObjectStudioBuildAction.class);
+			if (metrics == null) {
+				continue;
+			}
+			NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+			for (String counter : counters) {
+				Long bytes = metrics.getCounter(counter);
+				if (bytes != null) {
+					data.add(bytes / BYTES_PER_MB, counter, label);
+				}
+			}
+		}
+		return data.build();
+	}
+
+	private Calendar getTimestamp() {
+		AbstractBuild<?, ?> last = project.getLastBuild();
+		return last == null ? Calendar.getInstance() : last.getTimestamp();
+	}
+
+	/**
+	 * Line graph with one line per series and one column per build.
+	 */
+	private final class TrendGraph extends Graph {
+		private final CategoryDataset dataset;
+		private final String unit;
+
+		TrendGraph(CategoryDataset dataset, String unit) {
+			super(getTimestamp(), WIDTH, HEIGHT);
+			this.dataset = dataset;
+			this.unit = unit;
+		}
+
+		@Override
+		protected JFreeChart createGraph() {
+			JFreeChart chart = ChartFactory.createLineChart(null, null, unit, dataset,
+					PlotOrientation.VERTICAL, true, true, false);
+			chart.setBackgroundPaint(Color.white);
+			CategoryPlot plot = chart.getCategoryPlot();
+			plot.setBackgroundPaint(Color.white);
+			plot.setOutlinePaint(null);
+			plot.setRangeGridlinesVisible(true);
+			plot.setRangeGridlinePaint(Color.black);
+			CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+			plot.setDomainAxis(domainAxis);
+			domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+			domainAxis.setLowerMargin(0.0);
+			domainAxis.setUpperMargin(0.0);
+			domainAxis.setCategoryMargin(0.0);
+			plot.getRangeAxis().setLowerBound(0);
+			plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+			return chart;
+		}
+	}
+}
@@ -23,13 +23,25 @@
 
 package org.jenkinsci.plugins.objectstudio;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import hudson.AbortException;
 import hudson.EnvVars;
@@ -37,11 +49,22 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
 import hudson.Proc;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Fingerprinter;
 import hudson.util.ArgumentListBuilder;
 
+import jenkins.model.Jenkins;
+
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jenkinsci.plugins.objectstudio.ObjectStudioBuilder.ObjectStudioDescriptor;
 
 /**
  * Runs the ObjectStudio process and reads the logfile.
@@ -49,15 +72,83 @@ import org.apache.commons.io.FilenameUtils;
  *
  */
 public class ObjectStudioRunner {
+
+	/**
+	 * Shortest time in milliseconds to wait on the node for new log lines.
+	 */
+	static final long MIN_LOG_WAIT = 1000;
+
+	/**
+	 * Longest time in milliseconds to wait on the node for new log lines.
+	 */
+	static final long MAX_LOG_WAIT = 5000;
+
+	/**
+	 * Shortest time in milliseconds between two writes of the test report
+	 * while ObjectStudio is running.
+	 */
+	static final long TEST_REPORT_INTERVAL = 10000;
+
+	/**
+	 * Environment variable with the index of the shard, starting at 0.
+	 */
+	public static final String SHARD_INDEX = "OSTUDIO_SHARD_INDEX";
+
+	/**
+	 * Environment variable with the number of shards.
+	 */
+	public static final String SHARD_COUNT = "OSTUDIO_SHARD_COUNT";
+
+	/**
+	 * Slot id used to compute the configuration key of the warm pool.
+	 */
+	private static final String WARM_KEY_SLOT = "key";
+
 	PrintStream logger;
+	FilePath buildDir;
 	FilePath workdir;
 	FilePath tempdir;
+	FilePath runDir;
 	HashMap<String, String> envs = new HashMap<String, String>();
 	int buildNr;
 	ObjectStudio objectStudio;
+	Charset charset = Charset.defaultCharset();
 	
+	String imageSource;
 	FilePath image;
+	FilePath imageCache;
+	List<String> sharedImages = new ArrayList<String>();
 	FilePath preloadScript;
+	FilePath log;
+	String logName;
+	String loadScript;
+	String postloadScript;
+	int shardIndex;
+	int shardCount = 1;
+	
+	ObjectStudioBuildAction metrics = new ObjectStudioBuildAction();
+	long logBytes;
+	
+	SUnitParser testParser;
+	FilePath testReport;
+	long testReportVersion;
+	long testReportWritten;
+	
+	LogClassifier classifier;
+	
+	FilePath warmRoot;
+	String warmId;
+	
+	Watchdog watchdog;
+	
+	MemoryReport memoryReport;
+	OutputStream memoryStdout;
+	OutputStream memoryStderr;
+	int maxHeapSize;
+	
+	ConsoleWriter console;
+	TranscriptArchive transcript;
+	List<String> transcripts = new ArrayList<String>();
 	
 	/**
 	 * Create a new instance with a logger.
@@ -67,31 +158,53 @@ public class ObjectStudioRunner {
 	public ObjectStudioRunner(ObjectStudio os, PrintStream logger, int buildNr) {
 		this.logger = logger;
 		this.objectStudio = os;
+		this.buildNr = buildNr;
 	}
 	
 	private void printBuildInfo(ObjectStudioBuilder builder) {
-        try {
-			logger.println("[ObjectStudio] - Build Path: " + workdir.absolutize().getRemote());
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
+        logger.println("[ObjectStudio] - Build Path: " + buildDir.getRemote());
+        if (shardCount > 1) {
+        	logger.println("[ObjectStudio] - Shard: " + shardIndex + " of " + shardCount + " in " + workdir.getRemote());
+        } else if (!workdir.getRemote().equals(buildDir.getRemote())) {
+        	logger.println("[ObjectStudio] - Run Directory: " + workdir.getRemote());
+        }
         logger.println("[ObjectStudio] - Preload Script: " + builder.getPreloadScript());
-        logger.println("[ObjectStudio] - Autoload Script: " + builder.getLoadScript());
-        logger.println("[ObjectStudio] - AfterLogon Script: " + builder.getPostloadScript());
+        logger.println("[ObjectStudio] - Autoload Script: " + loadScript);
+        logger.println("[ObjectStudio] - AfterLogon Script: " + postloadScript);
         logger.println("[ObjectStudio] - OStudio Exe: " + builder.getObjectStudioExe());
-        logger.println("[ObjectStudio] - OStudio Image: " + builder.getObjectStudioImage());
+        logger.println("[ObjectStudio] - OStudio Image: " + imageSource);
         logger.println("[ObjectStudio] - OStudio Ini: " + builder.getOstudioIni());
-        logger.println("[ObjectStudio] - OStudio Log: " + builder.getOstudioLog());
+        logger.println("[ObjectStudio] - OStudio Log: " + logName);
         logger.println("[ObjectStudio] - OStudio Parameter: " + builder.getOstudioParameter());
 	}
 	
-	private void printEnvInfo(EnvVars envVars) {
-		logger.println("[ObjectStudio] - Environment Variables");
-        for (Map.Entry<String, String> e : envVars.entrySet()) {
-        	logger.println("   " + e.getKey() + "=" + e.getValue());
-        }
+	/**
+	 * Write the environment to the build log as configured and record its
+	 * hash.
+	 * @param run Jenkins build
+	 * @param envVars environment of the build
+	 * @param mode one of the modes of {@link EnvironmentCapture}
+	 */
+	private void printEnvInfo(Run<?, ?> run, EnvVars envVars, String mode) {
+		if (EnvironmentCapture.NONE.equals(mode)) {
+			return;
+		}
+		if (EnvironmentCapture.FULL.equals(mode)) {
+			logger.println("[ObjectStudio] - Environment Variables");
+			for (Map.Entry<String, String> e : envVars.entrySet()) {
+				logger.println("   " + e.getKey() + "=" + e.getValue());
+			}
+		}
+		String hash = EnvironmentCapture.hash(envVars);
+		metrics.setEnvironmentHash(hash);
+		Run<?, ?> previous = run.getPreviousBuild();
+		ObjectStudioBuildAction action = previous == null ? null : previous.getAction(ObjectStudioBuildAction.class);
+		String previousHash = action == null ? null : action.getEnvironmentHash();
+		String change = "";
+		if (previousHash != null) {
+			change = previousHash.equals(hash) ? ", unchanged" : ", changed since build #" + previous.getNumber();
+		}
+		logger.println("[ObjectStudio] - Environment: " + envVars.size() + " variables, hash " + hash.substring(0, 8) + change);
 	}
 
 	/**
@@ -105,325 +218,1151 @@ public class ObjectStudioRunner {
 	 */
 	public void run(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, ObjectStudioBuilder builder) throws AbortException, InterruptedException {
 
+        long setupStart = System.nanoTime();
+        checkCommandline(builder);
+        initCharset(build.getBuiltOn());
         logger.println("[ObjectStudio] - Get Workdir");
         // Get absolute workspace directory from Jenkins build
-        workdir = build.getWorkspace();
+        FilePath workspace = build.getWorkspace();
 
-        initTempDirectory();
         initNetworkDrives();
         
-        // Change working directory to sub directory if required
-        if (builder.getBuildPath() != null && !builder.getBuildPath().isEmpty()) {
-        	workdir = workdir.child(builder.getBuildPath());
+        imageSource = builder.getObjectStudioImage();
+        if (builder.getControllerImage()) {
+        	syncImage(build.getBuiltOn(), builder);
         }
-
-        logger.println("[ObjectStudio] - Get Environment");
-        EnvVars envVars = getEnv(build, listener);
+        if (builder.getSkipUnchanged() && isUpToDate(build, workspace, builder)) {
+        	return;
+        }
+        // Only needed once ObjectStudio is started
+        EnvVars envVars = getEnv(build, listener, builder);
         
-        // Get absolute ObjectStudio log file in working directory
-        logger.println("[ObjectStudio] - Get Logfile");
-        FilePath log = getAbsoluteWorkspacePath(builder.getOstudioLog());
+        WorkspacePreparation.Prepared prepared = prepareWorkspace(workspace, builder, getImageCacheRoot(build.getBuiltOn(), builder.getDescriptor()));
+        List<WorkspacePreparation.Instance> instances = prepared.getInstances();
+        long launchStart = System.nanoTime();
+        if (instances.size() == 1) {
+        	use(instances.get(0), workspace.getChannel(), 0, 1);
+        	warmRoot = getWarmRoot(build, builder);
+        	execute(build, launcher, listener, builder, envVars, setupStart);
+        } else {
+        	printEnvInfo(build, envVars, builder.getEnvironmentLog());
+        	runShards(build, launcher, listener, builder, envVars, instances, workspace.getChannel(), setupStart);
+        }
+        if (!isBlank(builder.getOutputImage())) {
+        	captureOutputImage(build, builder, launchStart);
+        }
+	}
 
-        initLogfile(log);
-        
-        initPreloadScript(builder);
-        initPostloadScript(builder);
-        
-        initOstudioIni(builder);
-        initOstudioImage(builder);
+	/**
+	 * Prepare the workspace and the command line of ObjectStudio without
+	 * starting it. The Pipeline step launches the process itself, so warm
+	 * pool, shards, watchdog and skipping unchanged inputs are not available.
+	 * @param run Pipeline run
+	 * @param workspace workspace of the run
+	 * @param node node the workspace lives on
+	 * @param envVars environment of the run
+	 * @param builder ObjectStudioBuilder
+	 * @return command line, to be started in {@link #getWorkdir()} with {@link #getEnvs()}
+	 * @throws AbortException abort build on failure
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	public ArgumentListBuilder prepare(Run<?, ?> run, FilePath workspace, Node node, EnvVars envVars, ObjectStudioBuilder builder)
+			throws AbortException, InterruptedException {
+		if (builder.getShards() > 1) {
+			throw new AbortException("Shards are not supported by the Pipeline step");
+		}
+		long setupStart = System.nanoTime();
+		checkCommandline(builder);
+		initCharset(node);
+		imageSource = builder.getObjectStudioImage();
+		if (builder.getControllerImage()) {
+			syncImage(node, builder);
+		}
+		WorkspacePreparation.Prepared prepared = prepareWorkspace(workspace, builder, getImageCacheRoot(node, builder.getDescriptor()));
+		use(prepared.getInstances().get(0), workspace.getChannel(), 0, 1);
+		initPostloadScript();
+		initTestReport(builder);
+		initClassifier(builder);
+		printBuildInfo(builder);
+		printEnvInfo(run, envVars, builder.getEnvironmentLog());
+		ArgumentListBuilder command = objectStudio.getCommandline(run, builder, this);
+		metrics.timing(ObjectStudioBuildAction.SETUP, millisSince(setupStart));
+		return command;
+	}
+
+	/**
+	 * Decode the output and the log of ObjectStudio like the node writes
+	 * them, not like the controller.
+	 * @param node node running ObjectStudio
+	 */
+	private void initCharset(Node node) {
+		Computer computer = node == null ? null : node.toComputer();
+		Charset nodeCharset = computer == null ? null : computer.getDefaultCharset();
+		if (nodeCharset != null) {
+			charset = nodeCharset;
+		}
+	}
+
+	/**
+	 * Parse the command line before the image is staged. Configurations
+	 * saved by older versions or given to the Pipeline step were not checked
+	 * when they were saved.
+	 * @param builder ObjectStudioBuilder
+	 * @throws AbortException if a parameter can not be parsed
+	 */
+	private static void checkCommandline(ObjectStudioBuilder builder) throws AbortException {
+		try {
+			builder.getCommandTemplate();
+		} catch (IllegalArgumentException e) {
+			throw new AbortException("Invalid command line: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Copy the image saved by the scripts to the artifacts of the build and
+	 * record its fingerprint.
+	 * @param build Jenkins build
+	 * @param builder ObjectStudioBuilder
+	 * @param launchStart start of ObjectStudio from {@link System#nanoTime()}
+	 * @throws AbortException if there is no image saved by this build
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void captureOutputImage(AbstractBuild<?, ?> build, ObjectStudioBuilder builder, long launchStart)
+			throws AbortException, InterruptedException {
+		logger.println("[ObjectStudio] - Capture Output Image: " + builder.getOutputImage());
+		long start = System.nanoTime();
+		boolean compress = builder.getCompressOutputImage();
+		File dir = new File(build.getArtifactsDir(), TranscriptArchive.DIRECTORY);
+		File temp = new File(dir, "image-" + buildNr + ".tmp");
+		OutputImage.Captured captured;
+		try {
+			Files.createDirectories(dir.toPath());
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				captured = buildDir.act(new OutputImage(builder.getOutputImage(), compress,
+						millisSince(launchStart), new RemoteOutputStream(out)));
+				// The last chunks may still be on their way when the call returns
+				if (buildDir.getChannel() != null) {
+					buildDir.getChannel().syncLocalIO();
+				}
+			} finally {
+				out.close();
+			}
+			if (temp.length() != captured.getBytesWritten()) {
+				throw new IOException("received " + temp.length() + " of " + captured.getBytesWritten() + " bytes");
+			}
+			String name = FilenameUtils.getName(captured.getName());
+			File artifact = new File(dir, name + (compress ? OutputImage.COMPRESSED : ""));
+			Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			logger.println("[ObjectStudio] - Output image " + captured.getName() + ": " + captured.getLength()
+					+ " bytes, archived as " + TranscriptArchive.DIRECTORY + "/" + artifact.getName() + " with "
+					+ captured.getBytesWritten() + " bytes, MD5 " + captured.getMd5());
+			recordFingerprint(build, name, captured.getMd5());
+		} catch (IOException e) {
+			throw new AbortException("Can not capture output image: " + e.getMessage());
+		} finally {
+			temp.delete();
+		}
+		metrics.timing(ObjectStudioBuildAction.CAPTURE_IMAGE, millisSince(start));
+		metrics.counter(ObjectStudioBuildAction.OUTPUT_IMAGE_SIZE, captured.getLength());
+		metrics.counter(ObjectStudioBuildAction.OUTPUT_IMAGE_BYTES, captured.getBytesWritten());
+	}
+
+	/**
+	 * Record the fingerprint of the uncompressed image, so it matches where
+	 * downstream builds use the image.
+	 */
+	private void recordFingerprint(AbstractBuild<?, ?> build, String name, String md5) throws IOException {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return;
+		}
+		jenkins.getFingerprintMap().getOrCreate(build, name, md5).addFor(build);
+		Map<String, String> record = Collections.singletonMap(name, md5);
+		Fingerprinter.FingerprintAction action = build.getAction(Fingerprinter.FingerprintAction.class);
+		if (action == null) {
+			build.addAction(new Fingerprinter.FingerprintAction(build, record));
+		} else {
+			action.add(record);
+		}
+	}
+
+	/**
+	 * Bring the copy of the image on the node up to date with the image on
+	 * the controller and use the copy.
+	 * @param node node running the build
+	 * @param builder ObjectStudioBuilder
+	 * @throws AbortException if the image can not be sent
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void syncImage(Node node, ObjectStudioBuilder builder) throws AbortException, InterruptedException {
+		FilePath root = node == null ? null : node.getRootPath();
+		if (root == null) {
+			throw new AbortException("Can not send the image, the node is offline");
+		}
+		File source = new File(builder.getObjectStudioImage());
+		FilePath target = DeltaSync.getTarget(root, source);
+		logger.println("[ObjectStudio] - Sync Image from controller: " + source + " to " + target.getRemote());
+		long start = System.nanoTime();
+		DeltaSync.Synced synced;
+		try {
+			target.getParent().mkdirs();
+			synced = new DeltaSync(source, target, builder.getDescriptor().getImageSyncStreams()).sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new AbortException("Can not send the image: " + e.getMessage());
+		}
+		metrics.timing(ObjectStudioBuildAction.SYNC_IMAGE, millisSince(start));
+		metrics.counter(ObjectStudioBuildAction.BYTES_SENT, synced.getBytesSent());
+		if (synced.isUpToDate()) {
+			logger.println("[ObjectStudio] - Image on the node is up to date");
+		} else {
+			logger.println("[ObjectStudio] - Sent " + synced.getBytesSent() + " of " + synced.getLength() + " bytes in "
+					+ synced.getStreams() + " streams, " + synced.getBlocksReused() + " blocks reused");
+		}
+		imageSource = target.getRemote();
+	}
+
+	/**
+	 * Compare the fingerprint of the inputs with the last successful build
+	 * and reuse its output if they are the same.
+	 * @param build Jenkins build
+	 * @param workspace Jenkins workspace
+	 * @param builder ObjectStudioBuilder
+	 * @return true if ObjectStudio does not have to run
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private boolean isUpToDate(AbstractBuild<?, ?> build, FilePath workspace, ObjectStudioBuilder builder) throws InterruptedException {
+		logger.println("[ObjectStudio] - Fingerprint Inputs");
+		long start = System.nanoTime();
+		InputFingerprint.Result inputs;
+		try {
+			inputs = workspace.act(new InputFingerprint(builder, imageSource, build.getBuildVariables()));
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not fingerprint inputs, running ObjectStudio: " + e.getMessage());
+			return false;
+		}
+		metrics.timing(ObjectStudioBuildAction.FINGERPRINT, millisSince(start));
+		metrics.setFingerprint(inputs.getFingerprint());
+		logger.println("[ObjectStudio] - Input Fingerprint: " + inputs.getFingerprint() + " (" + inputs.getSources() + " source files)");
+		
+		Run<?, ?> previous = build.getPreviousSuccessfulBuild();
+		ObjectStudioBuildAction previousMetrics = previous == null ? null : previous.getAction(ObjectStudioBuildAction.class);
+		if (previousMetrics == null || !inputs.getFingerprint().equals(previousMetrics.getFingerprint())) {
+			return false;
+		}
+		logger.println("[ObjectStudio] - Inputs unchanged since build #" + previous.getNumber() + ", skipping ObjectStudio");
+		metrics.setUpToDateWith(previous.getNumber());
+		reuseArtifacts(build, previous);
+		reuseTestReports(builder, new FilePath(workspace.getChannel(), inputs.getWorkdir()));
+		return true;
+	}
+
+	/**
+	 * Take over the Transcript archives and the output image of an earlier
+	 * build. The files are hard linked where possible, they are not changed
+	 * once written.
+	 */
+	private void reuseArtifacts(AbstractBuild<?, ?> build, Run<?, ?> previous) {
+		File[] files = new File(previous.getArtifactsDir(), TranscriptArchive.DIRECTORY).listFiles();
+		if (files == null || files.length == 0) {
+			return;
+		}
+		File to = new File(build.getArtifactsDir(), TranscriptArchive.DIRECTORY);
+		try {
+			Files.createDirectories(to.toPath());
+			for (File file : files) {
+				File target = new File(to, file.getName());
+				try {
+					Files.createLink(target.toPath(), file.toPath());
+				} catch (IOException e) {
+					Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (UnsupportedOperationException e) {
+					Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			logger.println("[ObjectStudio] - Artifacts taken over from build #" + previous.getNumber());
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not take over artifacts of build #" + previous.getNumber() + ": " + e.getMessage());
+			return;
+		}
+		TranscriptAction action = previous.getAction(TranscriptAction.class);
+		if (action != null) {
+			transcripts.addAll(action.getNames());
+		}
+	}
+
+	/**
+	 * The SUnit reports of the earlier build are still in the workspace.
+	 * Touch them, as the JUnit publisher ignores reports older than the
+	 * build.
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void reuseTestReports(ObjectStudioBuilder builder, FilePath dir) throws InterruptedException {
+		if (builder.getTestReport().trim().isEmpty()) {
+			return;
+		}
+		int count = Math.max(1, builder.getShards());
+		for (int i = 0; i < count; i++) {
+			FilePath report = new FilePath(dir, getTestReportName(builder, i, count));
+			try {
+				if (report.exists()) {
+					report.touch(System.currentTimeMillis());
+					logger.println("[ObjectStudio] - Reusing SUnit results " + report.getRemote());
+				} else {
+					logger.println("[ObjectStudio] - SUnit results of the earlier build not found: " + report.getRemote());
+				}
+			} catch (IOException e) {
+				logger.println("[ObjectStudio] - Can not reuse SUnit results " + report.getRemote() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Run one ObjectStudio process in the prepared directories.
+	 * @param build Jenkins build
+	 * @param launcher Jenkins launcher
+	 * @param listener Jenkins listener
+	 * @param builder ObjectStudioBuilder
+	 * @param envVars build environment
+	 * @param setupStart start of the build step from {@link System#nanoTime()}
+	 * @throws AbortException abort build on failure
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void execute(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, ObjectStudioBuilder builder,
+			EnvVars envVars, long setupStart) throws AbortException, InterruptedException {
+        initPostloadScript();
+        initTestReport(builder);
+        initClassifier(builder);
+        initWatchdog(builder);
+        initMemoryReport(builder);
+        console = new ConsoleWriter(logger);
+        initTranscript(build, builder);
         
         printBuildInfo(builder);
-        printEnvInfo(envVars);
+        if (shardCount == 1) {
+        	printEnvInfo(build, envVars, builder.getEnvironmentLog());
+        }
         
         logger.println("[ObjectStudio] - Get Commandline");
         ArgumentListBuilder command = objectStudio.getCommandline(build, builder, this);
+        metrics.timing(ObjectStudioBuildAction.SETUP, millisSince(setupStart));
         
         logger.println("[ObjectStudio] - Starting: " + command);
-        ByteArrayOutputStream errorStream = new ByteArrayOutputStream();
+        // Error output is shown live, only its head and tail are kept for the failure message
+        StderrCapture errorStream = new StderrCapture(logger, charset);
         ProcStarter procStarter = launcher.decorateByEnv(envVars).launch()
         		.pwd(workdir)
         		.envs(envs)
         		.cmds(command)
-        		.stderr(errorStream)
-        		.stdout(listener);
+        		.stdout(getStdout(listener))
+        		.stderr(memoryReport == null ? errorStream : new TeeOutputStream(errorStream, memoryStderr));
         
         Proc proc = null;		
+        long runStart = System.nanoTime();
+        if (warmRoot != null) {
+        	proc = startWarm(build, builder, envVars);
+        }
         try {
-	        proc = procStarter.start();
+        	if (proc == null) {
+        		proc = procStarter.start();
+        	}
 		} catch (IOException e) {
 			e.printStackTrace();
             throw new AbortException("Error starting ObjectStudio: " + e.getMessage());
 		}
 
-        logger.println("[ObjectStudio] - Reading Log: " + log.getRemote());
-		try {
-			waitForProcess(log, proc);
-			readLog(log, proc);
-		} catch (IOException e) {
-			e.printStackTrace();
-            throw new AbortException("Error waiting ObjectStudio: " + e.getMessage());
-		}
+        if (log == null) {
+        	logger.println("[ObjectStudio] - No Log configured");
+        	watch(launcher, proc);
+        } else {
+        	logger.println("[ObjectStudio] - Reading Log: " + log.getRemote());
+        	readLog(launcher, proc, runStart);
+        }
 
 		logger.println("[ObjectStudio] - Joining");
         int rc;
+        long joinStart = System.nanoTime();
 		try {
 			rc = proc.join();
-	        if (rc != 0) {
-	        	logger.println("Error running command: " + errorStream.toString());
-	            throw new AbortException(errorStream.toString());
-	        }   
+			metrics.timing(ObjectStudioBuildAction.JOIN, millisSince(joinStart));
+			metrics.timing(ObjectStudioBuildAction.RUN, millisSince(runStart));
+			errorStream.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
             throw new AbortException("Error joining ObjectStudio: " + e.getMessage());
 		} catch (InterruptedException e) {
-			try {
-				proc.kill();
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
+			kill(launcher, proc);
             throw new InterruptedException();
-		}	
+		}
+        if (warmId != null) {
+        	printWarmOutput();
+        }
+        AbortException memoryFailure = recordMemoryReport();
+        if (rc != 0) {
+        	logger.println("Error running command, exit code " + rc);
+            throw new AbortException(errorStream.getCount() == 0 ? "ObjectStudio exit code " + rc : errorStream.toString());
+        }	
+        if (memoryFailure != null) {
+        	throw memoryFailure;
+        }
     	
 	}
 
-	private void readLog(FilePath log, Proc proc) throws InterruptedException {
+	private void readLog(Launcher launcher, Proc proc, long runStart) throws AbortException, InterruptedException {
 		
-		BufferedReader reader = null;
-		int lastLine = 0;
+		// Runs next to the log on the node, only new lines are sent back
+		LogFollower follower = new LogFollower(log);
+		// With an archive only error lines go to the build log
+		OutputStream out = transcript == null ? console : transcript;
+		if (watchdog.isEnabled()) {
+			out = new TeeOutputStream(out, watchdog);
+		}
+		if (testParser != null) {
+			// SUnit results are recognized while the lines are copied
+			out = new TeeOutputStream(out, testParser);
+		}
+		if (classifier != null) {
+			out = new TeeOutputStream(out, classifier);
+		}
 		
+		AbortException stalled = null;
 		try {
-	        String s = null;
-	        while (proc.isAlive()) {
-	        	
-	        	// Seems we need to open it again when running on remote node.
-	        	// Which is really bad, should rewrite this to run on remote node.
-	        	reader = new BufferedReader(new InputStreamReader(log.read()));
-		        int line = 1;
-				int timeout = 0;
-		        
-		        while (proc.isAlive() && timeout < 10) {
-			        
-					s = reader.readLine();
-			        while (s != null) {
-			        	if (line > lastLine) {
-			        		logger.println(s);
-			        		timeout = 0;
-			        	}
-			        	line++;
-			        	s = reader.readLine();
-			        }
-			        
-			        // Sleep here, so we do not create too much CPU overhead while ObjectStudio is working
-			        if (proc.isAlive()) {
-						Thread.sleep(1000);
-						timeout++;
-			        }
-		        }
-		        
-		        reader.close();
-		        lastLine = line - 1;
+			// The node returns as soon as there are new lines, so the wait only
+			// limits how late the end of the process is noticed. It grows while
+			// ObjectStudio is busy without writing to the Transcript.
+			long wait = MIN_LOG_WAIT;
+			boolean waiting = false;
+			boolean created = false;
+	        while (stalled == null && proc.isAlive()) {
+	        	if (followLog(follower, out, wait, false) > 0) {
+	        		wait = MIN_LOG_WAIT;
+	        	} else {
+	        		wait = Math.min(wait * 2, MAX_LOG_WAIT);
+	        	}
+	        	if (!created && follower.isCreated()) {
+	        		metrics.timing(ObjectStudioBuildAction.WAIT_FOR_LOG, millisSince(runStart));
+	        		created = true;
+	        	} else if (!waiting && !follower.isCreated()) {
+	        		logger.println("    Waiting for ObjectStudio...");
+	        		waiting = true;
+	        	}
+	        	writeTestReport(false);
+	        	stalled = checkWatchdog(launcher, proc);
+	        	if (stalled == null) {
+	        		stalled = checkClassifier(launcher, proc);
+	        	}
+	        }
+	        
+	        // Lines written between the last poll and the end of the process
+	        followLog(follower, out, 0, true);
+	        if (testParser != null) {
+	        	testParser.close();
+	        	writeTestReport(true);
+	        }
+	        if (classifier != null) {
+	        	classifier.close();
+	        	recordClassifier();
+	        	String reason = classifier.check();
+	        	if (stalled == null && reason != null) {
+	        		// The limit was only reached by the last lines
+	        		logger.println("[ObjectStudio] - " + reason);
+	        		stalled = new AbortException(reason);
+	        	}
 	        }
 		} catch (IOException e) {
 	        logger.println("Failed reading log " + log.getRemote());
 			e.printStackTrace();
 		} catch (InterruptedException e) {
-			try {
-				proc.kill();
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
-			if (reader != null) {
-				try { 
-					reader.close();
-				} catch (IOException e2) {
-					e2.printStackTrace();
-				}
-			}
+			kill(launcher, proc);
 			throw new InterruptedException();
 		} finally {
-			if (reader != null) {
-				try {
-					reader.close();
-				} catch (IOException e2) {
-					e2.printStackTrace();
-				}
+			closeTranscript();
+		}
+		if (stalled != null) {
+			throw stalled;
+		}
+	}
+
+	/**
+	 * Archive the Transcript instead of copying it to the build log, if
+	 * configured and there is a log.
+	 * @throws AbortException if the archive can not be created
+	 */
+	private void initTranscript(AbstractBuild<?, ?> build, ObjectStudioBuilder builder) throws AbortException {
+		if (!builder.getArchiveTranscript() || log == null) {
+			return;
+		}
+		String name = shardCount > 1 ? "transcript-" + shardIndex : "transcript";
+		File dir = new File(build.getArtifactsDir(), TranscriptArchive.DIRECTORY);
+		try {
+			transcript = new TranscriptArchive(dir, name, console, charset);
+		} catch (IOException e) {
+			throw new AbortException("Can not create Transcript archive in " + dir + ": " + e.getMessage());
+		}
+		transcripts.add(name);
+		logger.println("[ObjectStudio] - Archiving Transcript to " + name + TranscriptArchive.DATA + ", only errors are shown here");
+	}
+
+	/**
+	 * Write what is left of the log to the build log and the archive.
+	 */
+	private void closeTranscript() {
+		try {
+			if (transcript != null) {
+				transcript.close();
 			}
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not write Transcript archive: " + e.getMessage());
 		}
+		try {
+			console.flush();
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not write to the build log: " + e.getMessage());
+		}
+		if (transcript == null) {
+			return;
+		}
+		logger.println("[ObjectStudio] - Transcript archived: " + transcript.getLines() + " lines, "
+				+ transcript.getBytes() + " bytes, " + transcript.getCompressedBytes() + " bytes compressed, "
+				+ transcript.getErrors() + " error lines shown");
 	}
 
-	private void waitForProcess(FilePath log, Proc proc)
-			throws InterruptedException, IOException {
-		// Wait at least 10 seconds
-		for (int i = 0; i < 10; i++) {
-			if (!log.exists()) {
-				try {
-			        logger.println("    Waiting for ObjectStudio...");
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					try {
-						proc.kill();
-					} catch (IOException e1) {
-						e1.printStackTrace();
-					}
-					throw new InterruptedException();
-				}
+	/**
+	 * Wait for a process without a log and check the watchdog meanwhile.
+	 * @throws AbortException if the watchdog killed the process
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void watch(Launcher launcher, Proc proc) throws AbortException, InterruptedException {
+		if (!watchdog.isEnabled()) {
+			return;
+		}
+		AbortException stalled = null;
+		try {
+			while (stalled == null && proc.isAlive()) {
+				Thread.sleep(MIN_LOG_WAIT);
+				stalled = checkWatchdog(launcher, proc);
 			}
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not check ObjectStudio: " + e.getMessage());
+		}
+		if (stalled != null) {
+			throw stalled;
 		}
 	}
 
-	private void initOstudioImage(ObjectStudioBuilder builder)
-			throws AbortException {
-        logger.println("[ObjectStudio] - Create Image File for " + builder.getObjectStudioImage());
-        FilePath src = getAbsoluteWorkspacePath(builder.getObjectStudioImage());
-        
-        if (!builder.getOstudioImageCopy()) {
-        	this.image = src;
-        	return;
-        }
-        
-        FilePath dst = getTempFilename(builder.getObjectStudioImage());
-        try {
-			copyTo(src, dst.absolutize());
+	/**
+	 * Check the limits of the watchdog. If one is exceeded, print the
+	 * processes and the last output and kill the whole process tree.
+	 * @return failure to throw once the rest of the log has been read, or null
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private AbortException checkWatchdog(Launcher launcher, Proc proc) throws InterruptedException {
+		String reason = watchdog.check(workdir.getChannel());
+		if (reason == null) {
+			return null;
+		}
+		try {
+			console.flush();
 		} catch (IOException e) {
-            throw new AbortException("Can not create temp file: " + e.getMessage());
-		} catch (InterruptedException e) {
-            throw new AbortException("Can not create temp file: " + e.getMessage());
+			logger.println("[ObjectStudio] - Can not write to the build log: " + e.getMessage());
 		}
-        
-        this.image = dst;
+		logger.println("[ObjectStudio] - " + reason + ", killing it");
+		for (Watchdog.Stat stat : watchdog.sample(workdir.getChannel())) {
+			logger.println("    " + stat);
+		}
+		String tail = watchdog.getTail();
+		logger.println("[ObjectStudio] - Last output:");
+		logger.println(tail);
+		kill(launcher, proc);
+		return new AbortException(reason + "\nLast output:\n" + tail);
 	}
 
-	private void initOstudioIni(ObjectStudioBuilder builder)
-			throws AbortException {
-        logger.println("[ObjectStudio] - Create ostudio.ini from " + builder.getOstudioIni());
-        FilePath src = getAbsoluteWorkspacePath(builder.getOstudioIni());
-        FilePath dst = getAbsoluteWorkspacePath("ostudio.ini");
-        try {
-			copyTo(src, dst.absolutize());
+	/**
+	 * Check the abort policy of the classifier. If the log shows that the
+	 * build is lost, kill the whole process tree without waiting for it.
+	 * @return failure to throw once the rest of the log has been read, or null
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private AbortException checkClassifier(Launcher launcher, Proc proc) throws InterruptedException {
+		String reason = classifier == null ? null : classifier.check();
+		if (reason == null) {
+			return null;
+		}
+		try {
+			console.flush();
 		} catch (IOException e) {
-            throw new AbortException("Can not create temp file: " + e.getMessage());
-		} catch (InterruptedException e) {
-            throw new AbortException("Can not create temp file: " + e.getMessage());
+			logger.println("[ObjectStudio] - Can not write to the build log: " + e.getMessage());
 		}
+		logger.println("[ObjectStudio] - " + reason + ", killing ObjectStudio");
+		kill(launcher, proc);
+		return new AbortException(reason);
 	}
 
-	private void initPostloadScript(ObjectStudioBuilder builder) {
-        logger.println("[ObjectStudio] - Setting PostLoad Script to " + builder.getPostloadScript());
-        envs.put("AFTERLOGONSCRIPT", builder.getPostloadScript());
-        //logger.println("[ObjectStudio] - AFTERLOGONSCRIPT: " + envs.get("AFTERLOGONSCRIPT"));
+	/**
+	 * Kill the process and every process started by it. The descendants are
+	 * found by the cookie of the watchdog in their environment, so also
+	 * processes that left the tree, like an image started by CMD.EXE start.
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void kill(Launcher launcher, Proc proc) throws InterruptedException {
+		try {
+			kill(launcher, proc, watchdog.getCookie());
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not kill ObjectStudio: " + e.getMessage());
+		}
 	}
 
 	/**
-	 * Preload-File muss Absolut und ohne Blanks sein.
-	 * @param builder Jenkins builder
-	 * @throws AbortException abort build on error
+	 * Kill every process carrying the cookie and then the process itself.
+	 * @param launcher launcher of the node running the process
+	 * @param proc started process
+	 * @param cookie value of {@link Watchdog#COOKIE} in its environment
+	 * @throws IOException if a process can not be killed
+	 * @throws InterruptedException abort build on interrupt
 	 */
-	private void initPreloadScript(ObjectStudioBuilder builder)
-			throws AbortException {
-		// 
-        if (builder.getPreloadScript() == null || builder.getPreloadScript().trim().isEmpty()) {
-        	logger.println("[ObjectStudio] - Skipping Preload Script");
-        } else {
-        	logger.println("[ObjectStudio] - Create Preload File for " + builder.getPreloadScript());
-            FilePath src = getAbsoluteWorkspacePath(builder.getPreloadScript());
-            FilePath dst = getTempFilename(builder.getPreloadScript());
-            try {
-    			copyTo(src, dst.absolutize());
-    		} catch (IOException e) {
-                throw new AbortException("Can not create temp file: " + e.getMessage());
-    		} catch (InterruptedException e) {
-                throw new AbortException("Can not create temp file: " + e.getMessage());
-    		}
-            this.preloadScript = dst;
-       }
+	static void kill(Launcher launcher, Proc proc, String cookie) throws IOException, InterruptedException {
+		launcher.kill(Collections.singletonMap(Watchdog.COOKIE, cookie));
+		proc.kill();
+	}
 
+	/**
+	 * Copy new lines of the log to the build log.
+	 * @param follower follows the ObjectStudio log
+	 * @param out build log, possibly teed to the test parser
+	 * @param wait maximum time to wait for new lines in milliseconds
+	 * @param last true after ObjectStudio has finished
+	 * @return number of bytes copied
+	 */
+	private long followLog(LogFollower follower, OutputStream out, long wait, boolean last) throws IOException, InterruptedException {
+		int restarts = follower.getRestarts();
+		long bytes = last ? follower.finish(out) : follower.follow(out, wait);
+		console.flushIfDue();
+		if (follower.getRestarts() != restarts) {
+			console.flush();
+			logger.println("[ObjectStudio] - Log was truncated or recreated, reading from start: " + follower.getLog().getRemote());
+		}
+		logBytes += bytes;
+		metrics.counter(ObjectStudioBuildAction.LOG_BYTES, logBytes);
+		metrics.counter(ObjectStudioBuildAction.LOG_LINES, follower.getLines());
+		if (classifier != null) {
+			metrics.counter(ObjectStudioBuildAction.LOG_ERRORS, classifier.getErrors());
+			metrics.counter(ObjectStudioBuildAction.LOG_WARNINGS, classifier.getWarnings());
+		}
+		return bytes;
 	}
 
 	/**
-	 * Delete log file if it exists.
-	 * @param log log filename
+	 * Prepare TEMP directory, log, preload script, ostudio.ini and image
+	 * in one call on the node.
+	 * @param workspace Jenkins workspace
+	 * @param builder ObjectStudioBuilder
+	 * @param cacheRoot image cache directory or null
+	 * @return prepared directories and files
+	 * @throws AbortException abort build on failure
+	 * @throws InterruptedException abort build on interrupt
 	 */
-	private void initLogfile(FilePath log) {
-        try {
-			if (log.exists()) {
-				logger.println("[ObjectStudio] - Delete Log: " + log.getRemote());
-				try {
-					log.delete();
-				} catch (IOException e) {
-					logger.println("Can not delete log: " + e.getMessage());
+	private WorkspacePreparation.Prepared prepareWorkspace(FilePath workspace, ObjectStudioBuilder builder, FilePath cacheRoot)
+			throws AbortException, InterruptedException {
+		logger.println("[ObjectStudio] - Prepare Workspace");
+		WorkspacePreparation.Prepared prepared;
+		long start = System.nanoTime();
+		try {
+			prepared = workspace.act(new WorkspacePreparation(builder, imageSource, buildNr, cacheRoot));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new AbortException(e.getMessage());
+		}
+		metrics.timing(ObjectStudioBuildAction.PREPARE, millisSince(start));
+		imageCache = cacheRoot;
+		sharedImages.addAll(prepared.getSharedImages());
+		for (String message : prepared.getMessages()) {
+			logger.println("[ObjectStudio] - " + message);
+		}
+		for (WorkspacePreparation.Instance instance : prepared.getInstances()) {
+			printStaged(instance.getStaged());
+		}
+		
+		VirtualChannel channel = workspace.getChannel();
+		this.buildDir = new FilePath(channel, prepared.getWorkdir());
+		this.workdir = this.buildDir;
+		this.tempdir = new FilePath(channel, prepared.getTempdir());
+		this.runDir = prepared.getRunDir() == null ? null : new FilePath(channel, prepared.getRunDir());
+		
+		StringBuilder timings = new StringBuilder();
+		for (Map.Entry<String, Long> timing : prepared.getTimings().entrySet()) {
+			timings.append(timings.length() == 0 ? "" : ", ")
+					.append(timing.getKey()).append(' ').append(timing.getValue()).append(" ms");
+			metrics.timing(timing.getKey(), timing.getValue());
+		}
+		metrics.counter(ObjectStudioBuildAction.IMAGE_SIZE, prepared.getImageSize());
+		metrics.counter(ObjectStudioBuildAction.BYTES_COPIED, prepared.getBytesCopied());
+		logger.println("[ObjectStudio] - Workspace prepared, " + prepared.getBytesCopied() + " bytes copied (" + timings + ")");
+		return prepared;
+	}
+
+	/**
+	 * Use the directories and files prepared for one ObjectStudio process.
+	 * @param instance prepared files
+	 * @param channel channel to the node
+	 * @param index index of the shard
+	 * @param count number of shards
+	 */
+	private void use(WorkspacePreparation.Instance instance, VirtualChannel channel, int index, int count) {
+		this.shardIndex = index;
+		this.shardCount = count;
+		this.workdir = new FilePath(channel, instance.getWorkdir());
+		this.tempdir = new FilePath(channel, instance.getTempdir());
+		this.log = instance.getLog() == null ? null : new FilePath(channel, instance.getLog());
+		this.preloadScript = instance.getPreloadScript() == null ? null : new FilePath(channel, instance.getPreloadScript());
+		this.image = new FilePath(channel, instance.getImage());
+		this.logName = instance.getLogName();
+		this.loadScript = instance.getLoadScript();
+		this.postloadScript = instance.getPostloadScript();
+		
+        logger.println("[ObjectStudio] - Setting TEMP directory: " + this.tempdir.getRemote());
+        envs.put("TEMP", this.tempdir.getRemote());
+        envs.put("TMP", this.tempdir.getRemote());
+        envs.put(SHARD_INDEX, Integer.toString(index));
+        envs.put(SHARD_COUNT, Integer.toString(count));
+	}
+
+	/**
+	 * Run a process per shard at the same time and wait for all of them.
+	 * Their output is written to the build log line by line, prefixed with
+	 * the shard. The build fails if any shard fails.
+	 * @throws AbortException if a shard failed
+	 * @throws InterruptedException abort build on interrupt, all shards are killed
+	 */
+	private void runShards(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener,
+			final ObjectStudioBuilder builder, final EnvVars envVars, List<WorkspacePreparation.Instance> instances,
+			VirtualChannel channel, final long setupStart) throws AbortException, InterruptedException {
+		int count = instances.size();
+		logger.println("[ObjectStudio] - Running " + count + " shards");
+		List<ObjectStudioRunner> shards = new ArrayList<ObjectStudioRunner>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		List<String> failures = new ArrayList<String>();
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				PrintStream shardLogger = new PrintStream(
+						new ShardOutputStream(logger, "[shard " + i + "] ", charset));
+				final ObjectStudioRunner shard = new ObjectStudioRunner(objectStudio, shardLogger, buildNr);
+				shard.buildDir = buildDir;
+				shard.charset = charset;
+				shard.imageSource = imageSource;
+				shard.envs.putAll(envs);
+				shard.use(instances.get(i), channel, i, count);
+				shards.add(shard);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws AbortException, InterruptedException {
+						try {
+							shard.execute(build, launcher, listener, builder, envVars, setupStart);
+						} finally {
+							shard.logger.flush();
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < count; i++) {
+				String failure = getFailure(futures.get(i));
+				if (failure != null) {
+					failures.add("Shard " + i + ": " + failure);
 				}
 			}
+		} finally {
+			// Interrupts the shards still running, they kill their process
+			executor.shutdownNow();
+			for (ObjectStudioRunner shard : shards) {
+				metrics.merge(shard.metrics);
+				transcripts.addAll(shard.transcripts);
+			}
+		}
+		if (!failures.isEmpty()) {
+			StringBuilder message = new StringBuilder();
+			message.append(failures.size()).append(" of ").append(count).append(" shards failed");
+			for (String failure : failures) {
+				message.append('\n').append(failure);
+			}
+			throw new AbortException(message.toString());
+		}
+	}
+
+	/**
+	 * Wait for a shard.
+	 * @return failure message or null if the shard succeeded
+	 */
+	private static String getFailure(Future<Void> future) throws InterruptedException {
+		try {
+			future.get();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			return cause.getMessage();
+		}
+	}
+
+	private void printStaged(ImageCache.Staged staged) {
+		if (staged == null) {
+			return;
+		}
+		logger.println("[ObjectStudio] - Image " + staged.getHash()
+				+ (staged.isHit() ? " found in cache" : " added to cache")
+				+ ", provided by " + staged.getMethod()
+				+ ", " + staged.getBytesCopied() + " bytes copied"
+				+ (staged.getEvicted() > 0 ? ", " + staged.getEvicted() + " images evicted" : ""));
+	}
+
+	/**
+	 * Get the image cache directory on the node running the build.
+	 * @param node node running the build
+	 * @param descriptor global configuration
+	 * @return cache directory or null if the cache is not used
+	 */
+	private FilePath getImageCacheRoot(Node node, ObjectStudioDescriptor descriptor) {
+		if (ImageCache.NONE.equals(descriptor.getImageCacheMode())) {
+			return null;
+		}
+		FilePath root = node == null ? null : node.getRootPath();
+		return root == null ? null : root.child(ImageCache.DIRECTORY);
+	}
+
+	/**
+	 * Get the warm pool directory on the node running the build.
+	 * @param build Jenkins build
+	 * @param builder ObjectStudioBuilder
+	 * @return pool directory or null if the pool is not used
+	 */
+	private FilePath getWarmRoot(AbstractBuild<?, ?> build, ObjectStudioBuilder builder) {
+		if (builder.getWarmPool() == 0) {
+			return null;
+		}
+		Node node = build.getBuiltOn();
+		FilePath root = node == null ? null : node.getRootPath();
+		return root == null ? null : root.child(WarmPool.DIRECTORY);
+	}
+
+	/**
+	 * Check out a ready process of the warm pool and refill the pool.
+	 * @return the checked out process or null to start ObjectStudio now
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private Proc startWarm(AbstractBuild<?, ?> build, ObjectStudioBuilder builder, EnvVars envVars) throws InterruptedException {
+		WarmPool.Spec template = getWarmSpec(build, builder, "", WARM_KEY_SLOT);
+		String key = Util.getDigestOf(template.getSignature());
+		String loadSource = isBlank(loadScript) ? null : buildDir.child(loadScript).getRemote();
+		Map<String, String> properties = new HashMap<String, String>(envVars);
+		properties.put(WarmPool.BUILD_DIR, buildDir.getRemote());
+		try {
+			WarmPool.Checkout.Result checkout = warmRoot.act(new WarmPool.Checkout(key, loadSource, getWarmLoadName(), properties));
+			List<WarmPool.Spec> specs = new ArrayList<WarmPool.Spec>();
+			for (int i = checkout.getRemaining(); i < builder.getWarmPool(); i++) {
+				specs.add(getWarmSpec(build, builder, key, UUID.randomUUID().toString()));
+			}
+			if (!specs.isEmpty()) {
+				logger.println("[ObjectStudio] - Starting " + specs.size() + " warm ObjectStudio processes for the next builds");
+				warmRoot.act(new WarmPool.Fill(specs));
+			}
+			if (checkout.getId() == null) {
+				logger.println("[ObjectStudio] - No warm ObjectStudio ready, starting a new one");
+				return null;
+			}
+			warmId = checkout.getId();
+			watchdog.setCookie(warmId);
+			workdir = new FilePath(warmRoot.getChannel(), checkout.getDir());
+			log = log == null ? null : workdir.child(log.getName());
+			logger.println("[ObjectStudio] - Using warm ObjectStudio " + workdir.getRemote());
+			return new WarmProc(warmRoot, warmId);
 		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+			logger.println("[ObjectStudio] - Can not use warm pool, starting a new ObjectStudio: " + e.getMessage());
+			return null;
 		}
 	}
 
 	/**
-	 * Init some network drives.
-	 * Should be in Jenkins or VSS.
+	 * Describe a warm process with the configuration of this build. The
+	 * command line is built like the one of the build, with files in the slot.
+	 * The process inherits the environment of the agent and gets only the
+	 * variables of the plugin: the variables of the build, like BUILD_TAG
+	 * or JENKINS_SERVER_COOKIE, would make Jenkins kill it at the end of the
+	 * build filling the pool, and it serves another build anyway. The build
+	 * that checks it out passes its environment in {@link WarmPool#START}.
+	 * @param key configuration key of the pool
+	 * @param id slot id
+	 * @return slot description
 	 */
-	private void initNetworkDrives() {
-        //WinUtils.checkForUnmappedNetworkDrive(new File("J:\\"));
+	private WarmPool.Spec getWarmSpec(AbstractBuild<?, ?> build, ObjectStudioBuilder builder, String key, String id) {
+		FilePath slot = warmRoot.child(id);
+		ObjectStudioRunner warm = new ObjectStudioRunner(objectStudio, logger, 0);
+		warm.tempdir = slot.child(WorkspacePreparation.TEMP);
+		FilePath imageFile = buildDir.child(imageSource);
+		warm.image = builder.getOstudioImageCopy() ? warm.tempdir.child(imageFile.getName().replaceAll(" ", "_")) : imageFile;
+		warm.loadScript = isBlank(loadScript) ? loadScript : slot.child(getWarmLoadName()).getRemote();
+		warm.logName = log == null ? logName : slot.child(log.getName()).getRemote();
+		FilePath preloadSource = isBlank(builder.getPreloadScript()) ? null : buildDir.child(builder.getPreloadScript());
+		warm.preloadScript = preloadSource == null ? null : warm.tempdir.child(preloadSource.getName().replaceAll(" ", "_"));
+
+		Map<String, String> env = new HashMap<String, String>(envs);
+		env.put("TEMP", warm.tempdir.getRemote());
+		env.put("TMP", warm.tempdir.getRemote());
+		env.put("AFTERLOGONSCRIPT", isBlank(postloadScript) ? postloadScript : buildDir.child(postloadScript).getRemote());
+		env.put(WarmPool.SLOT, slot.getRemote());
+		env.put(Watchdog.COOKIE, id);
+		WarmPool.Spec spec = new WarmPool.Spec(key, id, slot.getRemote(),
+				objectStudio.getCommandline(build, builder, warm).toList(), env);
+		if (builder.getOstudioImageCopy()) {
+			spec.copy(imageFile.getRemote(), warm.image.getRemote());
+		} else {
+			spec.watch(imageFile.getRemote());
+		}
+		if (preloadSource != null) {
+			spec.copy(preloadSource.getRemote(), warm.preloadScript.getRemote());
+		}
+		if (!isBlank(builder.getOstudioIni())) {
+			spec.copy(buildDir.child(builder.getOstudioIni()).getRemote(), slot.child("ostudio.ini").getRemote());
+		}
+		return spec;
 	}
 
 	/**
-	 * TEMP fuer Logging auf Workspace\Temp setzen.
-	 * @param workdir
-	 * @param envs
-	 * @throws AbortException
+	 * Name of the load script in a slot, the build copies its script there.
 	 */
-	private void initTempDirectory()
-			throws AbortException {
+	private String getWarmLoadName() {
+		return isBlank(loadScript) ? "load" : "load-" + FilenameUtils.getName(loadScript).replaceAll(" ", "_");
+	}
 
-        try {
-    		this.tempdir = getAbsoluteWorkspacePath("TEMP").absolutize();
-            logger.println("[ObjectStudio] - Setting TEMP directory: " + this.tempdir.getRemote());
-            envs.put("TEMP", this.tempdir.getRemote());
-            envs.put("TMP", this.tempdir.getRemote());
-            
-	        if (this.tempdir.exists()) {
-	        	this.tempdir.deleteContents();
-	        }
-	        this.tempdir.mkdirs();
+	/**
+	 * Copy the output of a warm process to the build log, the process was not
+	 * started with the streams of the build.
+	 */
+	private void printWarmOutput() throws InterruptedException {
+		try {
+			FilePath output = workdir.child(WarmPool.OUTPUT);
+			if (output.exists()) {
+				output.copyTo(memoryReport == null ? logger : new TeeOutputStream(logger, memoryStdout));
+			}
 		} catch (IOException e) {
-            throw new AbortException("Can not create directory TEMP: " + e.getMessage());
-		} catch (InterruptedException e) {
-            throw new AbortException("Can not create directory TEMP: " + e.getMessage());
+			logger.println("[ObjectStudio] - Can not read output of warm ObjectStudio: " + e.getMessage());
+		}
+	}
+
+	private static boolean isBlank(String s) {
+		return s == null || s.trim().isEmpty();
+	}
+
+	/**
+	 * Create the watchdog and mark the processes of this run with its cookie.
+	 * @param builder ObjectStudioBuilder
+	 */
+	private void initWatchdog(ObjectStudioBuilder builder) {
+		watchdog = new Watchdog(logger, UUID.randomUUID().toString(),
+				builder.getIdleTimeout(), builder.getCpuTimeout(), builder.getMaxRunTime(), charset);
+		envs.put(Watchdog.COOKIE, watchdog.getCookie());
+	}
+
+	/**
+	 * Get the stream the standard output of ObjectStudio is written to.
+	 * @param listener Jenkins listener
+	 * @return build log, possibly teed to the watchdog and the memory report
+	 */
+	private OutputStream getStdout(BuildListener listener) {
+		OutputStream out = shardCount > 1 ? logger : listener.getLogger();
+		if (watchdog.isEnabled()) {
+			// Output of the process also counts as a sign of life
+			out = new TeeOutputStream(out, watchdog);
+		}
+		if (memoryReport != null) {
+			out = new TeeOutputStream(out, memoryStdout);
+		}
+		return out;
+	}
+
+	/**
+	 * Prepare reading the memory usage report VisualWorks writes with -xq.
+	 * @param builder ObjectStudioBuilder
+	 */
+	private void initMemoryReport(ObjectStudioBuilder builder) {
+		if (!(builder instanceof ObjectStudio8Builder) || !((ObjectStudio8Builder) builder).getReportMemoryUsage()) {
+			return;
+		}
+		memoryReport = new MemoryReport();
+		memoryStdout = memoryReport.newStream(charset);
+		memoryStderr = memoryReport.newStream(charset);
+		maxHeapSize = ((ObjectStudio8Builder) builder).getMaxHeapSize();
+	}
+
+	/**
+	 * Add the values of the memory usage report to the metrics.
+	 * @return failure if the peak heap exceeds the limit, or null
+	 */
+	private AbortException recordMemoryReport() {
+		if (memoryReport == null) {
+			return null;
+		}
+		memoryReport.finish();
+		Map<String, Long> values = memoryReport.getValues();
+		if (values.isEmpty()) {
+			logger.println("[ObjectStudio] - No memory usage report found in the output of VisualWorks");
+			return null;
+		}
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> value : values.entrySet()) {
+			metrics.counter(value.getKey(), value.getValue());
+			report.append(report.length() == 0 ? "" : ", ").append(value.getKey()).append(' ').append(value.getValue());
+		}
+		logger.println("[ObjectStudio] - Memory usage: " + report);
+		Long peak = memoryReport.getValue(MemoryReport.PEAK_HEAP);
+		long limit = maxHeapSize * 1024L * 1024L;
+		if (limit > 0 && peak != null && peak > limit) {
+			return new AbortException("Peak heap of " + peak / (1024 * 1024) + " MB exceeds the limit of " + maxHeapSize + " MB");
 		}
+		return null;
 	}
 
-	private EnvVars getEnv(AbstractBuild<?, ?> build, BuildListener listener) throws InterruptedException, AbortException {
-		EnvVars envVars = new EnvVars();
+	/**
+	 * Get the name of the test report of a shard.
+	 * @return file relative to the build directory
+	 */
+	private static String getTestReportName(ObjectStudioBuilder builder, int index, int count) {
+		String name = builder.getTestReport().trim();
+		if (count > 1) {
+			// One report per shard, next to each other
+			String extension = FilenameUtils.getExtension(name);
+			name = FilenameUtils.removeExtension(name) + "-" + index + (extension.isEmpty() ? "" : "." + extension);
+		}
+		return name;
+	}
+
+	/**
+	 * Prepare collecting SUnit results if a test report is configured. An
+	 * empty report replaces the one of the previous build.
+	 * @param builder ObjectStudioBuilder
+	 * @throws AbortException if a pattern is invalid or the report can not be written
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	private void initTestReport(ObjectStudioBuilder builder) throws AbortException, InterruptedException {
+		if (builder.getTestReport().trim().isEmpty()) {
+			return;
+		}
+		String[] patterns = {builder.getTestStartPattern(), builder.getTestPassPattern(),
+				builder.getTestFailPattern(), builder.getTestErrorPattern()};
+		for (String pattern : patterns) {
+			String error = SUnitParser.checkPattern(pattern);
+			if (error != null) {
+				throw new AbortException("Invalid SUnit pattern " + pattern + ": " + error);
+			}
+		}
+		testParser = new SUnitParser(patterns[0], patterns[1], patterns[2], patterns[3], charset);
+		testReport = new FilePath(buildDir, getTestReportName(builder, shardIndex, shardCount));
+		logger.println("[ObjectStudio] - Writing SUnit results to " + testReport.getRemote());
 		try {
-	        envVars = build.getEnvironment(listener);
+			testParser.getReport().writeTo(testReport, false);
 		} catch (IOException e) {
-			e.printStackTrace();
-            throw new AbortException("Can not get environment variables");
+			throw new AbortException("Can not write test report " + testReport.getRemote() + ": " + e.getMessage());
 		}
-		return envVars;
 	}
-	
+
 	/**
-	 * Get Absolute Filename for Files which could be in Workspace.
-	 * Special method because Workspace could be different than Current directory
-	 * @param workdir Jenkins workspace directory
-	 * @param filename Absolute or relative filename
-	 * @return absolute filename 
+	 * Append the SUnit results collected since the last write, while
+	 * ObjectStudio is running only if they changed and not more often than
+	 * every {@link #TEST_REPORT_INTERVAL}.
+	 * @param last true after the whole log has been read
+	 * @throws InterruptedException abort build on interrupt
 	 */
-	private FilePath getAbsoluteWorkspacePath(String filename) {
+	private void writeTestReport(boolean last) throws InterruptedException {
+		if (testParser == null) {
+			return;
+		}
+		SUnitReport report = testParser.getReport();
+		long now = System.currentTimeMillis();
+		if (!last && (report.getVersion() == testReportVersion || now - testReportWritten < TEST_REPORT_INTERVAL)) {
+			return;
+		}
+		testReportVersion = report.getVersion();
+		testReportWritten = now;
 		try {
-			FilePath f = this.workdir.child(filename).absolutize();
-			//logger.println("[ObjectStudio] File: " + this.workdir.getRemote() + " => " + filename + " => " + f.getRemote());
-			return f;
+			report.writeTo(testReport, last);
 		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+			logger.println("[ObjectStudio] - Can not write test report " + testReport.getRemote() + ": " + e.getMessage());
+		}
+		if (last) {
+			logger.println("[ObjectStudio] - SUnit: " + report.getTests() + " tests, "
+					+ report.getFailures() + " failures, " + report.getErrors() + " errors");
 		}
 	}
-	
+
+	/**
+	 * Prepare counting errors and warnings in the log, if there is one.
+	 * @param builder ObjectStudioBuilder
+	 * @throws AbortException if a pattern is invalid
+	 */
+	private void initClassifier(ObjectStudioBuilder builder) throws AbortException {
+		if (log == null) {
+			return;
+		}
+		String[] patterns = {builder.getLogErrorPattern(), builder.getLogWarningPattern(), builder.getLogFatalPattern()};
+		for (String pattern : patterns) {
+			String error = LogClassifier.checkPattern(pattern);
+			if (error != null) {
+				throw new AbortException("Invalid log pattern " + pattern + ": " + error);
+			}
+		}
+		classifier = new LogClassifier(patterns[0], patterns[1], patterns[2],
+				builder.getMaxLogErrors(), builder.getAbortOnWalkback(), charset);
+		if (builder.getMaxLogErrors() > 0) {
+			logger.println("[ObjectStudio] - Stopping after " + builder.getMaxLogErrors() + " errors in the log");
+		}
+		if (builder.getAbortOnWalkback()) {
+			logger.println("[ObjectStudio] - Stopping on the first walkback in the log");
+		}
+	}
+
+	/**
+	 * Add the final counts of the classifier to the metrics and the build log.
+	 */
+	private void recordClassifier() {
+		metrics.counter(ObjectStudioBuildAction.LOG_ERRORS, classifier.getErrors());
+		metrics.counter(ObjectStudioBuildAction.LOG_WARNINGS, classifier.getWarnings());
+		logger.println("[ObjectStudio] - Log: " + classifier.getErrors() + " errors, "
+				+ classifier.getWarnings() + " warnings, " + classifier.getFatals() + " walkbacks");
+	}
+
+	private void initPostloadScript() {
+        logger.println("[ObjectStudio] - Setting PostLoad Script to " + postloadScript);
+        envs.put("AFTERLOGONSCRIPT", postloadScript);
+        //logger.println("[ObjectStudio] - AFTERLOGONSCRIPT: " + envs.get("AFTERLOGONSCRIPT"));
+	}
+
+	/**
+	 * Init some network drives.
+	 * Should be in Jenkins or VSS.
+	 */
+	private void initNetworkDrives() {
+        //WinUtils.checkForUnmappedNetworkDrive(new File("J:\\"));
+	}
+
+	private EnvVars getEnv(AbstractBuild<?, ?> build, BuildListener listener, ObjectStudioBuilder builder)
+			throws InterruptedException, AbortException {
+		boolean minimal = builder.getMinimalEnvironment();
+		logger.println("[ObjectStudio] - Get " + (minimal ? "Minimal " : "") + "Environment");
+		long start = System.nanoTime();
+		EnvVars envVars;
+		try {
+	        envVars = EnvironmentCapture.capture(build, listener, minimal);
+		} catch (IOException e) {
+			e.printStackTrace();
+            throw new AbortException("Can not get environment variables");
+		}
+		metrics.timing(ObjectStudioBuildAction.ENVIRONMENT, millisSince(start));
+		return envVars;
+	}
 	
 	/**
 	 * Cleanup copied files.
@@ -442,11 +1381,171 @@ public class ObjectStudioRunner {
 	protected void cleanup(AbstractBuild<?, ?> build, Launcher launcher,
 			BuildListener listener, ObjectStudioBuilder builder) throws AbortException {
 
-		// Temp directory will be cleaned when running and already exists
-		
+		if (warmId != null) {
+			releaseWarm();
+		}
+		releaseImages();
+		// A run directory holds a private image copy and is never reused
+		FilePath remove = runDir;
+		if (remove == null && builder.getCleanupTemp()) {
+			remove = tempdir;
+		}
+		// Otherwise temp directory will be cleaned when running the next build
+		if (remove == null) {
+			return;
+		}
+		logger.println("[ObjectStudio] - Delete TEMP directory in background: " + remove.getRemote());
+		try {
+			if (!remove.act(new TempCleaner.Remove())) {
+				logger.println("[ObjectStudio] - Can not move TEMP directory, it will be deleted by a later build");
+			}
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not delete TEMP directory: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 
+	/**
+	 * Delete the slot of the warm process used by this build.
+	 */
+	private void releaseWarm() {
+		try {
+			warmRoot.act(new WarmPool.Release(warmId));
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not release warm ObjectStudio: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Give back the cached masters run by this build, so they can be
+	 * evicted again.
+	 */
+	public void releaseImages() {
+		if (sharedImages.isEmpty()) {
+			return;
+		}
+		try {
+			imageCache.act(new ImageCache.Release(sharedImages));
+			sharedImages.clear();
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not release cached image: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get the image cache directory on the node.
+	 * @return cache directory or null if the cache is not used
+	 */
+	public FilePath getImageCache() {
+		return imageCache;
+	}
+
+	/**
+	 * Get the cached masters run by this build.
+	 * @return hash of every shared master in use, empty if there is none
+	 */
+	public List<String> getSharedImages() {
+		return sharedImages;
+	}
+
+	/**
+	 * Get the encoding of the output and the log of ObjectStudio.
+	 * @return default encoding of the node running ObjectStudio
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Get the Transcript archives written by this run.
+	 * @return names of the archives, empty if the Transcript was not archived
+	 */
+	public List<String> getTranscripts() {
+		return transcripts;
+	}
+
+	/**
+	 * Get the environment variables set for ObjectStudio.
+	 * @return TEMP directory, shard and AfterLogon script variables
+	 */
+	public Map<String, String> getEnvs() {
+		return envs;
+	}
+
+	/**
+	 * Get the directory ObjectStudio runs in.
+	 * @return working directory on the node
+	 */
+	public FilePath getWorkdir() {
+		return workdir;
+	}
+
+	/**
+	 * Get the TEMP directory of ObjectStudio.
+	 * @return TEMP directory on the node
+	 */
+	public FilePath getTempdir() {
+		return tempdir;
+	}
+
+	/**
+	 * Get the directory of an isolated execution.
+	 * @return directory removed after the run, or null if not isolated
+	 */
+	public FilePath getRunDir() {
+		return runDir;
+	}
+
+	/**
+	 * Get the log file written by ObjectStudio.
+	 * @return log file or null if no log is configured
+	 */
+	public FilePath getLog() {
+		return log;
+	}
+
+	/**
+	 * Get the parser collecting SUnit results.
+	 * @return parser or null if no test report is configured
+	 */
+	public SUnitParser getTestParser() {
+		return testParser;
+	}
+
+	/**
+	 * Get the classifier counting errors and warnings in the log.
+	 * @return classifier or null if there is no log
+	 */
+	public LogClassifier getClassifier() {
+		return classifier;
+	}
+
+	/**
+	 * Get the test report file.
+	 * @return JUnit XML file or null if no test report is configured
+	 */
+	public FilePath getTestReport() {
+		return testReport;
+	}
+
+	/**
+	 * Get the timings and volumes recorded so far.
+	 * @return metrics of this run
+	 */
+	public ObjectStudioBuildAction getMetrics() {
+		return metrics;
+	}
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000L;
+	}
+
 	/**
 	 * Get a temp filename without blanks.
 	 * 
@@ -459,26 +1558,6 @@ public class ObjectStudioRunner {
 	}
 	
 	
-	/**
-	 * - * Copies a file to destination directory and log to Jenkins build. -
-	 * * @param src source filename - * @param dest destination filename
-	 * 
-	 * @throws InterruptedException
-	 * @throws IOException
-	 */
-	private void copyTo(FilePath src, FilePath dest) throws IOException, InterruptedException {
-		logger.println("[ObjectStudio] - Copy File: " + src.getRemote() + " to " + dest.getRemote());
-		if (dest.getRemote().equals(src.getRemote())) {
-			logger.println("[ObjectStudio] - Source and Dest File is equal: " + dest.getRemote());
-			return;
-		}
-		if (dest.exists()) {
-			logger.println("[ObjectStudio] - Dest File exists, overwrite: " + dest.getRemote());
-			//dest.delete();
-		}
-		src.copyTo(dest);
-	}
-
 	public Object getObjectStudioImageName() {
 		return this.image == null ? null : this.image.getRemote();
 	}
@@ -487,4 +1566,20 @@ public class ObjectStudioRunner {
 		return this.preloadScript == null ? null : this.preloadScript.getRemote();
 	}
 
+	/**
+	 * Get the load script passed to ObjectStudio.
+	 * @return load script as configured, absolute for a shard
+	 */
+	public String getLoadScriptName() {
+		return this.loadScript;
+	}
+
+	/**
+	 * Get the log file passed to ObjectStudio.
+	 * @return log file as configured, absolute for a shard
+	 */
+	public String getLogName() {
+		return this.logName;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import hudson.Extension;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Pipeline step running ObjectStudio with the configuration of an
+ * {@link ObjectStudioBuilder} or {@link ObjectStudio8Builder}.
+ *
+ * <p>
+ * <code>objectStudio builder: [$class: 'ObjectStudio8Builder', buildPath: 'build', ...]</code>
+ * runs inside a <code>node</code> block. ObjectStudio is started as a durable
+ * task, see {@link ObjectStudioStepExecution}, so no executor thread waits
+ * for it and the step continues after a restart of Jenkins.
+ *
+ * @author Patrick Lauper
+ */
+public class ObjectStudioStep extends AbstractStepImpl {
+
+	private final ObjectStudioBuilder builder;
+
+	/**
+	 * Create the step.
+	 * @param builder configuration of the ObjectStudio run
+	 */
+	@DataBoundConstructor
+	public ObjectStudioStep(ObjectStudioBuilder builder) {
+		this.builder = builder;
+	}
+
+	/**
+	 * Get the configuration of the ObjectStudio run.
+	 * @return ObjectStudioBuilder
+	 */
+	public ObjectStudioBuilder getBuilder() {
+		return builder;
+	}
+
+	/**
+	 * Descriptor of {@link ObjectStudioStep}, only loaded if the Pipeline
+	 * plugins are installed.
+	 */
+	@Extension(optional = true)
+	public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+		/**
+		 * Prepares workspaces and launches ObjectStudio. Sending and copying
+		 * an image takes a while, so not on the shared {@link jenkins.util.Timer}.
+		 */
+		private final ExecutorService launcher = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ObjectStudio step launcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		/**
+		 * Create the descriptor.
+		 */
+		public DescriptorImpl() {
+			super(ObjectStudioStepExecution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "objectStudio";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Run ObjectStudio";
+		}
+
+		/**
+		 * Prepare and launch ObjectStudio in the background.
+		 * @param launch preparation and launch of one step
+		 * @return task to cancel when the step is stopped
+		 */
+		Future<?> launch(Runnable launch) {
+			return launcher.submit(launch);
+		}
+
+		/**
+		 * Get the builders the step can be configured with.
+		 * @return descriptors of the ObjectStudio 7 and 8 builders
+		 */
+		public List<ObjectStudioBuilder.ObjectStudioDescriptor> getBuilderDescriptors() {
+			Jenkins jenkins = Jenkins.getInstance();
+			List<ObjectStudioBuilder.ObjectStudioDescriptor> descriptors = new ArrayList<ObjectStudioBuilder.ObjectStudioDescriptor>();
+			descriptors.add(jenkins.getDescriptorByType(ObjectStudioBuilder.ObjectStudioDescriptor.class));
+			descriptors.add(jenkins.getDescriptorByType(ObjectStudio8Builder.ObjectStudioDescriptor8.class));
+			return descriptors;
+		}
+	}
+}
@@ -0,0 +1,474 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+import com.google.inject.Inject;
+
+/**
+ * Runs ObjectStudio for the {@link ObjectStudioStep} without blocking a
+ * thread while it is running.
+ *
+ * <p>
+ * The workspace is prepared by {@link ObjectStudioRunner#prepare} on a
+ * thread of the step descriptor, as sending and copying the image would
+ * hold up the small shared {@link Timer}. Then ObjectStudio is launched as
+ * a durable task that keeps running on the node on its own. Every poll is
+ * a short task on the {@link Timer}: it copies new output and new lines of the log, feeds
+ * the {@link SUnitParser} and the {@link LogClassifier} and asks the task
+ * for its exit code, then schedules the next poll, sooner while the log
+ * grows. The task controller, the log position, the SUnit results and the
+ * error counts are serialized with the Pipeline, so after
+ * a restart of Jenkins {@link #onResume()} continues polling the same
+ * process. The monitor only guards the state shared with {@link #stop},
+ * which does not wait for a poll reading from the node. The warm pool,
+ * shards, watchdog, memory report, Transcript archive, output image and
+ * skipping unchanged inputs are only available in freestyle jobs.
+ *
+ * @author Patrick Lauper
+ */
+public class ObjectStudioStepExecution extends AbstractStepExecutionImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	@Inject(optional = true)
+	private transient ObjectStudioStep step;
+	@StepContextParameter
+	private transient Run<?, ?> run;
+	@StepContextParameter
+	private transient FilePath workspace;
+	@StepContextParameter
+	private transient Computer computer;
+	@StepContextParameter
+	private transient Launcher launcher;
+	@StepContextParameter
+	private transient TaskListener listener;
+	@StepContextParameter
+	private transient EnvVars envVars;
+
+	private String node;
+	private String workdir;
+	private String log;
+	private String testReport;
+	private String tempdir;
+	private String imageCache;
+	private List<String> sharedImages;
+	private Controller controller;
+	private LogFollower follower;
+	private SUnitParser testParser;
+	private LogClassifier classifier;
+	private String aborted;
+	private long runStart;
+	private long logBytes;
+	private long wait = ObjectStudioRunner.MIN_LOG_WAIT;
+	private long testReportVersion;
+	private long testReportWritten;
+	private boolean offline;
+	private volatile boolean done;
+	private transient volatile Future<?> task;
+
+	@Override
+	public boolean start() {
+		// Sending and copying the image takes a while, not on the Pipeline thread
+		task = ((ObjectStudioStep.DescriptorImpl) step.getDescriptor()).launch(new Runnable() {
+			@Override
+			public void run() {
+				launch();
+			}
+		});
+		return false;
+	}
+
+	@Override
+	public void stop(Throwable cause) {
+		Controller running;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+			running = controller;
+		}
+		// Interrupts a poll waiting for the node, it does not schedule another one
+		Future<?> pending = task;
+		if (pending != null) {
+			pending.cancel(true);
+		}
+		if (running != null) {
+			try {
+				Node current = getNode();
+				FilePath dir = getPath(workdir);
+				if (dir != null) {
+					running.stop(dir, current.createLauncher(getContext().get(TaskListener.class)));
+					releaseImages();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		getContext().onFailure(cause);
+	}
+
+	@Override
+	public synchronized void onResume() {
+		super.onResume();
+		if (done) {
+			return;
+		}
+		if (controller == null) {
+			fail(new AbortException("Jenkins was restarted before ObjectStudio was started"));
+			return;
+		}
+		schedule(0);
+	}
+
+	/**
+	 * Prepare the workspace and launch ObjectStudio as a durable task.
+	 */
+	private void launch() {
+		PrintStream logger = listener.getLogger();
+		ObjectStudioBuilder builder = step.getBuilder();
+		ObjectStudioRunner runner = new ObjectStudioRunner(builder.getObjectStudio(), logger, run.getNumber());
+		boolean launched = false;
+		try {
+			Node current = computer.getNode();
+			if (current == null) {
+				throw new AbortException("The node of the workspace is offline");
+			}
+			ArgumentListBuilder command = runner.prepare(run, workspace, current, envVars, builder);
+			EnvVars env = new EnvVars(envVars);
+			env.putAll(runner.getEnvs());
+			// Paths, parameters and build variables must not be interpreted by the shell
+			DurableTask durable = launcher.isUnix()
+					? new BourneShellScript(CommandTemplate.toBourneShell(command.toList()))
+					: new WindowsBatchScript(CommandTemplate.toBatch(command.toList()));
+			logger.println("[ObjectStudio] - Starting: " + command);
+			Controller started = durable.launch(env, runner.getWorkdir(), launcher, listener);
+			run.addAction(runner.getMetrics());
+			started(current, runner, started, builder.getCleanupTemp());
+			launched = true;
+		} catch (AbortException e) {
+			fail(e);
+		} catch (IOException e) {
+			e.printStackTrace(logger);
+			fail(new AbortException("Error starting ObjectStudio: " + e.getMessage()));
+		} catch (InterruptedException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			// Nothing else would complete the step
+			e.printStackTrace(logger);
+			fail(e);
+		} finally {
+			if (!launched) {
+				runner.releaseImages();
+			}
+		}
+	}
+
+	private void started(Node current, ObjectStudioRunner runner, Controller started, boolean cleanupTemp)
+			throws IOException, InterruptedException {
+		boolean stopped;
+		synchronized (this) {
+			stopped = done;
+			if (!stopped) {
+				node = current.getNodeName();
+				workdir = runner.getWorkdir().getRemote();
+				log = runner.getLog() == null ? null : runner.getLog().getRemote();
+				testReport = runner.getTestReport() == null ? null : runner.getTestReport().getRemote();
+				FilePath remove = runner.getRunDir();
+				if (remove == null && cleanupTemp) {
+					remove = runner.getTempdir();
+				}
+				tempdir = remove == null ? null : remove.getRemote();
+				imageCache = runner.getImageCache() == null ? null : runner.getImageCache().getRemote();
+				sharedImages = new ArrayList<String>(runner.getSharedImages());
+				follower = runner.getLog() == null ? null : new LogFollower(runner.getLog());
+				testParser = runner.getTestParser();
+				classifier = runner.getClassifier();
+				runStart = System.currentTimeMillis();
+				// Seen by stop from now on
+				controller = started;
+			}
+		}
+		if (stopped) {
+			// Stopped while the workspace was prepared
+			started.stop(runner.getWorkdir(), launcher);
+			runner.releaseImages();
+			return;
+		}
+		if (log != null) {
+			listener.getLogger().println("[ObjectStudio] - Reading Log: " + log);
+		}
+		schedule(0);
+	}
+
+	/**
+	 * Copy new output and log lines and check whether ObjectStudio has
+	 * finished. Runs on the {@link Timer} and never waits for new lines.
+	 * Polls run one after the other, so only the end of the step is
+	 * guarded against {@link #stop}.
+	 */
+	private void poll() {
+		if (done) {
+			return;
+		}
+		TaskListener current;
+		try {
+			current = getContext().get(TaskListener.class);
+		} catch (IOException e) {
+			fail(e);
+			return;
+		} catch (InterruptedException e) {
+			return;
+		}
+		PrintStream logger = current.getLogger();
+		FilePath dir = getPath(workdir);
+		if (dir == null) {
+			if (!offline) {
+				logger.println("[ObjectStudio] - Waiting for node " + node + " to come online");
+				offline = true;
+			}
+			schedule(ObjectStudioRunner.MAX_LOG_WAIT);
+			return;
+		}
+		offline = false;
+		try {
+			controller.writeLog(dir, logger);
+			Integer status = controller.exitStatus(dir, getNode().createLauncher(current));
+			// Once the exit code is known, the rest of the log is read
+			long bytes = followLog(logger, status != null);
+			if (status == null) {
+				wait = bytes > 0 ? ObjectStudioRunner.MIN_LOG_WAIT : Math.min(wait * 2, ObjectStudioRunner.MAX_LOG_WAIT);
+				writeTestReport(logger, false);
+				checkClassifier(logger, dir, current);
+				schedule(wait);
+				return;
+			}
+			controller.writeLog(dir, logger);
+			finish(logger, dir, status);
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not read from node " + node + ", retrying: " + e.getMessage());
+			schedule(ObjectStudioRunner.MAX_LOG_WAIT);
+		} catch (InterruptedException e) {
+			// Jenkins shuts down, polling continues after the restart
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// Without a next poll the step would never complete
+			e.printStackTrace(logger);
+			fail(e);
+		}
+	}
+
+	private long followLog(PrintStream logger, boolean last) throws IOException, InterruptedException {
+		FilePath file = log == null ? null : getPath(log);
+		if (file == null) {
+			return 0;
+		}
+		follower = new LogFollower(file, follower);
+		OutputStream out = testParser == null ? logger : new TeeOutputStream(logger, testParser);
+		if (classifier != null) {
+			out = new TeeOutputStream(out, classifier);
+		}
+		long bytes = last ? follower.finish(out) : follower.follow(out, 0);
+		logBytes += bytes;
+		return bytes;
+	}
+
+	/**
+	 * Stop ObjectStudio once the log shows that the build is lost. Polling
+	 * goes on until the task has ended, the build fails with the reason.
+	 */
+	private void checkClassifier(PrintStream logger, FilePath dir, TaskListener current)
+			throws IOException, InterruptedException {
+		String reason = classifier == null || aborted != null ? null : classifier.check();
+		if (reason == null) {
+			return;
+		}
+		aborted = reason;
+		logger.println("[ObjectStudio] - " + reason + ", stopping ObjectStudio");
+		controller.stop(dir, getNode().createLauncher(current));
+	}
+
+	private void finish(PrintStream logger, FilePath dir, int status) throws IOException, InterruptedException {
+		if (testParser != null) {
+			testParser.close();
+			writeTestReport(logger, true);
+		}
+		if (classifier != null) {
+			classifier.close();
+			logger.println("[ObjectStudio] - Log: " + classifier.getErrors() + " errors, "
+					+ classifier.getWarnings() + " warnings, " + classifier.getFatals() + " walkbacks");
+			if (aborted == null) {
+				aborted = classifier.check();
+			}
+		}
+		Run<?, ?> current = getContext().get(Run.class);
+		ObjectStudioBuildAction metrics = current.getAction(ObjectStudioBuildAction.class);
+		if (metrics != null) {
+			metrics.timing(ObjectStudioBuildAction.RUN, System.currentTimeMillis() - runStart);
+			metrics.counter(ObjectStudioBuildAction.LOG_BYTES, logBytes);
+			metrics.counter(ObjectStudioBuildAction.LOG_LINES, follower == null ? 0 : follower.getLines());
+			if (classifier != null) {
+				metrics.counter(ObjectStudioBuildAction.LOG_ERRORS, classifier.getErrors());
+				metrics.counter(ObjectStudioBuildAction.LOG_WARNINGS, classifier.getWarnings());
+			}
+			current.save();
+		}
+		controller.cleanup(dir);
+		releaseImages();
+		FilePath temp = tempdir == null ? null : getPath(tempdir);
+		if (temp != null) {
+			logger.println("[ObjectStudio] - Delete TEMP directory in background: " + tempdir);
+			temp.act(new TempCleaner.Remove());
+		}
+		synchronized (this) {
+			if (done) {
+				// Stopped meanwhile, the step has failed already
+				return;
+			}
+			done = true;
+		}
+		if (aborted != null) {
+			getContext().onFailure(new AbortException(aborted));
+		} else if (status == 0) {
+			getContext().onSuccess(null);
+		} else {
+			logger.println("Error running command, exit code " + status);
+			getContext().onFailure(new AbortException("ObjectStudio exit code " + status));
+		}
+	}
+
+	/**
+	 * Append the SUnit results collected since the last write, while
+	 * ObjectStudio is running only if they changed and not more often than
+	 * every {@link ObjectStudioRunner#TEST_REPORT_INTERVAL}.
+	 */
+	private void writeTestReport(PrintStream logger, boolean last) throws IOException, InterruptedException {
+		if (testParser == null) {
+			return;
+		}
+		SUnitReport report = testParser.getReport();
+		long now = System.currentTimeMillis();
+		if (!last && (report.getVersion() == testReportVersion || now - testReportWritten < ObjectStudioRunner.TEST_REPORT_INTERVAL)) {
+			return;
+		}
+		FilePath file = getPath(testReport);
+		if (file == null) {
+			return;
+		}
+		testReportVersion = report.getVersion();
+		testReportWritten = now;
+		report.writeTo(file, last);
+		if (last) {
+			logger.println("[ObjectStudio] - SUnit: " + report.getTests() + " tests, "
+					+ report.getFailures() + " failures, " + report.getErrors() + " errors");
+		}
+	}
+
+	/**
+	 * Give back the cached masters run by ObjectStudio, so they can be
+	 * evicted again.
+	 */
+	private void releaseImages() throws IOException, InterruptedException {
+		List<String> hashes;
+		synchronized (this) {
+			// Only once, by the end of the poll or by stop
+			hashes = sharedImages;
+			sharedImages = null;
+		}
+		FilePath cache = imageCache == null ? null : getPath(imageCache);
+		if (cache != null && hashes != null && !hashes.isEmpty()) {
+			cache.act(new ImageCache.Release(hashes));
+		}
+	}
+
+	private void fail(Throwable cause) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+		}
+		getContext().onFailure(cause);
+	}
+
+	private void schedule(long delay) {
+		task = Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the node ObjectStudio runs on, looked up by name so it is found
+	 * again after a restart or reconnect.
+	 * @return node or null if it was removed
+	 */
+	private Node getNode() {
+		Jenkins jenkins = Jenkins.getInstance();
+		return node.isEmpty() ? jenkins : jenkins.getNode(node);
+	}
+
+	/**
+	 * Get a file on the node ObjectStudio runs on.
+	 * @param remote path on the node
+	 * @return file or null if the node is offline
+	 */
+	private FilePath getPath(String remote) {
+		Node current = getNode();
+		return current == null ? null : current.createPath(remote);
+	}
+}
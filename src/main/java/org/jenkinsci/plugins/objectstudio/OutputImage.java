@@ -0,0 +1,298 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Captures the image saved by an ObjectStudio run in one call on the node.
+ * Invoke it on the build directory.
+ *
+ * <p>
+ * The newest file matching the pattern is the saved image. It must have
+ * been written after ObjectStudio was started, an older file is left over
+ * from an earlier build. The image is read once: every chunk is added to the
+ * MD5 and sent to the output, optionally gzip compressed by a pool of
+ * threads. Each chunk is compressed as a gzip member of its own, the members
+ * together are a normal gzip file.
+ *
+ * @author Patrick Lauper
+ */
+public class OutputImage extends MasterToSlaveFileCallable<OutputImage.Captured> {
+
+	/**
+	 * Extension of a compressed image.
+	 */
+	public static final String COMPRESSED = ".gz";
+
+	/**
+	 * Size of the chunks read and compressed.
+	 */
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Tolerance for file systems storing modification times in seconds.
+	 */
+	static final long TIME_TOLERANCE = 2000;
+
+	private static final long serialVersionUID = 1L;
+
+	private final String pattern;
+	private final boolean compress;
+	private final long runMillis;
+	private final OutputStream out;
+
+	/**
+	 * Create the capture of the saved image.
+	 * @param pattern Ant pattern of the saved image relative to the build
+	 *            directory
+	 * @param compress true to gzip the image
+	 * @param runMillis milliseconds since ObjectStudio was started, used
+	 *            instead of the start time as the clocks of controller and
+	 *            node may differ
+	 * @param out receives the image, a remote stream when invoked on a node
+	 */
+	public OutputImage(String pattern, boolean compress, long runMillis, OutputStream out) {
+		this.pattern = pattern;
+		this.compress = compress;
+		this.runMillis = runMillis;
+		this.out = out;
+	}
+
+	@Override
+	public Captured invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+		File image = find(dir);
+		long started = System.currentTimeMillis() - runMillis - TIME_TOLERANCE;
+		if (image.lastModified() < started) {
+			throw new IOException("Output image was not saved by this build: " + image);
+		}
+		Captured captured = new Captured(image.getPath().substring(dir.getPath().length() + 1), image.length());
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new FileInputStream(image);
+		try {
+			captured.bytesWritten = compress ? compress(in, md5) : copy(in, md5);
+			out.flush();
+		} finally {
+			in.close();
+			out.close();
+		}
+		captured.md5 = Util.toHexString(md5.digest());
+		return captured;
+	}
+
+	/**
+	 * Find the newest file matching the pattern. Private copies in TEMP are
+	 * not considered.
+	 */
+	private File find(File dir) throws IOException, InterruptedException {
+		File image = null;
+		for (FilePath match : new FilePath(dir).list(pattern, WorkspacePreparation.TEMP + "/**")) {
+			File file = new File(match.getRemote());
+			if (image == null || file.lastModified() > image.lastModified()) {
+				image = file;
+			}
+		}
+		if (image == null) {
+			throw new IOException("Output image not found: " + pattern + " in " + dir);
+		}
+		return image;
+	}
+
+	private long copy(InputStream in, MessageDigest md5) throws IOException {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		long written = 0;
+		int length = read(in, chunk);
+		while (length > 0) {
+			md5.update(chunk, 0, length);
+			out.write(chunk, 0, length);
+			written += length;
+			length = read(in, chunk);
+		}
+		return written;
+	}
+
+	/**
+	 * Compress chunks in parallel and write them in order. Only a few chunks
+	 * per thread are read ahead, so memory stays bounded.
+	 */
+	private long compress(InputStream in, MessageDigest md5) throws IOException, InterruptedException {
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		long written = 0;
+		try {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int length = read(in, chunk);
+			while (length > 0) {
+				md5.update(chunk, 0, length);
+				pending.add(executor.submit(new Compress(Arrays.copyOf(chunk, length))));
+				if (pending.size() >= 2 * threads) {
+					written += write(pending.poll());
+				}
+				length = read(in, chunk);
+			}
+			while (!pending.isEmpty()) {
+				written += write(pending.poll());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return written;
+	}
+
+	private long write(Future<byte[]> future) throws IOException, InterruptedException {
+		byte[] member;
+		try {
+			member = future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		out.write(member);
+		return member.length;
+	}
+
+	/**
+	 * Fill the chunk unless the end of the file is reached.
+	 */
+	private static int read(InputStream in, byte[] chunk) throws IOException {
+		int length = 0;
+		int read = in.read(chunk);
+		while (read > 0) {
+			length += read;
+			read = length < chunk.length ? in.read(chunk, length, chunk.length - length) : -1;
+		}
+		return length;
+	}
+
+	/**
+	 * Compresses one chunk into a gzip member.
+	 */
+	private static final class Compress implements Callable<byte[]> {
+		private final byte[] chunk;
+
+		Compress(byte[] chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			ByteArrayOutputStream member = new ByteArrayOutputStream(chunk.length / 2);
+			GZIPOutputStream gzip = new GZIPOutputStream(member) {
+				{
+					// Images are large, speed matters more than the last percent
+					def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+			gzip.write(chunk);
+			gzip.close();
+			return member.toByteArray();
+		}
+	}
+
+	/**
+	 * The captured image.
+	 */
+	public static final class Captured implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final long length;
+		private long bytesWritten;
+		private String md5;
+
+		Captured(String name, long length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		/**
+		 * Get the image file.
+		 * @return path relative to the build directory
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the size of the image.
+		 * @return size in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Get the size of the artifact.
+		 * @return size in bytes, compressed if compression was used
+		 */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * Get the MD5 of the image, also used as its Jenkins fingerprint.
+		 * @return hex encoded MD5 of the uncompressed image
+		 */
+		public String getMd5() {
+			return md5;
+		}
+	}
+}
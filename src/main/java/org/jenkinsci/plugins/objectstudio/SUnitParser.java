@@ -0,0 +1,244 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Recognizes SUnit results in the Transcript while it is copied to the build
+ * log.
+ *
+ * <p>
+ * The follower writes every chunk of the log to this stream as well, each
+ * line is matched against the start, pass, fail and error patterns and the
+ * results are collected in a {@link SUnitReport}. The patterns need the
+ * named groups <code>class</code> and <code>test</code>, the fail and error
+ * patterns may have a group <code>message</code>. Test durations are
+ * measured from the time the start and result lines arrive.
+ *
+ * <p>
+ * The parser is serializable with the results collected so far, the
+ * matchers are compiled again after deserialization.
+ *
+ * @author Patrick Lauper
+ */
+public class SUnitParser extends OutputStream implements Serializable {
+
+	/**
+	 * Default pattern of the line written when a test starts.
+	 */
+	public static final String DEFAULT_START = "^Running:? (?<class>\\S+)>>#?(?<test>[^\\s:]+)";
+
+	/**
+	 * Default pattern of the line written when a test passed.
+	 */
+	public static final String DEFAULT_PASS = "^Passed:? (?<class>\\S+)>>#?(?<test>[^\\s:]+)";
+
+	/**
+	 * Default pattern of the line written when a test failed.
+	 */
+	public static final String DEFAULT_FAIL = "^Failed:? (?<class>\\S+)>>#?(?<test>[^\\s:]+)(?:\\s*:\\s*(?<message>.*))?";
+
+	/**
+	 * Default pattern of the line written when a test raised an error.
+	 */
+	public static final String DEFAULT_ERROR = "^Error:? (?<class>\\S+)>>#?(?<test>[^\\s:]+)(?:\\s*:\\s*(?<message>.*))?";
+
+	/**
+	 * Lines are cut after this many bytes before matching, result lines are
+	 * short.
+	 */
+	static final int MAX_LINE = 8 * 1024;
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[] patterns;
+	private final String charset;
+	private final SUnitReport report = new SUnitReport();
+	private byte[] line = new byte[256];
+	private int length;
+	private transient Matcher start;
+	private transient Matcher pass;
+	private transient Matcher fail;
+	private transient Matcher error;
+	private transient LineDecoder decoder;
+
+	/**
+	 * Create a parser.
+	 * @param start pattern of a test start, blank to ignore test starts
+	 * @param pass pattern of a passed test
+	 * @param fail pattern of a failed test
+	 * @param error pattern of a test error
+	 * @param charset encoding of the Transcript
+	 * @throws PatternSyntaxException if a pattern is invalid
+	 */
+	public SUnitParser(String start, String pass, String fail, String error, Charset charset) {
+		this.patterns = new String[] {start, pass, fail, error};
+		this.charset = charset.name();
+		init();
+	}
+
+	/**
+	 * Check a pattern entered in the configuration.
+	 * @param pattern regular expression
+	 * @return error message or null if the pattern can be used
+	 */
+	public static String checkPattern(String pattern) {
+		if (pattern == null || pattern.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			Pattern.compile(pattern);
+		} catch (PatternSyntaxException e) {
+			return e.getDescription();
+		}
+		if (!pattern.contains("(?<class>") || !pattern.contains("(?<test>")) {
+			return "The pattern needs the groups (?<class>...) and (?<test>...)";
+		}
+		return null;
+	}
+
+	/**
+	 * Get the results recognized so far.
+	 * @return report
+	 */
+	public SUnitReport getReport() {
+		return report;
+	}
+
+	@Override
+	public void write(int b) {
+		if (b == '\n') {
+			endLine();
+		} else if (length < MAX_LINE) {
+			if (length == line.length) {
+				line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+			}
+			line[length++] = (byte) b;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		int end = off + len;
+		int lineStart = off;
+		for (int i = off; i < end; i++) {
+			if (b[i] == '\n') {
+				append(b, lineStart, i - lineStart);
+				endLine();
+				lineStart = i + 1;
+			}
+		}
+		append(b, lineStart, end - lineStart);
+	}
+
+	/**
+	 * Match an unterminated last line. Call this once the log is complete.
+	 */
+	@Override
+	public void close() {
+		if (length > 0) {
+			endLine();
+		}
+	}
+
+	private void init() {
+		start = compile(patterns[0]);
+		pass = compile(patterns[1]);
+		fail = compile(patterns[2]);
+		error = compile(patterns[3]);
+		decoder = new LineDecoder(Charset.forName(charset));
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	private void append(byte[] b, int off, int len) {
+		int copy = Math.min(len, MAX_LINE - length);
+		if (copy <= 0) {
+			return;
+		}
+		if (length + copy > line.length) {
+			line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + copy), MAX_LINE));
+		}
+		System.arraycopy(b, off, line, length, copy);
+		length += copy;
+	}
+
+	private void endLine() {
+		// Most lines match no pattern, they are decoded into a reused buffer
+		CharSequence text = decoder.decode(line, length);
+		length = 0;
+		long now = System.nanoTime();
+		Matcher matcher = match(start, text);
+		if (matcher != null) {
+			report.started(matcher.group("class"), matcher.group("test"), now);
+			return;
+		}
+		matcher = match(pass, text);
+		if (matcher != null) {
+			report.finished(matcher.group("class"), matcher.group("test"), SUnitReport.PASSED, null, now);
+			return;
+		}
+		matcher = match(fail, text);
+		if (matcher != null) {
+			report.finished(matcher.group("class"), matcher.group("test"), SUnitReport.FAILED, message(matcher), now);
+			return;
+		}
+		matcher = match(error, text);
+		if (matcher != null) {
+			report.finished(matcher.group("class"), matcher.group("test"), SUnitReport.ERROR, message(matcher), now);
+		}
+	}
+
+	private static Matcher match(Matcher matcher, CharSequence text) {
+		if (matcher == null) {
+			return null;
+		}
+		return matcher.reset(text).find() ? matcher : null;
+	}
+
+	private static String message(Matcher matcher) {
+		try {
+			return matcher.group("message");
+		} catch (IllegalArgumentException e) {
+			// Pattern without message group
+			return null;
+		}
+	}
+
+	private static Matcher compile(String pattern) {
+		return pattern == null || pattern.trim().isEmpty() ? null : Pattern.compile(pattern).matcher("");
+	}
+}
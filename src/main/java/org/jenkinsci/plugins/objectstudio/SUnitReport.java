@@ -0,0 +1,485 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * SUnit results collected from the Transcript, written as JUnit XML.
+ *
+ * <p>
+ * Only the outcome of each test is kept, not the log lines, so the report
+ * stays small however large the log gets. The report is one test suite,
+ * each test case carries its test class. {@link #writeTo(FilePath, boolean)}
+ * appends the test cases finished since the last write in front of the
+ * closing tag and rewrites the suite header in place, the header is padded
+ * to {@link #HEADER_SIZE} for this. The whole file is only written again
+ * if a test that is already in it is reported again.
+ *
+ * @author Patrick Lauper
+ */
+public class SUnitReport implements Serializable {
+
+	/**
+	 * Outcome of a test that was started but has no result yet.
+	 */
+	public static final String RUNNING = "running";
+
+	/**
+	 * Outcome of a passed test.
+	 */
+	public static final String PASSED = "passed";
+
+	/**
+	 * Outcome of a test with a failed assertion.
+	 */
+	public static final String FAILED = "failed";
+
+	/**
+	 * Outcome of a test that raised an error.
+	 */
+	public static final String ERROR = "error";
+
+	/**
+	 * Bytes of the suite header including its padding and newline.
+	 */
+	static final int HEADER_SIZE = 128;
+
+	/**
+	 * First line of the report, the header follows it.
+	 */
+	static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+
+	/**
+	 * Last line of the report, test cases are appended in front of it.
+	 */
+	static final String FOOTER = "</testsuite>\n";
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final double NANOS_PER_SECOND = 1000000000.0;
+
+	private final Map<String, Map<String, TestCase>> suites = new LinkedHashMap<String, Map<String, TestCase>>();
+	private List<TestCase> unwritten = new ArrayList<TestCase>();
+	private boolean rewrite = true;
+	private int tests;
+	private int failures;
+	private int errors;
+	private int running;
+	private long nanos;
+	private long version;
+
+	/**
+	 * Record the start of a test.
+	 * @param className test class
+	 * @param testName test selector
+	 * @param nanos time stamp from {@link System#nanoTime()}
+	 */
+	public synchronized void started(String className, String testName, long nanos) {
+		TestCase test = get(className, testName);
+		if (test.outcome == null) {
+			running++;
+		} else if (!RUNNING.equals(test.outcome)) {
+			// Run again, the earlier result no longer counts
+			forget(test);
+			running++;
+			if (test.pending) {
+				test.pending = false;
+				unwritten.remove(test);
+			}
+		}
+		test.start = nanos;
+		test.outcome = RUNNING;
+		version++;
+	}
+
+	/**
+	 * Record the result of a test.
+	 * @param className test class
+	 * @param testName test selector
+	 * @param outcome {@link #PASSED}, {@link #FAILED} or {@link #ERROR}
+	 * @param message failure message or null
+	 * @param nanos time stamp from {@link System#nanoTime()}
+	 */
+	public synchronized void finished(String className, String testName, String outcome, String message, long nanos) {
+		TestCase test = get(className, testName);
+		if (RUNNING.equals(test.outcome)) {
+			running--;
+		} else if (test.outcome != null) {
+			// Reported twice, count the last result only
+			forget(test);
+		}
+		tests++;
+		count(outcome, 1);
+		test.outcome = outcome;
+		test.message = message;
+		test.nanos = test.start == 0 ? 0 : nanos - test.start;
+		this.nanos += test.nanos;
+		if (test.written) {
+			rewrite = true;
+		} else if (!test.pending) {
+			test.pending = true;
+			unwritten.add(test);
+		}
+		version++;
+	}
+
+	/**
+	 * Number of tests with a result.
+	 * @return tests
+	 */
+	public synchronized int getTests() {
+		return tests;
+	}
+
+	/**
+	 * Number of failed tests.
+	 * @return failures
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Number of tests with an error.
+	 * @return errors
+	 */
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Counter incremented by every change, to find out whether the report
+	 * has to be written again.
+	 * @return version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Write the results as JUnit XML. A test that was started but has no
+	 * result, because ObjectStudio ended or hung, is reported as error.
+	 * @return XML document
+	 */
+	public synchronized String toXml() {
+		return document(true);
+	}
+
+	/**
+	 * Bring the report file up to date. Test cases finished since the last
+	 * write are appended, the first write and a test reported again write
+	 * the whole file.
+	 * @param file report file on the node
+	 * @param last true once the log is complete, tests without a result are
+	 *            then written as errors
+	 * @throws IOException if the file can not be written
+	 * @throws InterruptedException abort build on interrupt
+	 */
+	public void writeTo(FilePath file, boolean last) throws IOException, InterruptedException {
+		String document = null;
+		String header = null;
+		String cases = null;
+		synchronized (this) {
+			if (rewrite) {
+				document = document(last);
+				rewritten(last);
+			} else {
+				cases = appendCases(last);
+				header = header(last);
+			}
+		}
+		if (document != null) {
+			file.write(document, "UTF-8");
+			return;
+		}
+		try {
+			file.act(new Append(header, cases));
+		} catch (IOException e) {
+			// The appended cases are lost, the next write starts over
+			synchronized (this) {
+				rewrite = true;
+			}
+			throw e;
+		}
+	}
+
+	private String document(boolean last) {
+		StringBuilder xml = new StringBuilder(DECLARATION).append(header(last));
+		for (Map<String, TestCase> suite : suites.values()) {
+			for (TestCase test : suite.values()) {
+				if (isWritten(test, last)) {
+					appendCase(xml, test);
+				}
+			}
+		}
+		return xml.append(FOOTER).toString();
+	}
+
+	/**
+	 * Remember which tests are in a document written completely.
+	 */
+	private void rewritten(boolean last) {
+		for (Map<String, TestCase> suite : suites.values()) {
+			for (TestCase test : suite.values()) {
+				test.written = isWritten(test, last);
+				test.pending = false;
+			}
+		}
+		unwritten.clear();
+		rewrite = false;
+	}
+
+	private static boolean isWritten(TestCase test, boolean last) {
+		return test.outcome != null && (last || !RUNNING.equals(test.outcome));
+	}
+
+	private String appendCases(boolean last) {
+		StringBuilder xml = new StringBuilder();
+		for (TestCase test : unwritten) {
+			test.pending = false;
+			test.written = true;
+			appendCase(xml, test);
+		}
+		unwritten.clear();
+		if (last && running > 0) {
+			for (Map<String, TestCase> suite : suites.values()) {
+				for (TestCase test : suite.values()) {
+					if (RUNNING.equals(test.outcome) && !test.written) {
+						test.written = true;
+						appendCase(xml, test);
+					}
+				}
+			}
+		}
+		return xml.toString();
+	}
+
+	/**
+	 * Suite start tag, padded to {@link #HEADER_SIZE} so it can be rewritten
+	 * in place.
+	 */
+	private String header(boolean last) {
+		int unfinished = last ? running : 0;
+		StringBuilder header = new StringBuilder("<testsuite name=\"SUnit\" tests=\"").append(tests + unfinished)
+				.append("\" failures=\"").append(failures)
+				.append("\" errors=\"").append(errors + unfinished)
+				.append("\" time=\"").append(seconds(nanos)).append("\">");
+		while (header.length() < HEADER_SIZE - 1) {
+			header.append(' ');
+		}
+		return header.append('\n').toString();
+	}
+
+	private static void appendCase(StringBuilder xml, TestCase test) {
+		xml.append("  <testcase classname=\"").append(escape(test.className))
+				.append("\" name=\"").append(escape(test.name))
+				.append("\" time=\"").append(seconds(test.nanos)).append('"');
+		if (PASSED.equals(test.outcome)) {
+			xml.append("/>\n");
+			return;
+		}
+		String element = FAILED.equals(test.outcome) ? "failure" : "error";
+		String message = RUNNING.equals(test.outcome) ? "Test did not finish" : test.message;
+		xml.append(">\n    <").append(element);
+		if (message != null) {
+			xml.append(" message=\"").append(escape(message)).append('"');
+		}
+		xml.append("/>\n  </testcase>\n");
+	}
+
+	private TestCase get(String className, String testName) {
+		Map<String, TestCase> suite = suites.get(className);
+		if (suite == null) {
+			suite = new LinkedHashMap<String, TestCase>();
+			suites.put(className, suite);
+		}
+		TestCase test = suite.get(testName);
+		if (test == null) {
+			test = new TestCase(className, testName);
+			suite.put(testName, test);
+		}
+		return test;
+	}
+
+	/**
+	 * Take back the counts of an earlier result of a test.
+	 */
+	private void forget(TestCase test) {
+		tests--;
+		count(test.outcome, -1);
+		nanos -= test.nanos;
+		if (test.written) {
+			rewrite = true;
+		}
+	}
+
+	private void count(String outcome, int delta) {
+		if (FAILED.equals(outcome)) {
+			failures += delta;
+		} else if (ERROR.equals(outcome)) {
+			errors += delta;
+		}
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / NANOS_PER_SECOND);
+	}
+
+	/**
+	 * Escape text for an XML attribute, dropping characters XML can not
+	 * represent.
+	 */
+	static String escape(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				escaped.append("&amp;");
+				break;
+			case '<':
+				escaped.append("&lt;");
+				break;
+			case '>':
+				escaped.append("&gt;");
+				break;
+			case '"':
+				escaped.append("&quot;");
+				break;
+			case '\n':
+				escaped.append("&#10;");
+				break;
+			case '\t':
+				escaped.append("&#9;");
+				break;
+			default:
+				if (c >= ' ' && c != '\uFFFE' && c != '\uFFFF') {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped.toString();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// Saved by an older version, which wrote the whole file each time
+		boolean old = unwritten == null;
+		if (old) {
+			unwritten = new ArrayList<TestCase>();
+			rewrite = true;
+		}
+		// Time stamps of another JVM, a running test gets no duration
+		for (Map.Entry<String, Map<String, TestCase>> suite : suites.entrySet()) {
+			for (TestCase test : suite.getValue().values()) {
+				test.start = 0;
+				if (old) {
+					test.className = suite.getKey();
+					running += RUNNING.equals(test.outcome) ? 1 : 0;
+					nanos += test.nanos;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Outcome of one test.
+	 */
+	private static final class TestCase implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String className;
+		private final String name;
+		private String outcome;
+		private String message;
+		private long start;
+		private long nanos;
+		private boolean written;
+		private boolean pending;
+
+		TestCase(String className, String name) {
+			this.className = className;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Appends test cases in front of the closing tag of a report file and
+	 * rewrites its header. Runs on the node.
+	 */
+	static final class Append extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] header;
+		private final byte[] cases;
+
+		Append(String header, String cases) {
+			this.header = header.getBytes(UTF8);
+			this.cases = cases.getBytes(UTF8);
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			byte[] footer = FOOTER.getBytes(UTF8);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				long end = raf.length() - footer.length;
+				byte[] current = new byte[footer.length];
+				if (end >= DECLARATION.length() + HEADER_SIZE) {
+					raf.seek(end);
+					raf.readFully(current);
+				}
+				if (!Arrays.equals(footer, current)) {
+					throw new IOException("Not an SUnit report written by this build: " + f);
+				}
+				raf.seek(end);
+				raf.write(cases);
+				raf.write(footer);
+				raf.seek(DECLARATION.length());
+				raf.write(header);
+			} finally {
+				raf.close();
+			}
+			return null;
+		}
+	}
+}
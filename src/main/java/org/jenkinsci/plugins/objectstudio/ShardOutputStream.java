@@ -0,0 +1,142 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes the output of one shard to the shared build log, one complete line
+ * at a time with a prefix naming the shard, so lines of parallel shards do
+ * not get mixed up. The lines of one write are passed on together, so the
+ * shared log is locked and written once per write, not once per line.
+ *
+ * @author Patrick Lauper
+ */
+public class ShardOutputStream extends OutputStream {
+
+	/**
+	 * Lines longer than this are written in pieces.
+	 */
+	static final int MAX_LINE = 64 * 1024;
+
+	private final OutputStream out;
+	private final byte[] prefix;
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	private byte[] line = new byte[1024];
+	private int length;
+
+	/**
+	 * Create the stream of a shard.
+	 * @param out shared build log, used as lock between the shards
+	 * @param prefix written before every line
+	 * @param charset encoding of the build log
+	 */
+	public ShardOutputStream(OutputStream out, String prefix, Charset charset) {
+		this.out = out;
+		this.prefix = prefix.getBytes(charset);
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if (b == '\n') {
+			writeLine();
+			writeBatch();
+		} else {
+			append(new byte[] {(byte) b}, 0, 1);
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int lineStart = off;
+		for (int i = off; i < end; i++) {
+			if (b[i] == '\n') {
+				append(b, lineStart, i - lineStart);
+				writeLine();
+				lineStart = i + 1;
+			}
+		}
+		append(b, lineStart, end - lineStart);
+		writeBatch();
+	}
+
+	/**
+	 * Write an unterminated last line.
+	 * @throws IOException on write errors
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (length > 0) {
+			writeLine();
+		}
+		synchronized (out) {
+			batch.writeTo(out);
+			out.flush();
+		}
+		batch.reset();
+	}
+
+	/**
+	 * Add to the current line, passing an over-long line on in pieces.
+	 */
+	private void append(byte[] b, int off, int len) throws IOException {
+		int pos = off;
+		int remaining = len;
+		while (remaining > 0) {
+			if (length == MAX_LINE) {
+				writeLine();
+			}
+			int copy = Math.min(remaining, MAX_LINE - length);
+			if (length + copy > line.length) {
+				line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + copy), MAX_LINE));
+			}
+			System.arraycopy(b, pos, line, length, copy);
+			length += copy;
+			pos += copy;
+			remaining -= copy;
+		}
+	}
+
+	private void writeLine() {
+		batch.write(prefix, 0, prefix.length);
+		batch.write(line, 0, length);
+		batch.write('\n');
+		length = 0;
+	}
+
+	private void writeBatch() throws IOException {
+		if (batch.size() == 0) {
+			return;
+		}
+		synchronized (out) {
+			batch.writeTo(out);
+		}
+		batch.reset();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Captures the error output of ObjectStudio with constant memory.
+ *
+ * <p>
+ * Every line is written to the build log as soon as it is complete, with a
+ * prefix. For the failure message only the first {@link #HEAD_SIZE} and the
+ * last {@link #TAIL_SIZE} bytes are kept.
+ *
+ * @author Patrick Lauper
+ */
+public class StderrCapture extends OutputStream {
+
+	/**
+	 * Number of leading bytes kept for the failure message.
+	 */
+	static final int HEAD_SIZE = 4096;
+
+	/**
+	 * Number of trailing bytes kept for the failure message.
+	 */
+	static final int TAIL_SIZE = 4096;
+
+	/**
+	 * Longest line buffered before it is written to the build log.
+	 */
+	static final int MAX_LINE = 8192;
+
+	private static final String PREFIX = "[ObjectStudio] stderr: ";
+
+	private final PrintStream logger;
+	private final Charset charset;
+	private final byte[] prefix;
+	private final byte[] head = new byte[HEAD_SIZE];
+	private final byte[] tail = new byte[TAIL_SIZE];
+	private final byte[] line = new byte[MAX_LINE];
+	private int lineLength;
+	private long count;
+
+	/**
+	 * Create a capture writing to a build log.
+	 * @param logger build log
+	 * @param charset encoding of the error output
+	 */
+	public StderrCapture(PrintStream logger, Charset charset) {
+		this.logger = logger;
+		this.charset = charset;
+		// Same encoding as the error output it is written in front of
+		this.prefix = PREFIX.getBytes(charset);
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if (count < HEAD_SIZE) {
+			head[(int) count] = (byte) b;
+		}
+		tail[(int) (count % TAIL_SIZE)] = (byte) b;
+		count++;
+		line[lineLength++] = (byte) b;
+		if (b == '\n' || lineLength == MAX_LINE) {
+			eol();
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (lineLength > 0) {
+			eol();
+		}
+		logger.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Get number of bytes written to the error output.
+	 * @return number of bytes
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the error output for a failure message. If it was longer than the
+	 * kept head and tail, the middle is replaced by a marker.
+	 * @return error output
+	 */
+	@Override
+	public synchronized String toString() {
+		if (count <= HEAD_SIZE + TAIL_SIZE) {
+			byte[] all = new byte[(int) count];
+			int headLength = (int) Math.min(count, HEAD_SIZE);
+			System.arraycopy(head, 0, all, 0, headLength);
+			for (long i = headLength; i < count; i++) {
+				all[(int) i] = tail[(int) (i % TAIL_SIZE)];
+			}
+			return new String(all, charset);
+		}
+		byte[] last = new byte[TAIL_SIZE];
+		for (int i = 0; i < TAIL_SIZE; i++) {
+			last[i] = tail[(int) ((count + i) % TAIL_SIZE)];
+		}
+		return new String(head, charset)
+				+ "\n... " + (count - HEAD_SIZE - TAIL_SIZE) + " bytes skipped ...\n"
+				+ new String(last, charset);
+	}
+
+	private void eol() {
+		logger.write(prefix, 0, prefix.length);
+		logger.write(line, 0, lineLength);
+		if (line[lineLength - 1] != '\n') {
+			logger.println();
+		}
+		lineLength = 0;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Removes old TEMP directories without making the build wait.
+ *
+ * <p>
+ * The directory is renamed aside, which is a single file system operation
+ * however many files it holds, and then deleted by a background thread of
+ * the node. Directories left behind by an earlier run, e.g. because the node
+ * was restarted while deleting, are picked up the next time.
+ *
+ * @author Patrick Lauper
+ */
+public final class TempCleaner {
+
+	/**
+	 * Infix of directories waiting to be deleted.
+	 */
+	static final String OLD = ".old-";
+
+	private static final Logger LOGGER = Logger.getLogger(TempCleaner.class.getName());
+
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ObjectStudio TEMP cleaner");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private TempCleaner() {
+	}
+
+	/**
+	 * Move a directory aside and delete it in the background.
+	 * @param dir directory to remove
+	 * @return false if the directory could not be renamed, e.g. because a
+	 *         file in it is still open on Windows
+	 */
+	public static boolean removeInBackground(File dir) {
+		if (!dir.exists()) {
+			return true;
+		}
+		File old = new File(dir.getParentFile(), dir.getName() + OLD + System.currentTimeMillis());
+		if (!dir.renameTo(old)) {
+			return false;
+		}
+		deleteLeftovers(dir);
+		return true;
+	}
+
+	/**
+	 * Delete all directories that were moved aside for a directory.
+	 * @param dir directory that was moved aside
+	 */
+	public static void deleteLeftovers(final File dir) {
+		File[] leftovers = dir.getParentFile().listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.startsWith(dir.getName() + OLD);
+			}
+		});
+		if (leftovers == null) {
+			return;
+		}
+		for (final File leftover : leftovers) {
+			EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					delete(leftover);
+				}
+			});
+		}
+	}
+
+	private static void delete(File dir) {
+		if (!dir.exists()) {
+			return;
+		}
+		try {
+			Util.deleteRecursive(dir);
+		} catch (IOException e) {
+			// Retried with the next build
+			LOGGER.log(Level.FINE, "Can not delete " + dir, e);
+		}
+	}
+
+	/**
+	 * Removes a TEMP directory in the background on the node, invoke it on
+	 * the directory.
+	 */
+	public static final class Remove extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Boolean invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			return removeInBackground(f);
+		}
+	}
+}
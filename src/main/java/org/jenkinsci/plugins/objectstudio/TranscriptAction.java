@@ -0,0 +1,210 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Run;
+
+import jenkins.model.RunAction2;
+
+/**
+ * Pages through the Transcripts archived by {@link TranscriptArchive}.
+ *
+ * <p>
+ * Only the chunks of the shown page are decompressed, so any region of a
+ * large log can be shown quickly. The archives themselves are artifacts of
+ * the build and can be downloaded as a whole.
+ *
+ * @author Patrick Lauper
+ */
+public class TranscriptAction implements RunAction2 {
+
+	/**
+	 * Number of lines on a page.
+	 */
+	public static final int PAGE_SIZE = 1000;
+
+	private final List<String> names;
+	private final String charset;
+	private transient Run<?, ?> run;
+
+	/**
+	 * Create the action for the archives of a build.
+	 * @param names names of the archives, one per shard
+	 * @param charset encoding of the Transcript
+	 */
+	public TranscriptAction(List<String> names, Charset charset) {
+		this.names = new ArrayList<String>(names);
+		this.charset = charset.name();
+	}
+
+	/**
+	 * Get the names of the archives.
+	 * @return names without extension
+	 */
+	public List<String> getNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Get the build.
+	 * @return Jenkins build
+	 */
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	/**
+	 * Read a page of an archive.
+	 * @param name name of the archive, the first one if null
+	 * @param start number of the first line as text, 0 if null or invalid
+	 * @return page with up to {@link #PAGE_SIZE} lines
+	 * @throws IOException if the archive can not be read
+	 */
+	public Page getPage(String name, String start) throws IOException {
+		String archive = name == null || !names.contains(name) ? names.get(0) : name;
+		long first;
+		try {
+			first = start == null ? 0 : Math.max(0, Long.parseLong(start));
+		} catch (NumberFormatException e) {
+			first = 0;
+		}
+		File dir = getDirectory();
+		long total = TranscriptArchive.getLineCount(dir, archive);
+		List<String> lines = TranscriptArchive.readLines(dir, archive, first, PAGE_SIZE, Charset.forName(charset));
+		return new Page(archive, first, total, lines);
+	}
+
+	@Override
+	public String getIconFileName() {
+		return "document.gif";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "ObjectStudio Transcript";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "transcript";
+	}
+
+	@Override
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	@Override
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	private File getDirectory() {
+		return new File(run.getArtifactsDir(), TranscriptArchive.DIRECTORY);
+	}
+
+	/**
+	 * Lines of an archive shown on one page.
+	 */
+	public static final class Page {
+		private final String name;
+		private final long start;
+		private final long total;
+		private final List<String> lines;
+
+		Page(String name, long start, long total, List<String> lines) {
+			this.name = name;
+			this.start = start;
+			this.total = total;
+			this.lines = lines;
+		}
+
+		/**
+		 * Get the name of the archive.
+		 * @return name without extension
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the number of the first line, starting at 0.
+		 * @return line number
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * Get the number of lines in the archive.
+		 * @return lines
+		 */
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Get the lines of the page.
+		 * @return lines without line ends
+		 */
+		public List<String> getLines() {
+			return lines;
+		}
+
+		/**
+		 * Get the first line of the previous page.
+		 * @return line number or -1 on the first page
+		 */
+		public long getPrevious() {
+			return start == 0 ? -1 : Math.max(0, start - PAGE_SIZE);
+		}
+
+		/**
+		 * Get the first line of the next page.
+		 * @return line number or -1 on the last page
+		 */
+		public long getNext() {
+			return start + PAGE_SIZE < total ? start + PAGE_SIZE : -1;
+		}
+
+		/**
+		 * Get the text of the page.
+		 * @return lines separated by line ends
+		 */
+		public String getText() {
+			StringBuilder text = new StringBuilder();
+			for (String line : lines) {
+				text.append(line).append('\n');
+			}
+			return text.toString();
+		}
+	}
+}
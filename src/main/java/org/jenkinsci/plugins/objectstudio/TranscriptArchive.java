@@ -0,0 +1,371 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives the Transcript of a build compressed, with an index of its lines.
+ *
+ * <p>
+ * The log is cut into chunks of about {@link #CHUNK_SIZE} bytes at line
+ * ends, every chunk is compressed as a gzip member of its own and appended
+ * to <code>NAME.gz</code>. Concatenated gzip members are a valid gzip file,
+ * so the archive can be read with any gzip tool. For every chunk
+ * <code>NAME.idx</code> gets a line with its first line number, offset,
+ * compressed length and number of lines, so a region of the log can be read
+ * by decompressing only the chunks it covers.
+ *
+ * <p>
+ * Only lines that look like errors (see {@link #ERRORS}) are written to the
+ * console.
+ *
+ * @author Patrick Lauper
+ */
+public class TranscriptArchive extends OutputStream {
+
+	/**
+	 * Directory of the archives in the artifacts of a build.
+	 */
+	public static final String DIRECTORY = "objectstudio";
+
+	/**
+	 * Extension of the compressed log.
+	 */
+	public static final String DATA = ".gz";
+
+	/**
+	 * Extension of the index.
+	 */
+	public static final String INDEX = ".idx";
+
+	/**
+	 * Lines written to the console.
+	 */
+	public static final Pattern ERRORS = Pattern.compile(
+			"\\b(?:error|exception|failed|failure|walkback|unhandled)\\b", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Uncompressed size after which a chunk is closed at the next line end.
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Uncompressed size after which a chunk is closed even within a line.
+	 */
+	static final int MAX_CHUNK_SIZE = 4 * CHUNK_SIZE;
+
+	/**
+	 * Lines are cut after this many bytes before matching and writing them
+	 * to the console.
+	 */
+	static final int MAX_LINE = 8 * 1024;
+
+	private final OutputStream console;
+	private final LineDecoder decoder;
+	private final Matcher errorMatcher = ERRORS.matcher("");
+	private final OutputStream data;
+	private final OutputStream index;
+	private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE);
+	private final byte[] line = new byte[MAX_LINE];
+	private int lineLength;
+	private long offset;
+	private long firstLine;
+	private int chunkLines;
+	private long bytes;
+	private long errors;
+
+	/**
+	 * Create the archive files, replacing older ones.
+	 * @param dir directory of the archive
+	 * @param name name of the archive files without extension
+	 * @param console build log receiving the error lines, better buffered
+	 * @param charset encoding of the Transcript
+	 * @throws IOException if the files can not be created
+	 */
+	public TranscriptArchive(File dir, String name, OutputStream console, Charset charset) throws IOException {
+		if (!dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Can not create directory " + dir);
+		}
+		this.console = console;
+		this.decoder = new LineDecoder(charset);
+		this.data = new FileOutputStream(new File(dir, name + DATA));
+		OutputStream indexFile;
+		try {
+			indexFile = new FileOutputStream(new File(dir, name + INDEX));
+		} catch (IOException e) {
+			data.close();
+			throw e;
+		}
+		this.index = indexFile;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		chunk.write(b, off, len);
+		bytes += len;
+		int lineStart = off;
+		for (int i = off; i < off + len; i++) {
+			if (b[i] == '\n') {
+				append(b, lineStart, i - lineStart);
+				endLine();
+				lineStart = i + 1;
+			}
+		}
+		append(b, lineStart, off + len - lineStart);
+		if (chunk.size() >= MAX_CHUNK_SIZE || chunk.size() >= CHUNK_SIZE && b[off + len - 1] == '\n') {
+			writeChunk();
+		}
+	}
+
+	/**
+	 * Write the last chunk and close the files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (lineLength > 0) {
+			endLine();
+		}
+		try {
+			writeChunk();
+		} finally {
+			try {
+				data.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of lines archived so far.
+	 * @return lines
+	 */
+	public synchronized long getLines() {
+		return firstLine + chunkLines;
+	}
+
+	/**
+	 * Get the number of bytes archived so far, uncompressed.
+	 * @return bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the size of the compressed archive written so far.
+	 * @return bytes
+	 */
+	public synchronized long getCompressedBytes() {
+		return offset;
+	}
+
+	/**
+	 * Get the number of lines written to the console.
+	 * @return lines looking like errors
+	 */
+	public synchronized long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Count the lines of an archive.
+	 * @param dir directory of the archive
+	 * @param name name of the archive files without extension
+	 * @return number of lines
+	 * @throws IOException if the index can not be read
+	 */
+	public static long getLineCount(File dir, String name) throws IOException {
+		List<long[]> chunks = readIndex(dir, name);
+		if (chunks.isEmpty()) {
+			return 0;
+		}
+		long[] last = chunks.get(chunks.size() - 1);
+		return last[0] + last[3];
+	}
+
+	/**
+	 * Read a region of an archive, decompressing only the chunks it covers.
+	 * @param dir directory of the archive
+	 * @param name name of the archive files without extension
+	 * @param first number of the first line, starting at 0
+	 * @param count maximum number of lines
+	 * @param charset encoding of the Transcript
+	 * @return lines without line ends
+	 * @throws IOException if the archive can not be read
+	 */
+	public static List<String> readLines(File dir, String name, long first, int count, Charset charset) throws IOException {
+		List<long[]> chunks = readIndex(dir, name);
+		List<String> lines = new ArrayList<String>();
+		RandomAccessFile file = new RandomAccessFile(new File(dir, name + DATA), "r");
+		try {
+			for (int i = findChunk(chunks, first); i < chunks.size() && lines.size() < count; i++) {
+				long[] entry = chunks.get(i);
+				String[] text = readChunk(file, entry[1], (int) entry[2], charset).split("\n", -1);
+				for (int j = (int) Math.max(0, first - entry[0]); j < entry[3] && lines.size() < count; j++) {
+					lines.add(stripCr(text[j]));
+				}
+			}
+		} finally {
+			file.close();
+		}
+		return lines;
+	}
+
+	private void append(byte[] b, int off, int len) {
+		int copy = Math.min(len, MAX_LINE - lineLength);
+		if (copy > 0) {
+			System.arraycopy(b, off, line, lineLength, copy);
+			lineLength += copy;
+		}
+	}
+
+	/**
+	 * Count a line and write it to the console if it looks like an error.
+	 */
+	private void endLine() throws IOException {
+		chunkLines++;
+		// Matched without a String per line, error lines are copied as bytes
+		if (errorMatcher.reset(decoder.decode(line, lineLength)).find()) {
+			errors++;
+			console.write(line, 0, lineLength);
+			console.write('\n');
+		}
+		lineLength = 0;
+	}
+
+	private void writeChunk() throws IOException {
+		if (chunk.size() == 0) {
+			return;
+		}
+		// A line cut by MAX_CHUNK_SIZE continues in the next chunk as a line of its own
+		if (lineLength > 0) {
+			endLine();
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(chunk.size() / 4);
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		chunk.writeTo(gzip);
+		gzip.finish();
+		compressed.writeTo(data);
+		String entry = firstLine + " " + offset + " " + compressed.size() + " " + chunkLines + "\n";
+		index.write(entry.getBytes("US-ASCII"));
+		index.flush();
+		offset += compressed.size();
+		firstLine += chunkLines;
+		chunkLines = 0;
+		chunk.reset();
+	}
+
+	/**
+	 * Read the index, one entry of first line, offset, length and lines per
+	 * chunk.
+	 */
+	private static List<long[]> readIndex(File dir, String name) throws IOException {
+		List<long[]> chunks = new ArrayList<long[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(dir, name + INDEX)), "US-ASCII"));
+		try {
+			String entry = reader.readLine();
+			while (entry != null) {
+				String[] fields = entry.trim().split(" ");
+				if (fields.length == 4) {
+					chunks.add(new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3])});
+				}
+				entry = reader.readLine();
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid index of " + name + ": " + e.getMessage(), e);
+		} finally {
+			reader.close();
+		}
+		return chunks;
+	}
+
+	/**
+	 * Find the chunk holding a line by binary search.
+	 */
+	private static int findChunk(List<long[]> chunks, long line) {
+		int low = 0;
+		int high = chunks.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (chunks.get(mid)[0] <= line) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private static String readChunk(RandomAccessFile file, long offset, int length, Charset charset) throws IOException {
+		byte[] compressed = new byte[length];
+		file.seek(offset);
+		file.readFully(compressed);
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream text = new ByteArrayOutputStream(length * 4);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read = in.read(buffer);
+			while (read >= 0) {
+				text.write(buffer, 0, read);
+				read = in.read(buffer);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(text.toByteArray(), charset);
+	}
+
+	private static String stripCr(String text) {
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+}
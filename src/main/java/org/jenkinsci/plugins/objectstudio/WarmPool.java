@@ -0,0 +1,622 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Pool of ObjectStudio processes started ahead of the builds on a node.
+ *
+ * <p>
+ * A warm process is started in its own slot directory with a copy of the
+ * image, ostudio.ini and preload script, the same command line as a build
+ * and the slot directory in {@link #SLOT}. Starting the image, preloading
+ * and logging on happens while no build waits for it. A build checks out a
+ * ready process, which then runs the load script of the build, and the
+ * process is thrown away when it ends. The pool is refilled in the
+ * background.
+ *
+ * <p>
+ * There is no way to hand a script to a running image from outside, so the
+ * image has to take part: when {@link #SLOT} is set, the preload or
+ * afterlogon script writes the file {@link #READY} into the slot directory
+ * once the image is ready and then waits for the file {@link #START} before
+ * ObjectStudio goes on with the load script. At checkout the load script of
+ * the build is copied to the path passed with -A, and {@link #START} is
+ * written with the build environment as properties. Warm processes are
+ * started with the environment of the agent and the variables of the
+ * plugin only, so Jenkins does not take them for leftovers of the build
+ * that filled the pool. Scripts take build specific values from
+ * {@link #START}.
+ *
+ * <p>
+ * The pool lives in the agent JVM and is keyed by the configuration, a
+ * process whose image, ostudio.ini or preload script changed since it was
+ * started is discarded. Processes idle for longer than {@link #MAX_IDLE}
+ * are discarded as well.
+ *
+ * @author Patrick Lauper
+ */
+public final class WarmPool {
+
+	/**
+	 * Name of the pool directory in the root directory of a node.
+	 */
+	public static final String DIRECTORY = "objectstudio-warm";
+
+	/**
+	 * Environment variable with the slot directory of a warm process.
+	 */
+	public static final String SLOT = "OSTUDIO_WARM_SLOT";
+
+	/**
+	 * Property in {@link #START} with the build directory.
+	 */
+	public static final String BUILD_DIR = "OSTUDIO_BUILD_DIR";
+
+	/**
+	 * File written by the image when it is ready to run the load script.
+	 */
+	public static final String READY = "ready";
+
+	/**
+	 * File written by the plugin when a build checked out the process.
+	 */
+	public static final String START = "start";
+
+	/**
+	 * File in the slot directory receiving the output of the process.
+	 */
+	public static final String OUTPUT = "output.txt";
+
+	/**
+	 * Longest time in milliseconds a process is kept waiting for a build.
+	 */
+	static final long MAX_IDLE = 2L * 60 * 60 * 1000;
+
+	private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+
+	/**
+	 * Idle and starting processes by configuration key.
+	 */
+	private static final Map<String, List<Slot>> POOLS = new HashMap<String, List<Slot>>();
+
+	/**
+	 * Checked out processes by slot id.
+	 */
+	private static final Map<String, Slot> RUNNING = new HashMap<String, Slot>();
+
+	private static final ExecutorService FILLER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ObjectStudio warm pool");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private WarmPool() {
+	}
+
+	/**
+	 * Register a new slot and prepare and start it in the background.
+	 */
+	private static void fill(final Spec spec) {
+		final Slot slot = new Slot(spec);
+		synchronized (POOLS) {
+			List<Slot> pool = POOLS.get(spec.key);
+			if (pool == null) {
+				pool = new ArrayList<Slot>();
+				POOLS.put(spec.key, pool);
+			}
+			pool.add(slot);
+		}
+		FILLER.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					slot.start();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Can not start warm ObjectStudio in " + spec.dir, e);
+					discard(slot);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Take a ready process, discarding dead, outdated and long idle ones.
+	 */
+	private static Slot take(String key) {
+		List<Slot> discarded = new ArrayList<Slot>();
+		Slot taken = null;
+		synchronized (POOLS) {
+			for (List<Slot> pool : POOLS.values()) {
+				for (Iterator<Slot> it = pool.iterator(); it.hasNext();) {
+					Slot slot = it.next();
+					if (slot.isDead() || slot.isExpired() || key.equals(slot.spec.key) && slot.isOutdated()) {
+						it.remove();
+						discarded.add(slot);
+					} else if (taken == null && key.equals(slot.spec.key) && slot.isReady()) {
+						it.remove();
+						taken = slot;
+					}
+				}
+			}
+			if (taken != null) {
+				RUNNING.put(taken.spec.id, taken);
+			}
+		}
+		for (Slot slot : discarded) {
+			discard(slot);
+		}
+		return taken;
+	}
+
+	private static int size(String key) {
+		synchronized (POOLS) {
+			List<Slot> pool = POOLS.get(key);
+			return pool == null ? 0 : pool.size();
+		}
+	}
+
+	private static Slot running(String id) throws IOException {
+		synchronized (POOLS) {
+			Slot slot = RUNNING.get(id);
+			if (slot == null) {
+				throw new IOException("Unknown warm ObjectStudio " + id);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Delete slot directories not known to this JVM, left by an agent that
+	 * was restarted.
+	 */
+	private static void cleanLeftovers(File root) {
+		String[] names = root.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			int old = name.indexOf(TempCleaner.OLD);
+			if (old >= 0) {
+				TempCleaner.deleteLeftovers(new File(root, name.substring(0, old)));
+			} else if (!isKnown(name)) {
+				TempCleaner.removeInBackground(new File(root, name));
+			}
+		}
+	}
+
+	private static boolean isKnown(String id) {
+		synchronized (POOLS) {
+			if (RUNNING.containsKey(id)) {
+				return true;
+			}
+			for (List<Slot> pool : POOLS.values()) {
+				for (Slot slot : pool) {
+					if (slot.spec.id.equals(id)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	private static void discard(Slot slot) {
+		synchronized (POOLS) {
+			RUNNING.remove(slot.spec.id);
+		}
+		slot.kill();
+		TempCleaner.removeInBackground(new File(slot.spec.dir));
+	}
+
+	/**
+	 * Description of a slot, built on the master.
+	 */
+	public static final class Spec implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+		private final String id;
+		private final String dir;
+		private final List<String> command;
+		private final Map<String, String> env;
+		private final Map<String, String> copies = new LinkedHashMap<String, String>();
+		private final List<String> sources = new ArrayList<String>();
+
+		/**
+		 * Describe a slot.
+		 * @param key configuration key of the pool
+		 * @param id unique id of the slot
+		 * @param dir slot directory on the node
+		 * @param command command line starting ObjectStudio
+		 * @param env environment of the process
+		 */
+		public Spec(String key, String id, String dir, List<String> command, Map<String, String> env) {
+			this.key = key;
+			this.id = id;
+			this.dir = dir;
+			this.command = new ArrayList<String>(command);
+			this.env = new HashMap<String, String>(env);
+		}
+
+		/**
+		 * Copy a file into the slot before starting the process.
+		 * @param source file on the node
+		 * @param target file in the slot
+		 */
+		public void copy(String source, String target) {
+			copies.put(source, target);
+			sources.add(source);
+		}
+
+		/**
+		 * Describe what the process depends on, without the build specific
+		 * environment.
+		 * @return command line, after logon script and source files
+		 */
+		public String getSignature() {
+			StringBuilder signature = new StringBuilder();
+			for (String arg : command) {
+				signature.append(arg).append('\n');
+			}
+			signature.append(env.get("AFTERLOGONSCRIPT")).append('\n');
+			for (String source : sources) {
+				signature.append(source).append('\n');
+			}
+			return signature.toString();
+		}
+
+		/**
+		 * Discard the process when a file it uses without copying changes.
+		 * @param source file on the node
+		 */
+		public void watch(String source) {
+			sources.add(source);
+		}
+	}
+
+	/**
+	 * A warm process and its directory.
+	 */
+	private static final class Slot {
+		private final Spec spec;
+		private final long created = System.currentTimeMillis();
+		private String fingerprint;
+		private Process process;
+
+		Slot(Spec spec) {
+			this.spec = spec;
+		}
+
+		void start() throws IOException {
+			File dir = new File(spec.dir);
+			File temp = new File(dir, WorkspacePreparation.TEMP);
+			if (!temp.mkdirs() && !temp.isDirectory()) {
+				throw new IOException("Can not create directory " + temp);
+			}
+			String before = fingerprint(spec.sources);
+			for (Map.Entry<String, String> copy : spec.copies.entrySet()) {
+				Files.copy(new File(copy.getKey()).toPath(), new File(copy.getValue()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			ProcessBuilder builder = new ProcessBuilder(spec.command)
+					.directory(dir)
+					.redirectErrorStream(true)
+					.redirectOutput(new File(dir, OUTPUT));
+			builder.environment().putAll(spec.env);
+			Process started = builder.start();
+			synchronized (POOLS) {
+				fingerprint = before;
+				process = started;
+			}
+		}
+
+		boolean isReady() {
+			return process != null && new File(spec.dir, READY).exists();
+		}
+
+		boolean isDead() {
+			return process != null && exitValue(process) != null;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() - created > MAX_IDLE;
+		}
+
+		boolean isOutdated() {
+			return fingerprint != null && !fingerprint.equals(fingerprint(spec.sources));
+		}
+
+		void kill() {
+			if (process == null || exitValue(process) != null) {
+				return;
+			}
+			try {
+				ProcessTree.OSProcess tree = ProcessTree.get().get(process);
+				if (tree != null) {
+					tree.killRecursively();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			process.destroy();
+		}
+
+		/**
+		 * Copy the load script and let the process go on.
+		 */
+		void release(String loadScript, String loadTarget, Map<String, String> properties) throws IOException {
+			if (loadScript != null) {
+				Files.copy(new File(loadScript).toPath(), new File(loadTarget).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			Properties start = new Properties();
+			start.putAll(properties);
+			File tmp = new File(spec.dir, START + ".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				start.store(out, "ObjectStudio build");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), new File(spec.dir, START).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private static String fingerprint(List<String> files) {
+			StringBuilder fingerprint = new StringBuilder();
+			for (String name : files) {
+				File file = new File(name);
+				fingerprint.append(name).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+			}
+			return fingerprint.toString();
+		}
+
+		private static Integer exitValue(Process process) {
+			try {
+				return process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Start new warm processes. Invoke it on the pool directory of the node.
+	 */
+	public static final class Fill extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Spec> specs;
+
+		/**
+		 * Start processes for the given slots.
+		 * @param specs slots to fill
+		 */
+		public Fill(List<Spec> specs) {
+			this.specs = new ArrayList<Spec>(specs);
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			cleanLeftovers(f);
+			for (Spec spec : specs) {
+				fill(spec);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Check out a ready process for a build. Invoke it on the pool directory
+	 * of the node.
+	 */
+	public static final class Checkout extends MasterToSlaveFileCallable<Checkout.Result> {
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+		private final String loadScript;
+		private final String loadName;
+		private final Map<String, String> properties;
+
+		/**
+		 * Check out a process.
+		 * @param key configuration key of the pool
+		 * @param loadScript load script of the build on the node or null
+		 * @param loadName file name the load script is copied to in the slot
+		 * @param properties written to {@link WarmPool#START}
+		 */
+		public Checkout(String key, String loadScript, String loadName, Map<String, String> properties) {
+			this.key = key;
+			this.loadScript = loadScript;
+			this.loadName = loadName;
+			this.properties = new HashMap<String, String>(properties);
+		}
+
+		@Override
+		public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			Slot slot = take(key);
+			if (slot != null) {
+				try {
+					slot.release(loadScript, new File(slot.spec.dir, loadName).getPath(), properties);
+				} catch (IOException e) {
+					discard(slot);
+					throw e;
+				}
+			}
+			return new Result(slot == null ? null : slot.spec.id, slot == null ? null : slot.spec.dir, size(key));
+		}
+
+		/**
+		 * Outcome of a checkout.
+		 */
+		public static final class Result implements Serializable {
+			private static final long serialVersionUID = 1L;
+
+			private final String id;
+			private final String dir;
+			private final int remaining;
+
+			Result(String id, String dir, int remaining) {
+				this.id = id;
+				this.dir = dir;
+				this.remaining = remaining;
+			}
+
+			/**
+			 * Get the id of the checked out process.
+			 * @return slot id or null if no process was ready
+			 */
+			public String getId() {
+				return id;
+			}
+
+			/**
+			 * Get the slot directory of the checked out process.
+			 * @return absolute path or null if no process was ready
+			 */
+			public String getDir() {
+				return dir;
+			}
+
+			/**
+			 * Get the number of processes left in the pool, ready or starting.
+			 * @return processes of this configuration
+			 */
+			public int getRemaining() {
+				return remaining;
+			}
+		}
+	}
+
+	/**
+	 * Wait for a checked out process to end. Invoke it on the pool directory
+	 * of the node.
+	 */
+	public static final class Await extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private static final long POLL = 100;
+
+		private final String id;
+		private final long timeout;
+
+		/**
+		 * Wait for a process.
+		 * @param id slot id
+		 * @param timeout milliseconds to wait at most
+		 */
+		public Await(String id, long timeout) {
+			this.id = id;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public Integer invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			Slot slot = running(id);
+			long end = System.currentTimeMillis() + timeout;
+			Integer exit = Slot.exitValue(slot.process);
+			while (exit == null && System.currentTimeMillis() < end) {
+				Thread.sleep(POLL);
+				exit = Slot.exitValue(slot.process);
+			}
+			return exit;
+		}
+	}
+
+	/**
+	 * Kill a checked out process. Invoke it on the pool directory of the
+	 * node.
+	 */
+	public static final class Kill extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+
+		/**
+		 * Kill a process.
+		 * @param id slot id
+		 */
+		public Kill(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			running(id).kill();
+			return null;
+		}
+	}
+
+	/**
+	 * Forget a checked out process and delete its slot in the background,
+	 * once the build has read its log. Invoke it on the pool directory of
+	 * the node.
+	 */
+	public static final class Release extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+
+		/**
+		 * Release a slot.
+		 * @param id slot id
+		 */
+		public Release(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			discard(running(id));
+			return null;
+		}
+	}
+}
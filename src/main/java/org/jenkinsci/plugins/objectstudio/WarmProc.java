@@ -0,0 +1,111 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import hudson.FilePath;
+import hudson.Proc;
+
+/**
+ * A process checked out of the {@link WarmPool}, seen from the master.
+ *
+ * <p>
+ * The process was not started by the launcher, so there are no streams,
+ * its output goes to {@link WarmPool#OUTPUT} in the slot directory.
+ *
+ * @author Patrick Lauper
+ */
+public class WarmProc extends Proc {
+
+	/**
+	 * Longest time in milliseconds a join waits on the node in one call.
+	 */
+	static final long JOIN_WAIT = 5000;
+
+	private final FilePath root;
+	private final String id;
+	private Integer exitCode;
+
+	/**
+	 * Create the handle of a checked out process.
+	 * @param root pool directory on the node
+	 * @param id slot id
+	 */
+	public WarmProc(FilePath root, String id) {
+		this.root = root;
+		this.id = id;
+	}
+
+	@Override
+	public boolean isAlive() throws IOException, InterruptedException {
+		return await(0) == null;
+	}
+
+	@Override
+	public void kill() throws IOException, InterruptedException {
+		root.act(new WarmPool.Kill(id));
+	}
+
+	@Override
+	public int join() throws IOException, InterruptedException {
+		Integer rc = await(JOIN_WAIT);
+		while (rc == null) {
+			rc = await(JOIN_WAIT);
+		}
+		return rc;
+	}
+
+	@Override
+	public InputStream getStdout() {
+		return null;
+	}
+
+	@Override
+	public InputStream getStderr() {
+		return null;
+	}
+
+	@Override
+	public OutputStream getStdin() {
+		return null;
+	}
+
+	/**
+	 * Get the slot id of the process.
+	 * @return slot id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	private Integer await(long timeout) throws IOException, InterruptedException {
+		if (exitCode == null) {
+			exitCode = root.act(new WarmPool.Await(id, timeout));
+		}
+		return exitCode;
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Detects a hung or stalled ObjectStudio process.
+ *
+ * <p>
+ * The log lines and the output of the process are written to the watchdog,
+ * which remembers the time of the last output and the last
+ * {@link #TAIL_SIZE} bytes. {@link #check(VirtualChannel)} compares three
+ * limits, each one disabled with 0: the time without output, the time
+ * without CPU progress and the total run time.
+ *
+ * <p>
+ * The processes of a build are found on the node by the environment
+ * variable {@link #COOKIE}, like Jenkins finds the processes it kills at
+ * the end of a build. The CPU time is read from <code>/proc</code> or with
+ * <code>wmic</code> every {@link #CPU_SAMPLE} milliseconds. The process
+ * tree counts as making progress if it used at least
+ * {@link #MIN_CPU_PROGRESS} milliseconds since the last sample. A sample
+ * that finds no process or can not list them is skipped, the CPU timeout is
+ * only disabled when the processes are found but their CPU time can not be
+ * read.
+ *
+ * @author Patrick Lauper
+ */
+public class Watchdog extends OutputStream {
+
+	/**
+	 * Environment variable marking the processes of a build.
+	 */
+	public static final String COOKIE = "OSTUDIO_COOKIE";
+
+	/**
+	 * Milliseconds between two samples of the CPU time.
+	 */
+	static final long CPU_SAMPLE = 30000;
+
+	/**
+	 * CPU milliseconds per sample needed to count as progress.
+	 */
+	static final long MIN_CPU_PROGRESS = 500;
+
+	/**
+	 * Number of trailing output bytes kept for the failure message.
+	 */
+	static final int TAIL_SIZE = 4096;
+
+	private static final long MINUTE = 60000;
+
+	private final PrintStream logger;
+	private final long idleTimeout;
+	private final long cpuTimeout;
+	private final long maxRunTime;
+	private final Charset charset;
+	private final byte[] tail = new byte[TAIL_SIZE];
+	private final long started = System.currentTimeMillis();
+	private String cookie;
+	private long count;
+	private long lastOutput = started;
+	private long lastCpuProgress = started;
+	private long lastCpuSample;
+	private long cpuTime = -1;
+	private boolean cpuAvailable = true;
+
+	/**
+	 * Create a watchdog. Limits are in minutes, 0 disables a limit.
+	 * @param logger build log
+	 * @param cookie value of {@link #COOKIE} in the environment of the process
+	 * @param idleTimeout minutes without output
+	 * @param cpuTimeout minutes without CPU progress
+	 * @param maxRunTime minutes the process may run at all
+	 * @param charset encoding of the output
+	 */
+	public Watchdog(PrintStream logger, String cookie, int idleTimeout, int cpuTimeout, int maxRunTime, Charset charset) {
+		this.logger = logger;
+		this.cookie = cookie;
+		this.idleTimeout = idleTimeout * MINUTE;
+		this.cpuTimeout = cpuTimeout * MINUTE;
+		this.maxRunTime = maxRunTime * MINUTE;
+		this.charset = charset;
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		tail[(int) (count % TAIL_SIZE)] = (byte) b;
+		count++;
+		lastOutput = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		if (len == 0) {
+			return;
+		}
+		int start = off + Math.max(0, len - TAIL_SIZE);
+		count += start - off;
+		for (int i = start; i < off + len; i++) {
+			tail[(int) (count % TAIL_SIZE)] = b[i];
+			count++;
+		}
+		lastOutput = System.currentTimeMillis();
+	}
+
+	/**
+	 * Whether any limit is set.
+	 * @return false if the watchdog never fires
+	 */
+	public boolean isEnabled() {
+		return idleTimeout > 0 || cpuTimeout > 0 || maxRunTime > 0;
+	}
+
+	/**
+	 * Get the value of {@link #COOKIE} of the watched processes.
+	 * @return cookie
+	 */
+	public String getCookie() {
+		return cookie;
+	}
+
+	/**
+	 * Watch processes started with another cookie, like a process of the warm
+	 * pool.
+	 * @param cookie value of {@link #COOKIE}
+	 */
+	public void setCookie(String cookie) {
+		this.cookie = cookie;
+	}
+
+	/**
+	 * Check the limits. The CPU time is sampled on the node if it is due.
+	 * @param channel channel to the node running the process
+	 * @return reason if a limit was exceeded, null otherwise
+	 * @throws InterruptedException if sampling was interrupted
+	 */
+	public String check(VirtualChannel channel) throws InterruptedException {
+		return check(channel, System.currentTimeMillis());
+	}
+
+	/**
+	 * Check the limits at a given time.
+	 */
+	String check(VirtualChannel channel, long now) throws InterruptedException {
+		if (maxRunTime > 0 && now - started > maxRunTime) {
+			return "ObjectStudio ran longer than " + maxRunTime / MINUTE + " minutes";
+		}
+		if (idleTimeout > 0 && now - getLastOutput() > idleTimeout) {
+			return "No output from ObjectStudio for " + idleTimeout / MINUTE + " minutes";
+		}
+		if (cpuTimeout > 0 && cpuAvailable && now - lastCpuSample >= CPU_SAMPLE) {
+			lastCpuSample = now;
+			sampleCpu(channel, now);
+		}
+		// Only once the CPU time was read at all
+		if (cpuTimeout > 0 && cpuAvailable && cpuTime >= 0 && now - lastCpuProgress > cpuTimeout) {
+			return "ObjectStudio used no CPU for " + cpuTimeout / MINUTE + " minutes";
+		}
+		return null;
+	}
+
+	/**
+	 * Get the processes on the node carrying the cookie.
+	 * @param channel channel to the node running the process
+	 * @return processes, empty if they can not be listed
+	 * @throws InterruptedException if interrupted
+	 */
+	public List<Stat> sample(VirtualChannel channel) throws InterruptedException {
+		try {
+			return list(channel);
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not list processes: " + e.getMessage());
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * List the processes carrying the cookie on the node.
+	 */
+	List<Stat> list(VirtualChannel channel) throws IOException, InterruptedException {
+		return channel.call(new Sample(cookie));
+	}
+
+	/**
+	 * Get the last output for a failure message.
+	 * @return up to {@link #TAIL_SIZE} bytes of output
+	 */
+	public synchronized String getTail() {
+		int length = (int) Math.min(count, TAIL_SIZE);
+		byte[] last = new byte[length];
+		for (int i = 0; i < length; i++) {
+			last[i] = tail[(int) ((count - length + i) % TAIL_SIZE)];
+		}
+		return new String(last, charset);
+	}
+
+	private synchronized long getLastOutput() {
+		return lastOutput;
+	}
+
+	private void sampleCpu(VirtualChannel channel, long now) throws InterruptedException {
+		List<Stat> stats;
+		try {
+			stats = list(channel);
+		} catch (IOException e) {
+			logger.println("[ObjectStudio] - Can not list processes, trying again: " + e.getMessage());
+			return;
+		}
+		if (stats.isEmpty()) {
+			// Not started yet or between two processes
+			return;
+		}
+		long total = -1;
+		for (Stat stat : stats) {
+			if (stat.getCpuTime() >= 0) {
+				total = Math.max(total, 0) + stat.getCpuTime();
+			}
+		}
+		if (total < 0) {
+			logger.println("[ObjectStudio] - CPU time of ObjectStudio is not available, CPU timeout disabled");
+			cpuAvailable = false;
+			return;
+		}
+		// Also a process replaced by a new one makes progress
+		if (cpuTime < 0 || Math.abs(total - cpuTime) >= MIN_CPU_PROGRESS) {
+			lastCpuProgress = now;
+		}
+		cpuTime = total;
+	}
+
+	/**
+	 * A process on the node.
+	 */
+	public static final class Stat implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int pid;
+		private final long cpuTime;
+		private final String command;
+
+		Stat(int pid, long cpuTime, String command) {
+			this.pid = pid;
+			this.cpuTime = cpuTime;
+			this.command = command;
+		}
+
+		/**
+		 * Get the process id.
+		 * @return pid
+		 */
+		public int getPid() {
+			return pid;
+		}
+
+		/**
+		 * Get the CPU time used so far.
+		 * @return milliseconds or -1 if not available
+		 */
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		/**
+		 * Get the command line.
+		 * @return arguments separated by blanks
+		 */
+		public String getCommand() {
+			return command;
+		}
+
+		@Override
+		public String toString() {
+			return "pid " + pid + ", CPU " + (cpuTime < 0 ? "?" : cpuTime + " ms") + ": " + command;
+		}
+	}
+
+	/**
+	 * Lists the processes carrying a cookie with their CPU time. Runs on the
+	 * node.
+	 */
+	static final class Sample extends MasterToSlaveCallable<List<Stat>, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Clock ticks per second in <code>/proc/PID/stat</code>.
+		 */
+		private static final long USER_HZ = 100;
+
+		private final String cookie;
+
+		Sample(String cookie) {
+			this.cookie = cookie;
+		}
+
+		@Override
+		public List<Stat> call() throws IOException {
+			List<Stat> stats = new ArrayList<Stat>();
+			Map<String, String> model = Collections.singletonMap(COOKIE, cookie);
+			for (ProcessTree.OSProcess process : ProcessTree.get()) {
+				if (process.hasMatchingEnvVars(model)) {
+					StringBuilder command = new StringBuilder();
+					for (String arg : process.getArguments()) {
+						command.append(command.length() == 0 ? "" : " ").append(arg);
+					}
+					stats.add(new Stat(process.getPid(), cpuTime(process.getPid()), command.toString()));
+				}
+			}
+			return stats;
+		}
+
+		private static long cpuTime(int pid) {
+			File stat = new File("/proc/" + pid + "/stat");
+			try {
+				if (stat.exists()) {
+					// utime and stime are fields 14 and 15, the name in field 2 may contain blanks
+					String content = new String(Files.readAllBytes(stat.toPath()), "US-ASCII");
+					String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+					return fields.length < 13 ? -1 : (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 1000 / USER_HZ;
+				}
+				if (File.separatorChar == '\\') {
+					return windowsCpuTime(pid);
+				}
+			} catch (IOException e) {
+				return -1;
+			} catch (IllegalArgumentException e) {
+				return -1;
+			}
+			return -1;
+		}
+
+		/**
+		 * Ask wmic, the times are in units of 100 nanoseconds.
+		 */
+		private static long windowsCpuTime(int pid) throws IOException {
+			Process wmic = new ProcessBuilder("wmic", "process", "where", "ProcessId=" + pid,
+					"get", "KernelModeTime,UserModeTime", "/value").redirectErrorStream(true).start();
+			long total = -1;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(wmic.getInputStream(), "US-ASCII"));
+			try {
+				wmic.getOutputStream().close();
+				String line = reader.readLine();
+				while (line != null) {
+					int eq = line.indexOf('=');
+					String value = eq > 0 && line.contains("ModeTime=") ? line.substring(eq + 1).trim() : "";
+					if (!value.isEmpty()) {
+						total = Math.max(total, 0) + Long.parseLong(value) / 10000;
+					}
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,646 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Prepares the workspace for an ObjectStudio run in one call on the node.
+ *
+ * <p>
+ * The TEMP directory is cleaned first (see {@link TempCleaner}), then deleting the old log, copying
+ * the preload script and ostudio.ini and providing the image run in
+ * parallel. Every step is timed. Invoke it on the workspace root.
+ *
+ * <p>
+ * With more than one shard every shard gets its own directory
+ * <code>TEMP/shard-N</code>, which is its working and TEMP directory and
+ * holds its ostudio.ini, preload script, image and log. Relative script
+ * paths are made absolute, as they can not be found from there.
+ *
+ * <p>
+ * With an isolated execution the same is done in a directory
+ * <code>TEMP/run-ID</code> of its own, with the shards below it, so builds
+ * sharing a build path do not overwrite each other's ostudio.ini and log.
+ * TEMP itself is then left alone, only run directories unchanged for a day
+ * are removed.
+ *
+ * @author Patrick Lauper
+ */
+public class WorkspacePreparation extends MasterToSlaveFileCallable<WorkspacePreparation.Prepared> {
+
+	/**
+	 * Name of the TEMP directory in the workspace.
+	 */
+	public static final String TEMP = "TEMP";
+
+	/**
+	 * Name of the step providing the image.
+	 */
+	public static final String PROVIDE_IMAGE = "Provide image";
+
+	/**
+	 * Prefix of the shard directories in TEMP.
+	 */
+	public static final String SHARD = "shard-";
+
+	/**
+	 * Prefix of the directories of isolated executions in TEMP.
+	 */
+	public static final String RUN = "run-";
+
+	/**
+	 * Maximum number of steps running at the same time.
+	 */
+	static final int MAX_PARALLEL = 8;
+
+	/**
+	 * Age in milliseconds after which the directory of an isolated execution
+	 * is considered left over. Builds remove their own run directory, this
+	 * only catches runs that did not get to clean up.
+	 */
+	static final long STALE_RUN = 24L * 60 * 60 * 1000;
+
+	private static final long serialVersionUID = 1L;
+
+	private final String buildPath;
+	private final String log;
+	private final String preloadScript;
+	private final String loadScript;
+	private final String postloadScript;
+	private final String ostudioIni;
+	private final String image;
+	private final boolean imageCopy;
+	private final String tempPrefix;
+	private final String cacheRoot;
+	private final String cacheMode;
+	private final long cacheBudget;
+	private final int shards;
+	private final String runId;
+
+	/**
+	 * Create the preparation for a build.
+	 * @param builder build configuration
+	 * @param image image on the node
+	 * @param buildNr build number, prefix of temp files
+	 * @param cacheRoot image cache directory on the node or null if not used
+	 */
+	public WorkspacePreparation(ObjectStudioBuilder builder, String image, int buildNr, FilePath cacheRoot) {
+		this.buildPath = builder.getBuildPath();
+		this.log = builder.getOstudioLog();
+		this.preloadScript = builder.getPreloadScript();
+		this.loadScript = builder.getLoadScript();
+		this.postloadScript = builder.getPostloadScript();
+		this.ostudioIni = builder.getOstudioIni();
+		this.image = image;
+		this.imageCopy = builder.getOstudioImageCopy();
+		this.tempPrefix = Integer.toString(buildNr);
+		this.cacheRoot = cacheRoot == null ? null : cacheRoot.getRemote();
+		this.cacheMode = builder.getDescriptor().getImageCacheMode();
+		this.cacheBudget = builder.getDescriptor().getImageCacheSize() * 1024L * 1024L;
+		this.shards = builder.getShards();
+		this.runId = builder.getIsolateExecution() ? buildNr + "-" + UUID.randomUUID().toString().substring(0, 8) : null;
+	}
+
+	@Override
+	public Prepared invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+		final Prepared prepared = new Prepared();
+		final File workdir = isBlank(buildPath) ? workspace.getAbsoluteFile() : resolve(workspace, buildPath);
+		final File temp = new File(workspace, TEMP).getAbsoluteFile();
+		final File root = runId == null ? temp : new File(temp, RUN + runId);
+		prepared.workdir = workdir.getPath();
+		prepared.tempdir = root.getPath();
+		prepared.runDir = runId == null ? null : root.getPath();
+		if (shards <= 1 && runId == null) {
+			Instance instance = prepared.add(workdir, temp);
+			instance.log = isBlank(log) ? null : resolve(workdir, log).getPath();
+			instance.logName = log;
+			instance.loadScript = loadScript;
+			instance.postloadScript = postloadScript;
+		} else {
+			for (int i = 0; i < Math.max(1, shards); i++) {
+				File dir = shards <= 1 ? root : new File(root, SHARD + i);
+				Instance instance = prepared.add(dir, dir);
+				instance.log = isBlank(log) ? null : new File(dir, new File(log).getName()).getPath();
+				instance.logName = instance.log;
+				instance.loadScript = absolute(workdir, loadScript);
+				instance.postloadScript = absolute(workdir, postloadScript);
+			}
+		}
+
+		run(Collections.<Step>singletonList(new Step(prepared, "Clean TEMP") {
+			@Override
+			void run() throws IOException {
+				if (runId == null) {
+					cleanTemp(prepared, temp);
+				} else {
+					removeStaleRuns(prepared, temp);
+				}
+				createTempdirs(prepared);
+			}
+		}));
+
+		List<Step> steps = new ArrayList<Step>();
+		for (final Instance instance : prepared.instances) {
+			steps.add(new Step(prepared, "Delete log") {
+				@Override
+				void run() {
+					deleteLog(prepared, instance);
+				}
+			});
+			steps.add(new Step(prepared, "Copy preload script") {
+				@Override
+				void run() throws IOException {
+					copyPreloadScript(prepared, instance, workdir);
+				}
+			});
+			steps.add(new Step(prepared, "Copy ostudio.ini") {
+				@Override
+				void run() throws IOException {
+					copyOstudioIni(prepared, instance, workdir);
+				}
+			});
+			steps.add(new Step(prepared, PROVIDE_IMAGE) {
+				@Override
+				void run() throws IOException {
+					provideImage(prepared, instance, workdir);
+				}
+			});
+		}
+		boolean provided = false;
+		try {
+			run(steps);
+			provided = true;
+		} finally {
+			if (!provided && cacheRoot != null) {
+				// The build never gets to give them back
+				new ImageCache.Release(prepared.getSharedImages()).invoke(new File(cacheRoot), channel);
+			}
+		}
+		return prepared;
+	}
+
+	private void cleanTemp(Prepared prepared, File temp) throws IOException {
+		String[] files = temp.list();
+		if (files == null || files.length == 0) {
+			TempCleaner.deleteLeftovers(temp);
+		} else if (TempCleaner.removeInBackground(temp)) {
+			prepared.message("Old TEMP directory is deleted in background");
+		} else {
+			// Probably a file still in use, delete what we can
+			prepared.message("Can not move TEMP directory, deleting its contents");
+			try {
+				new FilePath(temp).deleteContents();
+			} catch (InterruptedException e) {
+				throw new IOException("Can not create directory TEMP: interrupted", e);
+			} catch (IOException e) {
+				throw new IOException("Can not create directory TEMP: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Remove run directories of isolated executions that ended without
+	 * cleaning up. Other executions may be running, so TEMP stays.
+	 */
+	private void removeStaleRuns(Prepared prepared, File temp) {
+		File[] runs = temp.listFiles();
+		if (runs == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (File run : runs) {
+			String name = run.getName();
+			if (name.startsWith(RUN) && !name.contains(TempCleaner.OLD) && now - run.lastModified() > STALE_RUN
+					&& TempCleaner.removeInBackground(run)) {
+				prepared.message("Old run directory is deleted in background: " + run);
+			}
+		}
+	}
+
+	private void createTempdirs(Prepared prepared) throws IOException {
+		for (Instance instance : prepared.instances) {
+			File dir = new File(instance.tempdir);
+			if (!dir.mkdirs() && !dir.isDirectory()) {
+				throw new IOException("Can not create directory " + dir);
+			}
+		}
+	}
+
+	private void deleteLog(Prepared prepared, Instance instance) {
+		if (instance.log == null) {
+			return;
+		}
+		File file = new File(instance.log);
+		if (file.exists()) {
+			prepared.message("Delete Log: " + file);
+			if (!file.delete()) {
+				prepared.message("Can not delete log: " + file);
+			}
+		}
+	}
+
+	/**
+	 * Preload-File muss Absolut und ohne Blanks sein.
+	 */
+	private void copyPreloadScript(Prepared prepared, Instance instance, File workdir) throws IOException {
+		if (isBlank(preloadScript)) {
+			prepared.message("Skipping Preload Script");
+			return;
+		}
+		prepared.message("Create Preload File for " + preloadScript);
+		File dst = getTempFile(new File(instance.tempdir), preloadScript);
+		copy(prepared, resolve(workdir, preloadScript), dst);
+		instance.preloadScript = dst.getPath();
+	}
+
+	private void copyOstudioIni(Prepared prepared, Instance instance, File workdir) throws IOException {
+		if (isBlank(ostudioIni)) {
+			prepared.message("Skipping ostudio.ini");
+			return;
+		}
+		prepared.message("Create ostudio.ini from " + ostudioIni);
+		copy(prepared, resolve(workdir, ostudioIni), new File(instance.workdir, "ostudio.ini"));
+	}
+
+	private void provideImage(Prepared prepared, Instance instance, File workdir) throws IOException {
+		prepared.message("Create Image File for " + image);
+		File src = resolve(workdir, image);
+		prepared.imageSize = src.length();
+		if (!imageCopy) {
+			instance.image = src.getPath();
+			return;
+		}
+		File dst = getTempFile(new File(instance.tempdir), image);
+		if (cacheRoot == null) {
+			copy(prepared, src, dst);
+		} else {
+			prepared.message("Stage Image: " + src + " to " + dst + " from cache " + cacheRoot);
+			// Shards and other builds share the cache entry without a lock
+			instance.staged = new ImageCache(new File(cacheRoot), cacheMode, cacheBudget).stage(src, dst);
+			prepared.addBytesCopied(instance.staged.getBytesCopied());
+			if (instance.staged.getImage() != null) {
+				prepared.message("Use shared Image: " + instance.staged.getImage());
+				instance.image = instance.staged.getImage();
+				return;
+			}
+		}
+		instance.image = dst.getPath();
+	}
+
+	/**
+	 * Copies a file and logs it.
+	 */
+	private void copy(Prepared prepared, File src, File dest) throws IOException {
+		prepared.message("Copy File: " + src + " to " + dest);
+		if (dest.getPath().equals(src.getPath())) {
+			prepared.message("Source and Dest File is equal: " + dest);
+			return;
+		}
+		if (dest.exists()) {
+			prepared.message("Dest File exists, overwrite: " + dest);
+		}
+		try {
+			Files.copy(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new IOException("Can not create temp file: " + e.getMessage(), e);
+		}
+		prepared.addBytesCopied(dest.length());
+	}
+
+	/**
+	 * Get a temp filename without blanks.
+	 */
+	private File getTempFile(File temp, String filename) {
+		return new File(temp, (tempPrefix + FilenameUtils.getName(filename)).replaceAll(" ", "_"));
+	}
+
+	/**
+	 * Run steps in parallel and wait for all of them.
+	 */
+	private static void run(List<Step> steps) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(steps.size(), MAX_PARALLEL));
+		try {
+			List<Future<Void>> futures = executor.invokeAll(steps);
+			for (Future<Void> future : futures) {
+				get(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void get(Future<Void> future) throws IOException, InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Resolve a filename which could be absolute or relative to a directory.
+	 */
+	static File resolve(File dir, String filename) {
+		File file = new File(filename);
+		return file.isAbsolute() ? file : new File(dir, filename).getAbsoluteFile();
+	}
+
+	/**
+	 * Absolute path of a script, blank stays blank.
+	 */
+	private static String absolute(File dir, String filename) {
+		return isBlank(filename) ? filename : resolve(dir, filename).getPath();
+	}
+
+	private static boolean isBlank(String s) {
+		return s == null || s.trim().isEmpty();
+	}
+
+	/**
+	 * A timed preparation step.
+	 */
+	private abstract static class Step implements Callable<Void> {
+		private final Prepared prepared;
+		private final String name;
+
+		Step(Prepared prepared, String name) {
+			this.prepared = prepared;
+			this.name = name;
+		}
+
+		abstract void run() throws IOException;
+
+		@Override
+		public Void call() throws IOException {
+			long start = System.nanoTime();
+			try {
+				run();
+			} finally {
+				prepared.timing(name, (System.nanoTime() - start) / 1000000L);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Files of one ObjectStudio process, absolute paths on the node.
+	 */
+	public static final class Instance implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String workdir;
+		private final String tempdir;
+		private String log;
+		private String logName;
+		private String preloadScript;
+		private String loadScript;
+		private String postloadScript;
+		private String image;
+		private ImageCache.Staged staged;
+
+		Instance(File workdir, File tempdir) {
+			this.workdir = workdir.getPath();
+			this.tempdir = tempdir.getPath();
+		}
+
+		/**
+		 * Get working directory of ObjectStudio.
+		 * @return absolute path
+		 */
+		public String getWorkdir() {
+			return workdir;
+		}
+
+		/**
+		 * Get TEMP directory.
+		 * @return absolute path
+		 */
+		public String getTempdir() {
+			return tempdir;
+		}
+
+		/**
+		 * Get ObjectStudio log file.
+		 * @return absolute path or null if no log is written
+		 */
+		public String getLog() {
+			return log;
+		}
+
+		/**
+		 * Get log file name passed to ObjectStudio.
+		 * @return name as configured, or absolute path for a shard
+		 */
+		public String getLogName() {
+			return logName;
+		}
+
+		/**
+		 * Get copied preload script.
+		 * @return absolute path or null if there is no preload script
+		 */
+		public String getPreloadScript() {
+			return preloadScript;
+		}
+
+		/**
+		 * Get load script passed to ObjectStudio.
+		 * @return name as configured, or absolute path for a shard
+		 */
+		public String getLoadScript() {
+			return loadScript;
+		}
+
+		/**
+		 * Get postload script passed to ObjectStudio.
+		 * @return name as configured, or absolute path for a shard
+		 */
+		public String getPostloadScript() {
+			return postloadScript;
+		}
+
+		/**
+		 * Get image to be started.
+		 * @return absolute path
+		 */
+		public String getImage() {
+			return image;
+		}
+
+		/**
+		 * Get how the image was provided by the image cache.
+		 * @return staging outcome or null if the cache was not used
+		 */
+		public ImageCache.Staged getStaged() {
+			return staged;
+		}
+	}
+
+	/**
+	 * Outcome of the preparation, absolute paths on the node.
+	 */
+	public static final class Prepared implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String workdir;
+		private String tempdir;
+		private String runDir;
+		private long imageSize;
+		private long bytesCopied;
+		private final List<Instance> instances = new ArrayList<Instance>();
+		private final List<String> messages = new ArrayList<String>();
+		private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+		/**
+		 * Get build directory.
+		 * @return absolute path
+		 */
+		public String getWorkdir() {
+			return workdir;
+		}
+
+		/**
+		 * Get TEMP directory of the workspace, or the directory of an
+		 * isolated execution.
+		 * @return absolute path
+		 */
+		public String getTempdir() {
+			return tempdir;
+		}
+
+		/**
+		 * Get the directory of an isolated execution, removed after the build.
+		 * @return absolute path or null if the execution is not isolated
+		 */
+		public String getRunDir() {
+			return runDir;
+		}
+
+		/**
+		 * Get the cached masters run by the instances, to be given back
+		 * after the build.
+		 * @return hash of the master of every instance running a shared one
+		 */
+		public List<String> getSharedImages() {
+			List<String> hashes = new ArrayList<String>();
+			for (Instance instance : instances) {
+				if (instance.staged != null && instance.staged.getImage() != null) {
+					hashes.add(instance.staged.getHash());
+				}
+			}
+			return hashes;
+		}
+
+		/**
+		 * Get the files of each ObjectStudio process.
+		 * @return one instance, or one per shard
+		 */
+		public List<Instance> getInstances() {
+			return Collections.unmodifiableList(instances);
+		}
+
+		/**
+		 * Get size of the source image.
+		 * @return bytes or 0 if it does not exist
+		 */
+		public long getImageSize() {
+			return imageSize;
+		}
+
+		/**
+		 * Get number of bytes copied.
+		 * @return bytes copied
+		 */
+		public synchronized long getBytesCopied() {
+			return bytesCopied;
+		}
+
+		/**
+		 * Get messages of the preparation steps.
+		 * @return messages in the order they were written
+		 */
+		public synchronized List<String> getMessages() {
+			return new ArrayList<String>(messages);
+		}
+
+		/**
+		 * Get duration of each step. A step run for every shard reports the
+		 * longest one.
+		 * @return step name to milliseconds
+		 */
+		public synchronized Map<String, Long> getTimings() {
+			return new LinkedHashMap<String, Long>(timings);
+		}
+
+		Instance add(File instanceWorkdir, File instanceTempdir) {
+			Instance instance = new Instance(instanceWorkdir, instanceTempdir);
+			instances.add(instance);
+			return instance;
+		}
+
+		synchronized void message(String message) {
+			messages.add(message);
+		}
+
+		synchronized void timing(String step, long millis) {
+			Long previous = timings.get(step);
+			timings.put(step, previous == null ? millis : Math.max(previous, millis));
+		}
+
+		synchronized void addBytesCopied(long bytes) {
+			bytesCopied += bytes;
+		}
+	}
+}
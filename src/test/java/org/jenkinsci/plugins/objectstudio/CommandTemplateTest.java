@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Parsing of the configured parameters into a {@link CommandTemplate}.
+ *
+ * @author Patrick Lauper
+ */
+public class CommandTemplateTest {
+
+	@Test
+	public void nullIsNoArgument() {
+		assertEquals(Collections.emptyList(), CommandTemplate.tokenize(null, "p"));
+		assertEquals(Collections.emptyList(), CommandTemplate.tokenize("   ", "p"));
+	}
+
+	@Test
+	public void repeatedSpacesSeparateOnce() {
+		assertEquals(Arrays.asList("-E50", "-x2"), CommandTemplate.tokenize("  -E50 \t -x2 ", "p"));
+	}
+
+	@Test
+	public void quotesGroupSpaces() {
+		assertEquals(Arrays.asList("-cSRV:DB:my db", "-x2"),
+				CommandTemplate.tokenize("\"-cSRV:DB:my db\" -x2", "p"));
+		assertEquals(Arrays.asList("-iC:\\Program Files\\ostudio.img"),
+				CommandTemplate.tokenize("-i\"C:\\Program Files\\ostudio.img\"", "p"));
+	}
+
+	@Test
+	public void emptyQuotesAreAnEmptyArgument() {
+		assertEquals(Arrays.asList("a", "", "b"), CommandTemplate.tokenize("a \"\" b", "p"));
+	}
+
+	@Test
+	public void backslashesAreLiteral() {
+		assertEquals(Arrays.asList("C:\\temp\\", "\\\\server\\share"),
+				CommandTemplate.tokenize("C:\\temp\\ \\\\server\\share", "p"));
+	}
+
+	@Test
+	public void unclosedQuoteIsRejected() {
+		try {
+			CommandTemplate.tokenize("-x2 \"-cSRV", "OStudio Parameter");
+			fail("unclosed quote accepted");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Quote not closed in OStudio Parameter: -x2 \"-cSRV", e.getMessage());
+		}
+		assertTrue(CommandTemplate.checkParameters("\"").startsWith("Quote not closed"));
+		assertNull(CommandTemplate.checkParameters("-x2 \"a b\""));
+	}
+
+	@Test
+	public void objectStudio7TemplateKeepsQuotedParameters() {
+		ObjectStudioBuilder builder = new ObjectStudioBuilder(null, null, null, null, null, null,
+				"-E50  \"-cSRV:DB:my db\"", null);
+		builder.setDirectLaunch(true);
+		List<String> args = expand(builder);
+		assertEquals("ostudio.exe", args.get(0));
+		assertEquals(Arrays.asList("-E50", "-cSRV:DB:my db"), args.subList(args.size() - 2, args.size()));
+	}
+
+	@Test
+	public void templateIsKeptUntilAChange() {
+		ObjectStudioBuilder builder = new ObjectStudioBuilder(null, null, null, null, null, null, "-x2", null);
+		CommandTemplate template = builder.getCommandTemplate();
+		assertSame(template, builder.getCommandTemplate());
+
+		builder.setOstudioParameter("-x3");
+		assertNotSame(template, builder.getCommandTemplate());
+		List<String> args = expand(builder);
+		assertEquals("-x3", args.get(args.size() - 1));
+		assertEquals("\"C:\\Windows\\System32\\CMD.EXE\"", args.get(0));
+	}
+
+	private static List<String> expand(ObjectStudioBuilder builder) {
+		ObjectStudioRunner runner = new ObjectStudioRunner(new ObjectStudio7(), System.out, 1);
+		return builder.getCommandTemplate().expand("ostudio.exe", runner).toList();
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Direct launch with a shell script standing in for the ObjectStudio
+ * executable, started through the ObjectStudio 8 command line.
+ *
+ * @author Patrick Lauper
+ */
+public class DirectLaunchTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Launcher launcher;
+	private String cookie;
+
+	@Before
+	public void setUp() {
+		assumeTrue(File.pathSeparatorChar == ':');
+		launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+		cookie = UUID.randomUUID().toString();
+	}
+
+	@Test
+	public void commandLineStartsTheExecutable() throws Exception {
+		File exe = script("exit 0");
+		List<String> args = commandline(exe).toList();
+		assertEquals(exe.getAbsolutePath(), args.get(0));
+		assertFalse(args.contains("/WAIT"));
+	}
+
+	@Test
+	public void exitCodeIsPropagated() throws Exception {
+		File exe = script("echo started", "exit 3");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Proc proc = start(exe, out);
+		assertEquals(3, proc.join());
+		assertEquals("started\n", new String(out.toByteArray(), UTF8));
+	}
+
+	@Test
+	public void killReachesChildProcesses() throws Exception {
+		File pidFile = new File(tmp.getRoot(), "child.pid");
+		File exe = script("sleep 600 > /dev/null 2>&1 &", "echo $! > '" + pidFile.getAbsolutePath() + "'", "wait");
+		Proc proc = start(exe, new ByteArrayOutputStream());
+		String pid = awaitPid(pidFile);
+
+		try {
+			ObjectStudioRunner.kill(launcher, proc, cookie);
+			proc.join();
+			assertFalse("child survived the kill", isRunning(pid));
+		} finally {
+			new ProcessBuilder("kill", "-KILL", pid).start().waitFor();
+		}
+	}
+
+	private ArgumentListBuilder commandline(File exe) {
+		ObjectStudio8Builder builder = new ObjectStudio8Builder(null, null, null, null, null, null, null, null, null, false);
+		builder.setDirectLaunch(true);
+		ObjectStudioRunner runner = new ObjectStudioRunner(new ObjectStudio8(), System.out, 1);
+		return builder.getCommandTemplate().expand(exe.getAbsolutePath(), runner);
+	}
+
+	private Proc start(File exe, ByteArrayOutputStream out) throws IOException {
+		return launcher.launch().cmds(commandline(exe))
+				.envs(Collections.singletonMap(Watchdog.COOKIE, cookie))
+				.stdout(out).start();
+	}
+
+	private File script(String... lines) throws IOException {
+		File exe = tmp.newFile("ostudio.sh");
+		StringBuilder content = new StringBuilder("#!/bin/sh\n");
+		for (String line : lines) {
+			content.append(line).append('\n');
+		}
+		Files.write(exe.toPath(), content.toString().getBytes(UTF8));
+		assertTrue(exe.setExecutable(true));
+		return exe;
+	}
+
+	private static String awaitPid(File pidFile) throws IOException, InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (pidFile.exists()) {
+				String pid = new String(Files.readAllBytes(pidFile.toPath()), UTF8).trim();
+				if (!pid.isEmpty()) {
+					return pid;
+				}
+			}
+			Thread.sleep(100);
+		}
+		throw new AssertionError("script did not start its child");
+	}
+
+	private static boolean isRunning(String pid) throws IOException, InterruptedException {
+		// The orphan is reaped by init shortly after it died
+		for (int i = 0; i < 50; i++) {
+			if (new ProcessBuilder("kill", "-0", pid).start().waitFor() != 0) {
+				return false;
+			}
+			Thread.sleep(100);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Staging of private images from the per node {@link ImageCache}.
+ *
+ * @author Patrick Lauper
+ */
+public class ImageCacheTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private File source;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		root = tmp.newFolder("cache");
+		source = tmp.newFile("ostudio.img");
+		content = new byte[64 * 1024];
+		Arrays.fill(content, (byte) 7);
+		Files.write(source.toPath(), content);
+	}
+
+	@Test
+	public void secondStageIsAHit() throws IOException {
+		ImageCache cache = new ImageCache(root, ImageCache.COPY, Long.MAX_VALUE);
+		ImageCache.Staged first = cache.stage(source, new File(tmp.getRoot(), "a.img"));
+		ImageCache.Staged second = cache.stage(source, new File(tmp.getRoot(), "b.img"));
+		assertFalse(first.isHit());
+		assertTrue(second.isHit());
+		assertEquals(first.getHash(), second.getHash());
+		assertEquals(content.length, second.getBytesCopied());
+	}
+
+	@Test
+	public void privateImageIsWritableMasterIsNot() throws IOException {
+		for (String mode : new String[] {ImageCache.COPY, ImageCache.CLONE, ImageCache.LINK}) {
+			File target = new File(tmp.getRoot(), mode + ".img");
+			ImageCache.Staged staged = new ImageCache(root, mode, Long.MAX_VALUE).stage(source, target);
+			assertFalse(ImageCache.LINK.equals(staged.getMethod()));
+			assertTrue(mode, isWritable(target));
+			File master = new File(new File(root, "images"), staged.getHash() + ".img");
+			assertFalse(mode, isWritable(master));
+
+			// ObjectStudio writing to its image leaves the cache alone
+			FileOutputStream out = new FileOutputStream(target, true);
+			try {
+				out.write(1);
+			} finally {
+				out.close();
+			}
+			assertArrayEquals(content, Files.readAllBytes(master.toPath()));
+		}
+	}
+
+	@Test
+	public void evictionKeepsTheBudget() throws IOException {
+		ImageCache cache = new ImageCache(root, ImageCache.COPY, content.length);
+		cache.stage(source, new File(tmp.getRoot(), "a.img"));
+		File other = tmp.newFile("other.img");
+		Files.write(other.toPath(), new byte[content.length]);
+		ImageCache.Staged staged = cache.stage(other, new File(tmp.getRoot(), "b.img"));
+		assertEquals(1, staged.getEvicted());
+		assertFalse(cache.stage(source, new File(tmp.getRoot(), "c.img")).isHit());
+	}
+
+	@Test
+	public void sharedMasterIsKeptUntilReleased() throws IOException {
+		ImageCache cache = new ImageCache(root, ImageCache.SHARED, content.length);
+		File target = new File(tmp.getRoot(), "a.img");
+		ImageCache.Staged staged = cache.stage(source, target);
+		File master = new File(new File(root, "images"), staged.getHash() + ".img");
+		assertEquals(ImageCache.SHARED, staged.getMethod());
+		assertEquals(master.getPath(), staged.getImage());
+		assertFalse(target.exists());
+		assertFalse(isWritable(master));
+
+		// Still run by the first build
+		File other = tmp.newFile("other.img");
+		Files.write(other.toPath(), new byte[content.length]);
+		ImageCache.Staged second = cache.stage(other, new File(tmp.getRoot(), "b.img"));
+		assertEquals(0, second.getEvicted());
+		assertTrue(master.isFile());
+
+		new ImageCache.Release(Arrays.asList(staged.getHash(), second.getHash())).invoke(root, null);
+		File third = tmp.newFile("third.img");
+		Files.write(third.toPath(), new byte[] {1});
+		assertEquals(2, cache.stage(third, new File(tmp.getRoot(), "c.img")).getEvicted());
+	}
+
+	/**
+	 * Check the permission itself, root may write to read-only files.
+	 */
+	private static boolean isWritable(File file) throws IOException {
+		if (File.separatorChar == '/') {
+			return Files.getPosixFilePermissions(file.toPath()).contains(PosixFilePermission.OWNER_WRITE);
+		}
+		return file.canWrite();
+	}
+}
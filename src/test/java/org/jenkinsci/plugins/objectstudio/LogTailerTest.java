@@ -0,0 +1,188 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tailing of a growing Transcript log by {@link LogTailer}.
+ *
+ * @author Patrick Lauper
+ */
+public class LogTailerTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File log;
+	private LogTailer tailer;
+	private ByteArrayOutputStream out;
+
+	@Before
+	public void setUp() {
+		log = new File(tmp.getRoot(), "Transcript.log");
+		tailer = new LogTailer();
+		out = new ByteArrayOutputStream();
+	}
+
+	@Test
+	public void missingLogIsEmpty() throws IOException {
+		assertEquals(0, tailer.poll(log, out));
+		assertEquals(0, tailer.getOffset());
+	}
+
+	@Test
+	public void partialLineIsKeptUntilItsNewline() throws IOException {
+		append("first\nsec");
+		assertEquals(6, tailer.poll(log, out));
+		assertEquals("first\n", output());
+
+		append("ond\nthi");
+		tailer.poll(log, out);
+		assertEquals("first\nsecond\n", output());
+		assertEquals(16, tailer.getOffset());
+
+		assertEquals(3, tailer.flush(out));
+		assertEquals("first\nsecond\nthi", output());
+		assertEquals(0, tailer.flush(out));
+	}
+
+	@Test
+	public void unchangedLogCopiesNothing() throws IOException {
+		append("line\n");
+		tailer.poll(log, out);
+		assertEquals(0, tailer.poll(log, out));
+		assertEquals("line\n", output());
+	}
+
+	@Test
+	public void truncatedLogIsReadFromStart() throws IOException {
+		append("first run\nmore output\n");
+		tailer.poll(log, out);
+		replace("new\n");
+		out.reset();
+		tailer.poll(log, out);
+		assertEquals("new\n", output());
+		assertEquals(1, tailer.getRestarts());
+	}
+
+	@Test
+	public void recreatedLogIsDetectedByItsHead() throws IOException {
+		append("run 1\n");
+		tailer.poll(log, out);
+		// Longer than before, only the first bytes show the new file
+		replace("run 2\nand a longer log\n");
+		out.reset();
+		tailer.poll(log, out);
+		assertEquals("run 2\nand a longer log\n", output());
+		assertEquals(1, tailer.getRestarts());
+	}
+
+	@Test
+	public void appendingKeepsTheHead() throws IOException {
+		byte[] line = line('a', LogTailer.HEAD_SIZE);
+		append(line);
+		tailer.poll(log, out);
+		append("next\n");
+		tailer.poll(log, out);
+		assertEquals(0, tailer.getRestarts());
+		assertEquals(line.length + 5, out.size());
+	}
+
+	@Test
+	public void longLineIsPassedOnInPieces() throws IOException {
+		byte[] piece = new byte[LogTailer.BUFFER_SIZE];
+		Arrays.fill(piece, (byte) 'x');
+		for (int i = 0; i < 8; i++) {
+			append(piece);
+		}
+		tailer.poll(log, out);
+		// At most one line is kept back, whatever the size of the log
+		long kept = 8L * piece.length - out.size();
+		assertTrue(kept <= LogTailer.MAX_LINE);
+		assertEquals(kept, tailer.flush(out));
+		assertEquals(8L * piece.length, out.size());
+	}
+
+	@Test
+	public void limitLeavesTheRestForTheNextPoll() throws IOException {
+		byte[] line = line('b', 1024);
+		for (int i = 0; i < 4 * LogTailer.BUFFER_SIZE / line.length; i++) {
+			append(line);
+		}
+		tailer.poll(log, out, 1);
+		assertEquals(LogTailer.BUFFER_SIZE, tailer.getOffset());
+		assertEquals(LogTailer.BUFFER_SIZE, out.size());
+
+		tailer.poll(log, out);
+		assertEquals(4L * LogTailer.BUFFER_SIZE, out.size());
+		assertEquals(0, tailer.getRestarts());
+	}
+
+	private String output() {
+		return new String(out.toByteArray(), UTF8);
+	}
+
+	private static byte[] line(char c, int length) {
+		byte[] line = new byte[length];
+		Arrays.fill(line, (byte) c);
+		line[length - 1] = '\n';
+		return line;
+	}
+
+	private void append(String text) throws IOException {
+		append(text.getBytes(UTF8));
+	}
+
+	private void append(byte[] bytes) throws IOException {
+		FileOutputStream stream = new FileOutputStream(log, true);
+		try {
+			stream.write(bytes);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void replace(String text) throws IOException {
+		if (log.exists() && !log.delete()) {
+			throw new IOException("Can not delete " + log);
+		}
+		append(text);
+	}
+}
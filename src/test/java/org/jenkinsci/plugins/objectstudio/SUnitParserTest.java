@@ -0,0 +1,142 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Recognition of SUnit results in the Transcript by {@link SUnitParser}.
+ *
+ * @author Patrick Lauper
+ */
+public class SUnitParserTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SUnitParser parser;
+
+	@Before
+	public void setUp() {
+		parser = new SUnitParser(SUnitParser.DEFAULT_START, SUnitParser.DEFAULT_PASS,
+				SUnitParser.DEFAULT_FAIL, SUnitParser.DEFAULT_ERROR, UTF8);
+	}
+
+	@Test
+	public void defaultPatternsRecognizeResults() {
+		write(parser, "Running: MyTest>>#testFoo\n"
+				+ "Passed: MyTest>>#testFoo\n"
+				+ "Failed: MyTest>>testBar: expected 1 but was 2\n"
+				+ "Error MyTest>>#testBaz\n"
+				+ "Transcript noise\n");
+		SUnitReport report = parser.getReport();
+		assertEquals(3, report.getTests());
+		assertEquals(1, report.getFailures());
+		assertEquals(1, report.getErrors());
+		String xml = report.toXml();
+		assertTrue(xml.contains("<testcase classname=\"MyTest\" name=\"testFoo\""));
+		assertTrue(xml.contains("<failure message=\"expected 1 but was 2\"/>"));
+		assertTrue(xml.contains("<testcase classname=\"MyTest\" name=\"testBaz\" time=\"0.000\">\n    <error/>"));
+	}
+
+	@Test
+	public void linesMaySpanWrites() {
+		write(parser, "Pas");
+		write(parser, "sed: MyTest>>#test");
+		assertEquals(0, parser.getReport().getTests());
+		write(parser, "Foo\nPassed: MyTest>>#testBar");
+		assertEquals(1, parser.getReport().getTests());
+		parser.close();
+		assertEquals(2, parser.getReport().getTests());
+	}
+
+	@Test
+	public void singleBytesAreLines() {
+		for (byte b : "Passed: MyTest>>#testFoo\n".getBytes(UTF8)) {
+			parser.write(b);
+		}
+		assertEquals(1, parser.getReport().getTests());
+	}
+
+	@Test
+	public void longLinesAreCut() {
+		char[] noise = new char[3 * SUnitParser.MAX_LINE];
+		Arrays.fill(noise, 'x');
+		write(parser, "Failed: MyTest>>#testLong: " + new String(noise) + "\nPassed: MyTest>>#testNext\n");
+		SUnitReport report = parser.getReport();
+		assertEquals(2, report.getTests());
+		assertEquals(1, report.getFailures());
+		assertTrue(report.toXml().length() < 2 * SUnitParser.MAX_LINE);
+	}
+
+	@Test
+	public void customPatternsWithoutMessage() {
+		SUnitParser custom = new SUnitParser("", "^OK (?<class>\\w+) (?<test>\\w+)",
+				"^NOK (?<class>\\w+) (?<test>\\w+)", null, UTF8);
+		write(custom, "OK MyTest testFoo\nNOK MyTest testBar\nRunning: MyTest>>#testBaz\n");
+		SUnitReport report = custom.getReport();
+		assertEquals(2, report.getTests());
+		assertEquals(1, report.getFailures());
+		assertTrue(report.toXml().contains("<failure/>"));
+	}
+
+	@Test
+	public void parserContinuesAfterSerialization() throws IOException, ClassNotFoundException {
+		write(parser, "Passed: MyTest>>#testFoo\nFailed: MyTest>>#te");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(parser);
+		out.close();
+		SUnitParser copy = (SUnitParser) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		write(copy, "stBar\n");
+		assertEquals(2, copy.getReport().getTests());
+		assertEquals(1, copy.getReport().getFailures());
+	}
+
+	@Test
+	public void checkPattern() {
+		assertNull(SUnitParser.checkPattern(""));
+		assertNull(SUnitParser.checkPattern(SUnitParser.DEFAULT_FAIL));
+		assertTrue(SUnitParser.checkPattern("^Passed (?<class>\\S+)").contains("(?<test>...)"));
+		assertTrue(SUnitParser.checkPattern("^Passed (") != null);
+	}
+
+	private static void write(SUnitParser parser, String text) {
+		byte[] bytes = text.getBytes(UTF8);
+		parser.write(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import hudson.FilePath;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * JUnit XML written by {@link SUnitReport}, appended while the log is read.
+ *
+ * @author Patrick Lauper
+ */
+public class SUnitReportTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File file;
+	private SUnitReport report;
+
+	@Before
+	public void setUp() {
+		file = new File(tmp.getRoot(), "sunit.xml");
+		report = new SUnitReport();
+	}
+
+	@Test
+	public void emptyReportIsAnEmptySuite() throws Exception {
+		report.writeTo(new FilePath(file), false);
+		Element suite = parse();
+		assertEquals("0", suite.getAttribute("tests"));
+		assertEquals(0, suite.getElementsByTagName("testcase").getLength());
+		assertEquals(SUnitReport.DECLARATION.length() + SUnitReport.HEADER_SIZE + SUnitReport.FOOTER.length(), file.length());
+	}
+
+	@Test
+	public void finishedTestsAreAppended() throws Exception {
+		report.started("MyTest", "testFoo", 1000);
+		report.finished("MyTest", "testFoo", SUnitReport.PASSED, null, 2000);
+		report.writeTo(new FilePath(file), false);
+		String first = read();
+
+		report.finished("OtherTest", "testBar", SUnitReport.FAILED, "expected 1", 3000);
+		report.writeTo(new FilePath(file), false);
+		String second = read();
+
+		// Only the header changed in front of the new test case
+		int cases = SUnitReport.DECLARATION.length() + SUnitReport.HEADER_SIZE;
+		int footer = first.length() - SUnitReport.FOOTER.length();
+		assertEquals(first.substring(cases, footer), second.substring(cases, footer));
+		assertEquals(SUnitReport.DECLARATION, second.substring(0, SUnitReport.DECLARATION.length()));
+
+		Element suite = parse();
+		assertEquals("2", suite.getAttribute("tests"));
+		assertEquals("1", suite.getAttribute("failures"));
+		NodeList testcases = suite.getElementsByTagName("testcase");
+		assertEquals(2, testcases.getLength());
+		assertEquals("MyTest", ((Element) testcases.item(0)).getAttribute("classname"));
+		Element failure = (Element) ((Element) testcases.item(1)).getElementsByTagName("failure").item(0);
+		assertEquals("expected 1", failure.getAttribute("message"));
+	}
+
+	@Test
+	public void unfinishedTestIsAnErrorAtTheEnd() throws Exception {
+		report.finished("MyTest", "testFoo", SUnitReport.PASSED, null, 0);
+		report.started("MyTest", "testHang", 0);
+		report.writeTo(new FilePath(file), false);
+		assertEquals(1, parse().getElementsByTagName("testcase").getLength());
+
+		report.writeTo(new FilePath(file), true);
+		Element suite = parse();
+		assertEquals("2", suite.getAttribute("tests"));
+		assertEquals("1", suite.getAttribute("errors"));
+		Element error = (Element) suite.getElementsByTagName("error").item(0);
+		assertEquals("Test did not finish", error.getAttribute("message"));
+		assertEquals(report.toXml(), read());
+	}
+
+	@Test
+	public void testReportedAgainRewritesTheFile() throws Exception {
+		report.finished("MyTest", "testFoo", SUnitReport.PASSED, null, 0);
+		report.writeTo(new FilePath(file), false);
+		report.finished("MyTest", "testFoo", SUnitReport.ERROR, "walkback", 0);
+		report.writeTo(new FilePath(file), false);
+
+		Element suite = parse();
+		assertEquals("1", suite.getAttribute("tests"));
+		assertEquals("1", suite.getAttribute("errors"));
+		assertEquals(1, suite.getElementsByTagName("testcase").getLength());
+		assertEquals(1, report.getTests());
+	}
+
+	@Test
+	public void changedFileIsWrittenAgain() throws Exception {
+		report.writeTo(new FilePath(file), false);
+		Files.write(file.toPath(), "foreign".getBytes(UTF8));
+		report.finished("MyTest", "testFoo", SUnitReport.PASSED, null, 0);
+		try {
+			report.writeTo(new FilePath(file), false);
+			fail("appended to a foreign file");
+		} catch (IOException e) {
+			// Reported once, the next write starts over
+		}
+		report.writeTo(new FilePath(file), false);
+		assertEquals(1, parse().getElementsByTagName("testcase").getLength());
+	}
+
+	@Test
+	public void messagesAreEscaped() throws Exception {
+		report.finished("MyTest", "testFoo", SUnitReport.FAILED, "<a & \"b\">\n\u0001", 0);
+		report.writeTo(new FilePath(file), true);
+		Element failure = (Element) parse().getElementsByTagName("failure").item(0);
+		assertEquals("<a & \"b\">\n", failure.getAttribute("message"));
+	}
+
+	private String read() throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), UTF8);
+	}
+
+	private Element parse() throws Exception {
+		Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file).getDocumentElement();
+		assertTrue(root.getTagName().equals("testsuite"));
+		return root;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Pages of the archived Transcript shown by {@link TranscriptAction}.
+ *
+ * @author Patrick Lauper
+ */
+public class TranscriptActionTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void transcriptIsEscaped() throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject();
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+		File dir = new File(build.getArtifactsDir(), TranscriptArchive.DIRECTORY);
+		TranscriptArchive archive = new TranscriptArchive(dir, "transcript", new ByteArrayOutputStream(), UTF8);
+		try {
+			archive.write("Error: <script>alert('transcript')</script> & more\n".getBytes(UTF8));
+		} finally {
+			archive.close();
+		}
+		build.addAction(new TranscriptAction(Collections.singletonList("transcript"), UTF8));
+		build.save();
+
+		String html = j.createWebClient().goTo(build.getUrl() + "transcript").getWebResponse().getContentAsString();
+		assertTrue(html, html.contains("&lt;script&gt;alert("));
+		assertFalse(html, html.contains("<script>alert("));
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Patrick Lauper
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.objectstudio;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.remoting.VirtualChannel;
+
+import org.junit.Test;
+
+/**
+ * CPU timeout of the {@link Watchdog}, with the process listing replaced
+ * by a list of samples.
+ *
+ * @author Patrick Lauper
+ */
+public class WatchdogTest {
+
+	private static final long MINUTE = 60000;
+
+	@Test
+	public void missingSamplesAreRetried() throws InterruptedException {
+		Samples watchdog = new Samples();
+		watchdog.failure();
+		watchdog.add();
+		watchdog.add(1000);
+		watchdog.add(1000);
+		watchdog.add(1000);
+		long now = System.currentTimeMillis();
+		// Listing failed, then the process was not there yet
+		assertNull(watchdog.check(null, now));
+		assertNull(watchdog.check(null, now + Watchdog.CPU_SAMPLE));
+		assertNull(watchdog.check(null, now + 2 * Watchdog.CPU_SAMPLE));
+		assertNull(watchdog.check(null, now + 3 * Watchdog.CPU_SAMPLE));
+		assertNotNull(watchdog.check(null, now + 2 * Watchdog.CPU_SAMPLE + MINUTE + 1));
+	}
+
+	@Test
+	public void noSampleNeverTimesOut() throws InterruptedException {
+		Samples watchdog = new Samples();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			watchdog.add();
+			assertNull(watchdog.check(null, now + i * Watchdog.CPU_SAMPLE));
+		}
+	}
+
+	@Test
+	public void unknownCpuTimeDisablesTheTimeout() throws InterruptedException {
+		Samples watchdog = new Samples();
+		watchdog.add(-1);
+		watchdog.add(1000);
+		watchdog.add(1000);
+		long now = System.currentTimeMillis();
+		assertNull(watchdog.check(null, now));
+		assertNull(watchdog.check(null, now + Watchdog.CPU_SAMPLE));
+		assertNull(watchdog.check(null, now + 10 * MINUTE));
+	}
+
+	/**
+	 * Watchdog with a CPU timeout of a minute, returning one prepared
+	 * sample per listing.
+	 */
+	private static final class Samples extends Watchdog {
+		private final List<List<Watchdog.Stat>> samples = new ArrayList<List<Watchdog.Stat>>();
+
+		Samples() {
+			super(new PrintStream(new ByteArrayOutputStream()), "cookie", 0, 1, 0, Charset.forName("UTF-8"));
+		}
+
+		void add(long... cpuTimes) {
+			List<Watchdog.Stat> sample = new ArrayList<Watchdog.Stat>();
+			for (long cpuTime : cpuTimes) {
+				sample.add(new Watchdog.Stat(sample.size() + 1, cpuTime, "ostudio"));
+			}
+			samples.add(sample);
+		}
+
+		void failure() {
+			samples.add(null);
+		}
+
+		@Override
+		List<Watchdog.Stat> list(VirtualChannel channel) throws IOException {
+			if (samples.isEmpty()) {
+				return Collections.emptyList();
+			}
+			List<Watchdog.Stat> sample = samples.remove(0);
+			if (sample == null) {
+				throw new IOException("channel closed");
+			}
+			return sample;
+		}
+	}
+}